@@ -0,0 +1,98 @@
+package com.example.spheroandroid;
+
+import android.Manifest;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.core.app.ActivityCompat;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+// Measures the per-write overhead that SpheroController adds before handing a command frame to
+// the BluetoothGatt, with the old write path and with the session write path.
+// Needs a device (not the JVM), since the cost is mostly the permission check with the system.
+// Results are logged under the GattWritePathBenchmark tag and never asserted on, since timings on
+// a shared device are too noisy to pass or fail a test. The old write path is a reconstruction of
+// what it did per frame, not the old code itself.
+@RunWith(AndroidJUnit4.class)
+public class GattWritePathBenchmark {
+
+    private static final String TAG = "GattWritePathBenchmark";
+    private static final int WRITES = 20_000;
+    private static final int RUNS = 5;
+
+    private final byte[] frame = {(byte)0x8D, 0x0A, 0x16, 0x07, 0x00, 0x40, 0x00, 0x5A, 0x00, 0x00, (byte)0xD8};
+    // Keeps the JIT from skipping the work
+    private int sink;
+    // The characteristic resolved when the services were discovered
+    private BluetoothGattCharacteristic boundCharacteristic;
+
+    @Test
+    public void sessionWritePath_checksThePermissionOnce() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        // BLUETOOTH_CONNECT only exists from Android 12
+        String permission = Build.VERSION.SDK_INT >= Build.VERSION_CODES.S ? Manifest.permission.BLUETOOTH_CONNECT : Manifest.permission.BLUETOOTH;
+        assumeTrue("The app needs the Bluetooth permission for this benchmark",
+                ActivityCompat.checkSelfPermission(context, permission) == PackageManager.PERMISSION_GRANTED);
+        BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(UUID.fromString(SpheroGattAttributes.API_V2_characteristic),
+                BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE, 0);
+        boundCharacteristic = characteristic;
+        SessionPermission sessionPermission = new SessionPermission(context, permission);
+
+        long before = Long.MAX_VALUE;
+        long after = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            before = Math.min(before, timeWrites(() -> writeBefore(context, permission, characteristic)));
+            after = Math.min(after, timeWrites(() -> writeAfter(sessionPermission, characteristic)));
+        }
+        Log.i(TAG, String.format("Per-write overhead: %.0f ns before, %.0f ns after (best of %d runs of %d writes)",
+                (double)before / WRITES, (double)after / WRITES, RUNS, WRITES));
+        assertEquals(1, sessionPermission.getCheckCount());
+    }
+
+    // Returns the time taken by WRITES writes, in ns.
+    private long timeWrites(Runnable write) {
+        long start = System.nanoTime();
+        for (int i = 0; i < WRITES; i++)
+            write.run();
+        return System.nanoTime() - start;
+    }
+
+    // Roughly what writeCharacteristic(), startOperation() and onCharacteristicWrite() used to do for every frame
+    private void writeBefore(Context context, String permission, BluetoothGattCharacteristic characteristic) {
+        // Checked both when queueing the write and when starting it
+        if (ActivityCompat.checkSelfPermission(context, permission) != PackageManager.PERMISSION_GRANTED)
+            return;
+        if (ActivityCompat.checkSelfPermission(context, permission) != PackageManager.PERMISSION_GRANTED)
+            return;
+        characteristic.setValue(frame);
+        characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+        sink += SpheroGattAttributes.lookup(String.valueOf(characteristic.getUuid())).length();
+        if (characteristic.getUuid().toString().equals(SpheroGattAttributes.API_V2_characteristic))
+            sink++;
+    }
+
+    // What write() through a bound WriteChannel does now
+    private void writeAfter(SessionPermission sessionPermission, BluetoothGattCharacteristic characteristic) {
+        if (!sessionPermission.check())
+            return;
+        if (!sessionPermission.check())
+            return;
+        characteristic.setValue(frame);
+        if (characteristic.getWriteType() != BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT)
+            characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+        if (characteristic == boundCharacteristic)
+            sink++;
+    }
+}
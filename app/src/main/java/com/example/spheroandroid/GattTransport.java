@@ -0,0 +1,551 @@
+package com.example.spheroandroid;
+
+import android.Manifest;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.bluetooth.BluetoothStatusCodes;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import com.example.spheroandroid.protocol.Clock;
+import com.example.spheroandroid.protocol.PacketEncoder;
+import com.example.spheroandroid.protocol.SpheroTransport;
+import com.example.spheroandroid.protocol.TransportOperationQueue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+// Handles the actual connection to the sphero: a SpheroTransport over Android's Bluetooth GATT.
+// Reads and writes to the sphero over Bluetooth.
+class GattTransport implements SpheroTransport {
+    public static final String TAG = "GattTransport";
+
+    // If an operation's callback hasn't arrived after this long, assume it was lost and
+    // move on to the next operation.
+    private static final long OPERATION_TIMEOUT_ns = 1_000_000_000L;
+    // Operation records allocated up front: more than the command window and a few queries.
+    private static final int OPERATION_QUEUE_CAPACITY = 32;
+    // Log the operation latency statistics every this many operations.
+    private static final int STATISTICS_LOG_INTERVAL = 500;
+
+    private final Context context;
+    private BluetoothAdapter bluetoothAdapter;
+    private BluetoothGatt bluetoothGatt;
+    private Callback callback;
+    // Checked when connecting, then trusted until disconnected (or until a GATT call is
+    // refused), rather than asking the system before every operation.
+    private final SessionPermission connectPermission;
+
+    // Set when the services are discovered, on the GATT callback thread. The callback's
+    // onServicesDiscovered() is called after, so the transport's thread sees them.
+    private BluetoothGattCharacteristic characteristic_API_V2;
+    private BluetoothGattCharacteristic characteristic_AntiDOS;
+    private BluetoothGattCharacteristic characteristic_DFU;
+    private BluetoothGattCharacteristic characteristic_DFU2;
+    // Writes of each Channel and WriteType (indexed by writeChannelIndex()), bound once the
+    // services are discovered, so each write doesn't look anything up.
+    private final WriteChannel[] writeChannels = new WriteChannel[Channel.values().length * WriteType.values().length];
+    // Before Android 13, a write sets the value of the characteristic object, which is also where
+    // notifications of API_V2 are read from. Held while setting and writing a value, and while
+    // copying a notified value, so that a write can't replace a notified value being copied.
+    // This doesn't close the race: the system sets a notified value on its binder thread without
+    // the lock, and there is no public way to write through another instance of the characteristic.
+    // So a notification can still replace the value between setValue() and writeCharacteristic()
+    // (the notified bytes are written instead of the frame), and a write can still replace a
+    // notified value before onCharacteristicChanged() copies it. The latter is caught by
+    // lastWrittenValue and the notification is dropped instead of reading back our own frame.
+    private final Object characteristicValueLock = new Object();
+    // The array last passed to setValue(). The system sets a notified value with a new array.
+    private byte[] lastWrittenValue;
+    private int overwrittenNotificationCount;
+
+    // Types of the operations in the operationQueue
+    private static final int OPERATION_WRITE = 0;
+    private static final int OPERATION_WRITE_DESCRIPTOR = 1;
+    private static final int OPERATION_READ = 2;
+
+    // BluetoothGatt only allows one outstanding operation, so operations go through this queue,
+    // which starts them with startOperation() one at a time. A write made while the GATT is idle
+    // is started straight away; queued operations are kept in pooled records.
+    private final TransportOperationQueue operationQueue;
+    // A queued value is kept in a buffer longer than it, but the GATT writes whole arrays, so it is
+    // copied into the array of its length before being written. Indexed by length, allocated the
+    // first time each length is used. Only used by startOperation(), with the queue's lock held.
+    private final byte[][] valuesByLength = new byte[PacketEncoder.MAX_FRAME_SIZE + 1][];
+
+    // A characteristic and write type for the per-packet write path.
+    private static class WriteChannel {
+        final BluetoothGattCharacteristic characteristic;
+        final int writeType;
+
+        WriteChannel(BluetoothGattCharacteristic characteristic, int writeType) {
+            this.characteristic = characteristic;
+            this.writeType = writeType;
+        }
+    }
+
+    // GATT server callbacks.
+    // When messages are successfully sent to or received from the sphero,
+    // one of these callback functions will get called.
+    private final BluetoothGattCallback bluetoothGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    // successfully connected to the GATT Server
+                    Log.i(TAG, "Connected to the GATT Server.");
+                    callback.onConnected();
+                } else {
+                    Log.e(TAG, "Failed to connect to the GATT Server: error " + status);
+                    callback.onDisconnected();
+                }
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                // Callbacks won't arrive for the queued operations anymore
+                clearOperations();
+                // The session is over: check the permission again on the next one
+                connectPermission.invalidate();
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    // disconnected from the GATT Server
+                    Log.i(TAG, "Disconnected from the GATT Server.");
+                } else {
+                    Log.e(TAG, "Failed to connect to/disconnect from the GATT Server: error " + status);
+                }
+                callback.onDisconnected();
+            } else {
+                Log.e(TAG, "Unknown GATT connection state: " + newState);
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                Log.w(TAG, "onServicesDiscovered success...");
+                // Show all the supported services and characteristics on the user interface.
+                identifyGattServices(gatt.getServices());
+                bindWrites();
+                callback.onServicesDiscovered();
+            } else {
+                Log.w(TAG, "onServicesDiscovered received unsuccessful: " + status);
+            }
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                onDataAvailable(characteristic.getValue());
+                if (Log.isLoggable(TAG, Log.VERBOSE))
+                    Log.v(TAG, " <- " + SpheroGattAttributes.lookup(String.valueOf(characteristic.getUuid())));
+            } else {
+                Log.d(TAG, "Characteristic read unsuccessful.");
+            }
+            completeOperation();
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.d(TAG, "Characteristic write unsuccessful.");
+            } else if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                Log.v(TAG, " -> " + SpheroGattAttributes.lookup(String.valueOf(characteristic.getUuid())));
+            }
+            completeOperation();
+            // The GATT passes back the same characteristic objects that it discovered.
+            if (characteristic == characteristic_API_V2)
+                callback.onWriteComplete(Channel.API_V2);
+            else if (characteristic == characteristic_AntiDOS)
+                callback.onWriteComplete(Channel.ANTI_DOS);
+            else if (characteristic == characteristic_DFU)
+                callback.onWriteComplete(Channel.DFU);
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.e(TAG, "Descriptor write unsuccessful: error " + status);
+            }
+            completeOperation();
+        }
+
+        // Before Android 13
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            // Pass the value on now, before the next notification or write overwrites it
+            synchronized (characteristicValueLock) {
+                byte[] value = characteristic.getValue();
+                if (value != null && value == lastWrittenValue) {
+                    // A write replaced the notified value before it got here
+                    overwrittenNotificationCount++;
+                    Log.w(TAG, "Notification overwritten by a write. Notifications lost: " + overwrittenNotificationCount);
+                    return;
+                }
+                onDataAvailable(value);
+            }
+        }
+
+        // Android 13 and up: the value is passed along, and writes don't touch the characteristic's value
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, byte[] value) {
+            onDataAvailable(value);
+        }
+    };
+
+    GattTransport(Context context) {
+        this.context = context;
+        connectPermission = new SessionPermission(context, Manifest.permission.BLUETOOTH_CONNECT);
+        operationQueue = new TransportOperationQueue(this::startOperation, SpheroController.androidLog, Clock.SYSTEM,
+                PacketEncoder.MAX_FRAME_SIZE, OPERATION_QUEUE_CAPACITY, OPERATION_TIMEOUT_ns);
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        this.callback = callback;
+    }
+
+    private boolean initializeAdapter() {
+        bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        if (bluetoothAdapter == null) {
+            Log.e(TAG, "Unable to obtain a BluetoothAdapter.");
+            return false;
+        } else {
+            Log.i(TAG, "Bluetooth adapter found by GattTransport.");
+        }
+        return true;
+    }
+
+    @Override
+    public boolean connect(final String address) {
+        if (bluetoothAdapter == null && !initializeAdapter())
+            return false;
+        if (address == null) {
+            Log.w(TAG, "Unspecified address.");
+            return false;
+        }
+        characteristic_API_V2 = null;
+        characteristic_AntiDOS = null;
+        characteristic_DFU = null;
+        characteristic_DFU2 = null;
+        Arrays.fill(writeChannels, null);
+        // connect to the GATT server on the device
+        try {
+            // (The caller waits for the stack to settle before connecting: see SpheroSession.CONNECT_DELAY_ms.)
+            final BluetoothDevice device = bluetoothAdapter.getRemoteDevice(address);
+            // New session: make sure the permission is still granted
+            connectPermission.invalidate();
+            if (bluetoothGatt == null) {
+                if (!connectPermission.check()) {
+                    return false;
+                }
+                bluetoothGatt = device.connectGatt(context, false, bluetoothGattCallback);
+                Log.i(TAG, "Connecting to new GATT server.");
+            } else {
+                bluetoothGatt.connect();
+                Log.i(TAG, "Reconnecting to existing GATT server.");
+            }
+            // Now, wait for bluetooth GATT callbacks: Callback.onConnected()
+            return true;
+        } catch (IllegalArgumentException exception) {
+            Log.w(TAG, "Device not found with provided address.");
+            return false;
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        if (bluetoothAdapter == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized.");
+            return;
+        }
+        if (bluetoothGatt != null) {
+            if (!connectPermission.check()) {
+                return;
+            }
+            try {
+                bluetoothGatt.disconnect();
+            } catch (SecurityException e) {
+                onPermissionRevoked(e);
+            }
+        }
+    }
+
+    @Override
+    public boolean discoverServices() {
+        if (bluetoothGatt == null) {
+            Log.w(TAG, "BluetoothGatt not initialized");
+            return false;
+        }
+        if (!connectPermission.check()) {
+            return false;
+        }
+        return bluetoothGatt.discoverServices();
+    }
+
+    // Displays the GATT services and characteristics.
+    // Identifies the GATT characteristics used for reading/writing to the sphero and saves them.
+    private void identifyGattServices(List<BluetoothGattService> gattServices) {
+        if (gattServices == null) return;
+        String uuid = null;
+        String unknownServiceString = "Unknown Service";
+//        String unknownServiceString = getResources().getString(R.string.unknown_service);
+        String unknownCharaString = "Unknown Characteristic";
+        String LIST_NAME = "Sphero";
+        String LIST_UUID = "Sphero's UUID";
+//        String unknownCharaString = getResources().getString(R.string.unknown_characteristic);
+        ArrayList<HashMap<String, String>> gattServiceData = new ArrayList<HashMap<String, String>>();
+        ArrayList<ArrayList<HashMap<String, String>>> gattCharacteristicData = new ArrayList<ArrayList<HashMap<String, String>>>();
+        ArrayList<ArrayList<BluetoothGattCharacteristic>> mGattCharacteristics = new ArrayList<ArrayList<BluetoothGattCharacteristic>>();
+
+        // Loops through available GATT Services.
+        for (BluetoothGattService gattService : gattServices) {
+            HashMap<String, String> currentServiceData = new HashMap<String, String>();
+            uuid = gattService.getUuid().toString();
+            currentServiceData.put(LIST_NAME, SpheroGattAttributes.lookup(uuid, unknownServiceString));
+            currentServiceData.put(LIST_UUID, uuid);
+            gattServiceData.add(currentServiceData);
+
+            ArrayList<HashMap<String, String>> gattCharacteristicGroupData = new ArrayList<HashMap<String, String>>();
+            List<BluetoothGattCharacteristic> gattCharacteristics = gattService.getCharacteristics();
+            ArrayList<BluetoothGattCharacteristic> charas = new ArrayList<BluetoothGattCharacteristic>();
+            // Loops through available Characteristics.
+            for (BluetoothGattCharacteristic gattCharacteristic : gattCharacteristics) {
+                charas.add(gattCharacteristic);
+                HashMap<String, String> currentCharaData = new HashMap<String, String>();
+                uuid = gattCharacteristic.getUuid().toString();
+                String name = SpheroGattAttributes.lookup(uuid, unknownCharaString);
+                currentCharaData.put(LIST_NAME, name);
+                currentCharaData.put(LIST_UUID, uuid);
+                gattCharacteristicGroupData.add(currentCharaData);
+
+                if (name.equals("API_V2_characteristic")) {
+                    characteristic_API_V2 = gattCharacteristic;
+                } else if (name.equals("AntiDOS_characteristic")) {
+                    characteristic_AntiDOS = gattCharacteristic;
+                } else if (name.equals("DFU_characteristic")) {
+                    characteristic_DFU = gattCharacteristic;
+                } else if (name.equals("DFU2_characteristic")) {
+                    characteristic_DFU2 = gattCharacteristic;
+                }
+            }
+            mGattCharacteristics.add(charas);
+            gattCharacteristicData.add(gattCharacteristicGroupData);
+        }
+    }
+
+    private BluetoothGattCharacteristic characteristic(Channel channel) {
+        switch (channel) {
+            case API_V2:
+                return characteristic_API_V2;
+            case ANTI_DOS:
+                return characteristic_AntiDOS;
+            default:
+                return characteristic_DFU;
+        }
+    }
+
+    private static int writeChannelIndex(Channel channel, WriteType writeType) {
+        return channel.ordinal() * WriteType.values().length + writeType.ordinal();
+    }
+
+    // Binds every channel that was found, with each write type.
+    private void bindWrites() {
+        for (Channel channel : Channel.values()) {
+            BluetoothGattCharacteristic characteristic = characteristic(channel);
+            if (characteristic == null) {
+                Log.e(TAG, "Unable to find the " + channel + " characteristic.");
+                continue;
+            }
+            writeChannels[writeChannelIndex(channel, WriteType.WITH_RESPONSE)] =
+                    new WriteChannel(characteristic, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+            writeChannels[writeChannelIndex(channel, WriteType.WITHOUT_RESPONSE)] =
+                    new WriteChannel(characteristic, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        }
+    }
+
+    // Read a value from a characteristic. The value will appear in Callback.onDataReceived().
+    // Not as necessary if you are getting characteristic notifications already,
+    // that is, if you've subscribed to it.
+    public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+        if (bluetoothGatt == null) {
+            Log.w(TAG, "BluetoothGatt not initialized");
+            return false;
+        }
+        if (characteristic == null) {
+            Log.e(TAG, "Characteristic not initialized");
+            return false;
+        }
+        if (!connectPermission.check()) {
+            return false;
+        }
+        operationQueue.submit(OPERATION_READ, characteristic, null, 0, 0, false);
+        return true;
+    }
+
+    // Sends a payload through a channel bound when the services were discovered. Used for every command frame.
+    @Override
+    public boolean write(Channel channel, byte[] value, WriteType writeType, boolean urgent) {
+        WriteChannel writeChannel = writeChannels[writeChannelIndex(channel, writeType)];
+        if (bluetoothGatt == null || writeChannel == null) {
+            Log.w(TAG, "BluetoothGatt not initialized");
+            return false;
+        }
+        if (value.length > PacketEncoder.MAX_FRAME_SIZE) {
+            Log.e(TAG, "Write of " + value.length + " bytes is longer than a frame.");
+            return false;
+        }
+        if (!connectPermission.check()) {
+            return false;
+        }
+        operationQueue.submit(OPERATION_WRITE, writeChannel.characteristic, value, value.length, writeChannel.writeType, urgent);
+        return true;
+    }
+
+    // Activates characteristic notifications for a given characteristic.
+    // Important for getting message acknowledgement responses.
+    @Override
+    public boolean subscribe(Channel channel) {
+        BluetoothGattCharacteristic characteristic = characteristic(channel);
+        if (bluetoothGatt == null) {
+            Log.w(TAG, "BluetoothGatt not initialized");
+            return false;
+        }
+        if(characteristic == null) {
+            Log.e(TAG, "Unable to find the " + channel + " characteristic.");
+            return false;
+        }
+        if (!connectPermission.check()) {
+            return false;
+        }
+        if(bluetoothGatt.setCharacteristicNotification(characteristic, true)) {
+            BluetoothGattDescriptor clientConfig = characteristic.getDescriptor(UUID.fromString(SpheroGattAttributes.Client_characteristic_config));
+            if(clientConfig == null) {
+                Log.e(TAG, "Failed to get clientConfig for " + channel);
+                return false;
+            }
+            byte[] value = BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
+            operationQueue.submit(OPERATION_WRITE_DESCRIPTOR, clientConfig, value, value.length, 0, false);
+        } else {
+            Log.e(TAG, "Set characteristic notification failed.");
+            return false;
+        }
+        return true;
+    }
+
+    // Called from the GATT callback thread when a notification (or read) arrives from the sphero.
+    private void onDataAvailable(byte[] value) {
+        if (value == null || value.length == 0)
+            return;
+        callback.onDataReceived(value, 0, value.length);
+    }
+
+    // Called from the GATT callbacks: the current operation is done, so start the next one.
+    private void completeOperation() {
+        if (operationQueue.complete() && operationQueue.getOperationCount() % STATISTICS_LOG_INTERVAL == 0)
+            logOperationStatistics();
+    }
+
+    // True if no GATT operation is outstanding, so a write would start right away.
+    @Override
+    public boolean isIdle() {
+        return operationQueue.isIdle();
+    }
+
+    // Starts an operation of the operationQueue, which holds its lock.
+    // value: the first length bytes. If the operation can't be started, the queue drops it.
+    private boolean startOperation(int type, Object target, byte[] value, int length, int writeType) {
+        if (bluetoothGatt == null) {
+            Log.w(TAG, "BluetoothGatt not initialized");
+            return false;
+        }
+        if (!connectPermission.check()) {
+            return false;
+        }
+        try {
+            switch (type) {
+                case OPERATION_WRITE:
+                    return writeCharacteristic((BluetoothGattCharacteristic) target, exactLength(value, length), writeType);
+                case OPERATION_WRITE_DESCRIPTOR:
+                    BluetoothGattDescriptor descriptor = (BluetoothGattDescriptor) target;
+                    descriptor.setValue(exactLength(value, length));
+                    return bluetoothGatt.writeDescriptor(descriptor);
+                default:
+                    return bluetoothGatt.readCharacteristic((BluetoothGattCharacteristic) target);
+            }
+        } catch (SecurityException e) {
+            onPermissionRevoked(e);
+            return false;
+        }
+    }
+
+    // A GATT call was refused because the permission was revoked during the session
+    private void onPermissionRevoked(SecurityException e) {
+        Log.e(TAG, "Bluetooth permission was revoked: " + e.getMessage());
+        connectPermission.invalidate();
+    }
+
+    // The first length bytes of value, in an array of exactly that length. value itself unless
+    // it came from a queued record. Must hold the operationQueue lock.
+    private byte[] exactLength(byte[] value, int length) {
+        if (value.length == length)
+            return value;
+        byte[] exact = valuesByLength[length];
+        if (exact == null)
+            exact = valuesByLength[length] = new byte[length];
+        System.arraycopy(value, 0, exact, 0, length);
+        return exact;
+    }
+
+    // Must hold the operationQueue lock.
+    // Starts writing value, leaving the characteristic's value (which notifications are read from) alone where possible.
+    private boolean writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value, int writeType) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU)
+            return bluetoothGatt.writeCharacteristic(characteristic, value, writeType) == BluetoothStatusCodes.SUCCESS;
+        synchronized (characteristicValueLock) {
+            // Set right before each start, since a notification may have replaced it since the last
+            characteristic.setValue(value);
+            lastWrittenValue = value;
+            // Usually unchanged since the last write
+            if (characteristic.getWriteType() != writeType)
+                characteristic.setWriteType(writeType);
+            return bluetoothGatt.writeCharacteristic(characteristic);
+        }
+    }
+
+    // Forgets the queued operations. Called when disconnected.
+    private void clearOperations() {
+        operationQueue.clear();
+        if (operationQueue.getOperationCount() > 0)
+            logOperationStatistics();
+    }
+
+    private void logOperationStatistics() {
+        Log.i(TAG, "GATT " + operationQueue.getStatistics()
+                + " | permission checks: " + connectPermission.getCheckCount());
+    }
+
+    @Override
+    public void close() {
+        Log.i(TAG, "Closing BLE service.");
+        clearOperations();
+        if (bluetoothGatt == null) {
+            return;
+        }
+        if (!connectPermission.check()) {
+            return;
+        }
+        try {
+            bluetoothGatt.close();
+            bluetoothGatt = null;
+        } catch (SecurityException e) {
+            onPermissionRevoked(e);
+        }
+    }
+}
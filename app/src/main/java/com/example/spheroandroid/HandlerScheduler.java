@@ -0,0 +1,68 @@
+package com.example.spheroandroid;
+
+import android.os.Handler;
+
+import com.example.spheroandroid.protocol.Scheduler;
+
+import java.util.IdentityHashMap;
+
+// Runs a SpheroSession's tasks on a Handler's thread (the BLE thread).
+class HandlerScheduler implements Scheduler {
+
+    // Number of tasks whose cancel handles are kept for reuse
+    private static final int MAX_HANDLES = 16;
+
+    // Set once the thread's Looper is prepared, before the session is used
+    private volatile Handler handler;
+    // Cancel handles, keyed by the task itself, so that a task posted again and again (the drive
+    // tick, every tick interval) gets the same handle instead of a new one each time. One-off
+    // tasks (like connecting) are new lambdas every time, so the handles are all forgotten once
+    // MAX_HANDLES tasks have one; handles that were handed out stay valid.
+    // Only used on the handler's thread.
+    private final IdentityHashMap<Runnable, TaskHandle> handles = new IdentityHashMap<>();
+
+    // Cancels every pending run of a task. Never changes once created, since its owner may keep it.
+    private static class TaskHandle implements Cancellable {
+        final Handler handler;
+        final Runnable task;
+
+        TaskHandle(Handler handler, Runnable task) {
+            this.handler = handler;
+            this.task = task;
+        }
+
+        @Override
+        public void cancel() {
+            handler.removeCallbacks(task);
+        }
+    }
+
+    void setHandler(Handler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public Cancellable postDelayed(Runnable task, long delay_ms) {
+        Handler handler = this.handler;
+        handler.postDelayed(task, Math.max(0, delay_ms));
+        TaskHandle handle = handles.get(task);
+        if (handle == null || handle.handler != handler) {
+            if (handles.size() >= MAX_HANDLES)
+                handles.clear();
+            handle = new TaskHandle(handler, task);
+            handles.put(task, handle);
+        }
+        return handle;
+    }
+
+    @Override
+    public void post(Runnable task, long delay_ms) {
+        // Messages come from the Looper's pool
+        handler.postDelayed(task, Math.max(0, delay_ms));
+    }
+}
@@ -0,0 +1,259 @@
+package com.example.spheroandroid;
+
+import com.example.spheroandroid.protocol.Collision;
+import com.example.spheroandroid.protocol.CommandClass;
+import com.example.spheroandroid.protocol.LatencyStats;
+import com.example.spheroandroid.protocol.SensorSample;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A listener registered with SpheroController.addListener(), and the events waiting to be
+// delivered to it on its executor.
+// Events are written into preallocated records in a ring, and one reusable task delivers every
+// waiting event each time it runs, so queueing an event allocates nothing. The task is only handed
+// to the executor when it isn't already waiting to run, so events are delivered in order, by one
+// task at a time. Any thread can queue events.
+// If the listener falls behind, new events are dropped and counted: sensor samples and collisions
+// once the queue is STREAM_CAPACITY events long, so that there is still room for the other events,
+// and the other events once it is CAPACITY events long.
+class ListenerQueue implements Runnable {
+
+    static final int CAPACITY = 64;
+    static final int STREAM_CAPACITY = CAPACITY * 3 / 4;
+    private static final int MASK = CAPACITY - 1;
+
+    // Kinds of events. The ones without arguments can be queued with offer().
+    static final int SCAN_FAILED = 0;
+    static final int GATT_CONNECTED = 1;
+    static final int SERVICES_DISCOVERED = 2;
+    private static final int CONNECTION_STATE = 3;
+    private static final int BATTERY_VOLTAGE = 4;
+    private static final int COMMAND_ACKNOWLEDGED = 5;
+    private static final int COMMAND_FAILED = 6;
+    private static final int COMMAND_ERROR = 7;
+    private static final int SENSOR_SAMPLE = 8;
+    private static final int COLLISION = 9;
+
+    // A queued event. Only the fields of its kind are meaningful.
+    private static class Event {
+        int kind;
+        SpheroController.ConnectionState state;
+        double volts;
+        byte deviceID;
+        byte commandID;
+        CommandClass commandClass;
+        // Round trip time of an acknowledged command, or the code of a command error
+        long value;
+        final SensorSample sample = new SensorSample();
+        final Collision collision = new Collision();
+    }
+
+    final SpheroListener listener;
+    final Executor executor;
+    // From a collision's notification arriving to the listener receiving it
+    private final LatencyStats collisionLatency;
+    // Whether the listener overrides onSensorSample() and onCollision(). Samples and collisions
+    // are only copied for those that do.
+    private final boolean wantsSensorSamples;
+    private final boolean wantsCollisions;
+
+    private final Event[] events = new Event[CAPACITY];
+    // Number of events queued, and delivered. Queueing is guarded by this; the delivering task
+    // is the only one that advances delivered.
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    // Set while the task is waiting to run or running
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private long droppedCount;
+
+    ListenerQueue(SpheroListener listener, Executor executor, LatencyStats collisionLatency) {
+        this.listener = listener;
+        this.executor = executor;
+        this.collisionLatency = collisionLatency;
+        wantsSensorSamples = overrides(listener, "onSensorSample", SensorSample.class);
+        wantsCollisions = overrides(listener, "onCollision", Collision.class);
+        for (int i = 0; i < CAPACITY; i++)
+            events[i] = new Event();
+    }
+
+    synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    // Queues an event without arguments (SCAN_FAILED, GATT_CONNECTED or SERVICES_DISCOVERED).
+    void offer(int kind) {
+        synchronized (this) {
+            if (claim(kind, CAPACITY) == null)
+                return;
+            commit();
+        }
+        schedule();
+    }
+
+    void offerConnectionState(SpheroController.ConnectionState state) {
+        synchronized (this) {
+            Event event = claim(CONNECTION_STATE, CAPACITY);
+            if (event == null)
+                return;
+            event.state = state;
+            commit();
+        }
+        schedule();
+    }
+
+    void offerBatteryVoltage(double volts) {
+        synchronized (this) {
+            Event event = claim(BATTERY_VOLTAGE, CAPACITY);
+            if (event == null)
+                return;
+            event.volts = volts;
+            commit();
+        }
+        schedule();
+    }
+
+    void offerCommandAcknowledged(byte deviceID, byte commandID, CommandClass commandClass, long rtt_ms) {
+        offerCommand(COMMAND_ACKNOWLEDGED, deviceID, commandID, commandClass, rtt_ms);
+    }
+    void offerCommandFailed(byte deviceID, byte commandID, CommandClass commandClass) {
+        offerCommand(COMMAND_FAILED, deviceID, commandID, commandClass, 0);
+    }
+    void offerCommandError(byte deviceID, byte commandID, int errorCode) {
+        offerCommand(COMMAND_ERROR, deviceID, commandID, null, errorCode);
+    }
+
+    // Queues a copy of sample, which the caller may reuse once this returns.
+    void offerSensorSample(SensorSample sample) {
+        if (!wantsSensorSamples)
+            return;
+        synchronized (this) {
+            Event event = claim(SENSOR_SAMPLE, STREAM_CAPACITY);
+            if (event == null)
+                return;
+            event.sample.copyFrom(sample);
+            commit();
+        }
+        schedule();
+    }
+
+    // Queues a copy of collision, which the caller may reuse once this returns.
+    void offerCollision(Collision collision) {
+        if (!wantsCollisions)
+            return;
+        synchronized (this) {
+            Event event = claim(COLLISION, STREAM_CAPACITY);
+            if (event == null)
+                return;
+            event.collision.copyFrom(collision);
+            commit();
+        }
+        schedule();
+    }
+
+    // Delivers the queued events. Only ever runs once at a time (see schedule()).
+    // If the listener throws, the event is still consumed, and the next event queued schedules the task again.
+    @Override
+    public void run() {
+        do {
+            try {
+                long next;
+                while ((next = delivered.get()) < queued.get()) {
+                    try {
+                        deliver(events[(int) (next & MASK)]);
+                    } finally {
+                        // Only now can the record be reused
+                        delivered.set(next + 1);
+                    }
+                }
+            } finally {
+                scheduled.set(false);
+            }
+            // An event queued after the last check, but before the flag was cleared, didn't schedule the task
+        } while (delivered.get() < queued.get() && scheduled.compareAndSet(false, true));
+    }
+
+    private void deliver(Event event) {
+        switch (event.kind) {
+            case SCAN_FAILED:
+                listener.onScanFailed();
+                break;
+            case GATT_CONNECTED:
+                listener.onGattConnected();
+                break;
+            case SERVICES_DISCOVERED:
+                listener.onServicesDiscovered();
+                break;
+            case CONNECTION_STATE:
+                listener.onConnectionStateChanged(event.state);
+                break;
+            case BATTERY_VOLTAGE:
+                listener.onBatteryVoltage(event.volts);
+                break;
+            case COMMAND_ACKNOWLEDGED:
+                listener.onCommandAcknowledged(event.deviceID, event.commandID, event.commandClass, event.value);
+                break;
+            case COMMAND_FAILED:
+                listener.onCommandFailed(event.deviceID, event.commandID, event.commandClass);
+                break;
+            case COMMAND_ERROR:
+                listener.onCommandError(event.deviceID, event.commandID, (int) event.value);
+                break;
+            case SENSOR_SAMPLE:
+                listener.onSensorSample(event.sample);
+                break;
+            case COLLISION:
+                // Measured when the listener receives it, so a busy executor shows up in the latency
+                collisionLatency.record(System.nanoTime() - event.collision.arrival_ns);
+                listener.onCollision(event.collision);
+                break;
+        }
+    }
+
+    private void offerCommand(int kind, byte deviceID, byte commandID, CommandClass commandClass, long value) {
+        synchronized (this) {
+            Event event = claim(kind, CAPACITY);
+            if (event == null)
+                return;
+            event.deviceID = deviceID;
+            event.commandID = commandID;
+            event.commandClass = commandClass;
+            event.value = value;
+            commit();
+        }
+        schedule();
+    }
+
+    // Must hold the lock. The record for the next event, or null if capacity events are already queued.
+    private Event claim(int kind, int capacity) {
+        long next = queued.get();
+        if (next - delivered.get() >= capacity) {
+            droppedCount++;
+            return null;
+        }
+        Event event = events[(int) (next & MASK)];
+        event.kind = kind;
+        return event;
+    }
+
+    // Must hold the lock. Queues the event claimed last.
+    private void commit() {
+        queued.set(queued.get() + 1);
+    }
+
+    // Hands the task to the executor, unless it is already waiting to run.
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true))
+            executor.execute(this);
+    }
+
+    // True if the listener's class (rather than SpheroListener) implements the method.
+    private static boolean overrides(SpheroListener listener, String name, Class<?>... parameterTypes) {
+        try {
+            return listener.getClass().getMethod(name, parameterTypes).getDeclaringClass() != SpheroListener.class;
+        } catch (NoSuchMethodException e) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.example.spheroandroid;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+
+import androidx.core.app.ActivityCompat;
+
+// Caches a runtime permission check for the length of a connected session.
+// ActivityCompat.checkSelfPermission() asks the system server every time, which is too slow for
+// the per-packet write path. The permission is checked once, and again only after invalidate()
+// (called when a session ends, or when a Bluetooth call fails with a SecurityException because
+// the permission was revoked).
+class SessionPermission {
+
+    private final Context context;
+    private final String permission;
+    private volatile boolean granted;
+    // Number of actual checks with the system, for the statistics
+    private volatile long checkCount;
+
+    SessionPermission(Context context, String permission) {
+        this.context = context;
+        this.permission = permission;
+    }
+
+    // True if the permission is granted. Only asks the system if it hasn't been granted this session.
+    boolean check() {
+        if (granted)
+            return true;
+        checkCount++;
+        granted = ActivityCompat.checkSelfPermission(context, permission) == PackageManager.PERMISSION_GRANTED;
+        return granted;
+    }
+
+    // The next check() asks the system again.
+    void invalidate() {
+        granted = false;
+    }
+
+    long getCheckCount() {
+        return checkCount;
+    }
+}
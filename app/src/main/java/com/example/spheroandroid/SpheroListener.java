@@ -0,0 +1,45 @@
+package com.example.spheroandroid;
+
+import com.example.spheroandroid.protocol.Collision;
+import com.example.spheroandroid.protocol.CommandClass;
+import com.example.spheroandroid.protocol.SensorSample;
+
+// Receives events from a SpheroController. Register it with SpheroController.addListener().
+// Every method does nothing by default, so only the events of interest need to be overridden.
+// Methods are called on the Executor the listener was registered with.
+public interface SpheroListener {
+
+    // The connection state changed. Start sending commands (such as wakeSphero() and
+    // resetHeading()) once it is CONNECTED.
+    default void onConnectionStateChanged(SpheroController.ConnectionState state) {}
+    // Progress while CONNECTING: connected to the GATT server, now discovering its services.
+    default void onGattConnected() {}
+    // Progress while CONNECTING: services discovered, now initializing the sphero.
+    default void onServicesDiscovered() {}
+    // Scanning didn't find the sphero. The controller stays disconnected.
+    default void onScanFailed() {}
+
+    // Response to checkBattery()
+    default void onBatteryVoltage(double volts) {}
+    // A sample of the sensor stream started with startSensorStream().
+    // The sample is only valid during the call: it is reused for a later sample, so copy it
+    // (SensorSample.copyFrom()) to keep it. Samples are only queued for listeners that override
+    // this; if the listener's executor falls behind by more than ListenerQueue.STREAM_CAPACITY
+    // events, later samples are dropped. SpheroController.getSensorTelemetry() keeps the recent samples.
+    default void onSensorSample(SensorSample sample) {}
+    // The sphero bumped into something (see startCollisionDetection()).
+    // Collisions are delivered as soon as they are decoded; register the listener with a direct
+    // executor (or one that isn't busy drawing frames) to react to them within a few milliseconds.
+    // See SpheroController.getCollisionLatency().
+    // Like a sensor sample, the collision is only valid during the call, and only queued for
+    // listeners that override this.
+    default void onCollision(Collision collision) {}
+
+    // The sphero acknowledged a command (see SpheroConstants for the IDs).
+    // rtt_ms: time from sending the command (the last time, if it was resent) to its acknowledgement
+    default void onCommandAcknowledged(byte deviceID, byte commandID, CommandClass commandClass, long rtt_ms) {}
+    // A command was never acknowledged, even after being resent, and was given up on.
+    default void onCommandFailed(byte deviceID, byte commandID, CommandClass commandClass) {}
+    // The sphero responded to a command with a nonzero error code.
+    default void onCommandError(byte deviceID, byte commandID, int errorCode) {}
+}
@@ -20,11 +20,8 @@ import android.app.Dialog;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
-import android.content.BroadcastReceiver;
-import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.graphics.Color;
 import android.os.Bundle;
@@ -71,49 +68,37 @@ public class SpheroMiniActivity extends AppCompatActivity {
     private ToggleButton button_connect;
     private TextView text_battery, text_connetionStatus;
 
-    // Broadcast receiver for bluetooth callback actions.
-    // If a new action is added, make sure to add it to the filter in onCreate.
-    private final BroadcastReceiver receiver = new BroadcastReceiver() {
-        public void onReceive(Context context, Intent intent) {
-            String action = intent.getAction();
-            switch (action) {
-//                case BluetoothDevice.ACTION_ACL_CONNECTED:
-//                    if (ActivityCompat.checkSelfPermission(SpheroMiniActivity.this, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
-//                        finishPermissionsRejected();
-//                    }
-//                    BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-//                    if ("Pro Controller".equals(device.getName())) {
-//
-//                    }
-//                    break;
-                case SpheroController.ACTION_GATT_CONNECTED:
-                    text_connetionStatus.setText(R.string.discovering_servies);
-                    break;
-                case SpheroController.ACTION_GATT_SERVICES_DISCOVERED:
-                    text_connetionStatus.setText(R.string.initializing);
-                    break;
-                case SpheroController.ACTION_BATTERY_AVAILABLE:
-                    double vbatt = intent.getDoubleExtra(SpheroController.EXTRA_BATTERY_VALUE, 0);
-                    if(vbatt < SPHERO_BATTERY_MIN)
-                        vbatt = SPHERO_BATTERY_MIN;
-                    if(vbatt > SPHERO_BATTERY_MAX)
-                        vbatt = SPHERO_BATTERY_MAX;
-                    // Convert into approximate percentage
-                    vbatt = 100 * (vbatt - SPHERO_BATTERY_MIN) / (SPHERO_BATTERY_MAX - SPHERO_BATTERY_MIN);
-                    text_battery.setText(String.format("~%d%%", (int)vbatt));
-                    break;
-                case SpheroController.ACTION_SPHERO_CONNECTION_STATE_CHANGE:
-                    // Set view model state to the new state
-                    ConnectionState state = (ConnectionState)intent.getSerializableExtra(SpheroController.EXTRA_SPHERO_CONNECTION_STATE);
-                    viewModel.setConnectionState(state);
-                    break;
-                case SpheroController.ACTION_SCAN_FAILED:
-                    // Show dialog for failing to find sphero.
-                    // Dismissing the box will return us to the DISCONNECTED state.
-                    DialogFragment info = new FailedScanDialogue();
-                    info.show(getSupportFragmentManager(), "FailedScanDialogue");
-                    break;
-            }
+    // Receives connection changes and data from the sphero, on the main thread.
+    private final SpheroListener spheroListener = new SpheroListener() {
+        @Override
+        public void onGattConnected() {
+            text_connetionStatus.setText(R.string.discovering_servies);
+        }
+        @Override
+        public void onServicesDiscovered() {
+            text_connetionStatus.setText(R.string.initializing);
+        }
+        @Override
+        public void onBatteryVoltage(double vbatt) {
+            if(vbatt < SPHERO_BATTERY_MIN)
+                vbatt = SPHERO_BATTERY_MIN;
+            if(vbatt > SPHERO_BATTERY_MAX)
+                vbatt = SPHERO_BATTERY_MAX;
+            // Convert into approximate percentage
+            vbatt = 100 * (vbatt - SPHERO_BATTERY_MIN) / (SPHERO_BATTERY_MAX - SPHERO_BATTERY_MIN);
+            text_battery.setText(String.format("~%d%%", (int)vbatt));
+        }
+        @Override
+        public void onConnectionStateChanged(ConnectionState state) {
+            // Set view model state to the new state
+            viewModel.setConnectionState(state);
+        }
+        @Override
+        public void onScanFailed() {
+            // Show dialog for failing to find sphero.
+            // Dismissing the box will return us to the DISCONNECTED state.
+            DialogFragment info = new FailedScanDialogue();
+            info.show(getSupportFragmentManager(), "FailedScanDialogue");
         }
     };
 
@@ -139,7 +124,6 @@ public class SpheroMiniActivity extends AppCompatActivity {
 
         initViewModel();
         initUI(savedInstanceState);
-        initBroadcasts();
         if (checkBluetoothPermissions()) {
             initBluetooth();
         }
@@ -206,22 +190,6 @@ public class SpheroMiniActivity extends AppCompatActivity {
         button_connect.setOnCheckedChangeListener(this::onCheckedChanged_connect);
     }
 
-    private void initBroadcasts() {
-        // Register for broadcasts when bluetooth devices are discovered/connected/etc.,
-        // and for receiving data sent by the sphero (like battery updates)
-        IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
-        filter.addAction(SpheroController.ACTION_GATT_CONNECTED);
-        filter.addAction(SpheroController.ACTION_GATT_SERVICES_DISCOVERED);
-        filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
-        filter.addAction(BluetoothDevice.ACTION_UUID);
-        filter.addAction(BluetoothDevice.ACTION_ACL_CONNECTED);
-        filter.addAction(BluetoothDevice.ACTION_ACL_DISCONNECTED);
-        filter.addAction(SpheroController.ACTION_BATTERY_AVAILABLE);
-        filter.addAction(SpheroController.ACTION_SPHERO_CONNECTION_STATE_CHANGE);
-        filter.addAction(SpheroController.ACTION_SCAN_FAILED);
-        registerReceiver(receiver, filter);
-    }
-
     private boolean checkBluetoothPermissions() {
         // Request bluetooth permissions
         boolean permissionsReady = true;
@@ -268,6 +236,7 @@ public class SpheroMiniActivity extends AppCompatActivity {
 
     private void initSphero() {
         sphero = new SpheroController(this, deviceAddress, SpheroController.DEFAULT_WAIT_FOR_RESPONSE, SpheroController.DEFAULT_RESEND_ATTEMPTS, SpheroController.DEFAULT_MESSAGE_TIMEOUT_ms);
+        sphero.addListener(spheroListener);
         button_connect.setEnabled(true);
     }
 
@@ -275,12 +244,12 @@ public class SpheroMiniActivity extends AppCompatActivity {
     protected void onDestroy() {
         super.onDestroy();
 
-        unregisterReceiver(receiver);
         if (ActivityCompat.checkSelfPermission(this, Manifest.permission.BLUETOOTH_CONNECT) == PackageManager.PERMISSION_GRANTED) {
             if (bluetoothAdapter != null)
                 bluetoothAdapter.cancelDiscovery();
         }
         if (sphero != null) {
+            sphero.removeListener(spheroListener);
             sphero.destroy();
             sphero = null;
         }
@@ -0,0 +1,84 @@
+package com.example.spheroandroid.benchmark;
+
+import com.example.spheroandroid.protocol.CommandClass;
+import com.example.spheroandroid.protocol.CommandTracker;
+import com.example.spheroandroid.protocol.FrameWriter;
+import com.example.spheroandroid.protocol.PacketEncoder;
+import com.example.spheroandroid.protocol.ProtocolLog;
+import com.example.spheroandroid.protocol.ResendTimer;
+import com.example.spheroandroid.protocol.ResponseCommand;
+import com.example.spheroandroid.protocol.SpheroConstants;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+// The command queue: sending commands while waiting for acknowledgements and matching
+// acknowledgements to queued commands. See RollBenchmark for dumping similar commands.
+// Frames are "written" by adding up their lengths, and resend timers never fire. They are dropped
+// when their command is acknowledged, so command records are reused as they are by ResendTimerWheel.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CommandTrackerBenchmark {
+
+    // Number of commands waiting for an acknowledgement
+    @Param({"1", "4", "8"})
+    public int depth;
+
+    private final byte[] payload = new byte[PacketEncoder.MAX_PAYLOAD_SIZE];
+    private int payloadLength;
+    private CommandTracker tracker;
+    private long bytesWritten;
+    // Sequence number of the next command sent by tracker
+    private byte nextSequence;
+
+    @Setup
+    public void setup() {
+        FrameWriter writer = frame -> {
+            bytesWritten += frame.length;
+            return true;
+        };
+        ResendTimer resendTimer = new ResendTimer() {
+            @Override
+            public void startResendTimer(ResponseCommand command, int timeout_ms) { }
+            @Override
+            public boolean cancelResendTimer(ResponseCommand command) {
+                return true;
+            }
+        };
+
+        tracker = new CommandTracker(new PacketEncoder(), writer, resendTimer, ProtocolLog.NONE, true, 3, 500, 1);
+        tracker.setInitialized(true);
+        payloadLength = PacketEncoder.ledColorPayload(payload, 0, 255, 0, 128);
+        for(int i = 0; i < depth; i++)
+            tracker.send(SpheroConstants.userIO, SpheroConstants.allLEDs, payload, payloadLength, CommandClass.CONFIGURATION);
+        nextSequence = (byte)depth;
+    }
+
+    // Steady state with depth commands in flight: the oldest command is acknowledged (which sends
+    // the next one) and a new command is queued.
+    @Benchmark
+    public long acknowledgeOldest() {
+        tracker.acknowledge((byte)(nextSequence - depth));
+        tracker.send(SpheroConstants.userIO, SpheroConstants.allLEDs, payload, payloadLength, CommandClass.CONFIGURATION);
+        nextSequence++;
+        return bytesWritten;
+    }
+
+    // Worst case for matching: the newest command is acknowledged, so the whole queue is searched.
+    @Benchmark
+    public long acknowledgeNewest() {
+        tracker.acknowledge((byte)(nextSequence - 1));
+        tracker.send(SpheroConstants.userIO, SpheroConstants.allLEDs, payload, payloadLength, CommandClass.CONFIGURATION);
+        nextSequence++;
+        return bytesWritten;
+    }
+}
@@ -0,0 +1,88 @@
+package com.example.spheroandroid.benchmark;
+
+import com.example.spheroandroid.protocol.PacketDecoder;
+import com.example.spheroandroid.protocol.PacketEncoder;
+import com.example.spheroandroid.protocol.SpheroConstants;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Decoding a stream of received packets. The stream is always STREAM_SIZE bytes and is built from
+// a fixed seed, so results are in bytes per microsecond and comparable across commits.
+// chunkSize is how many bytes each decode() call is given:
+// 1 is what the sphero does in practice (one notification per byte), 20 is the default BLE MTU,
+// and 0 hands the decoder one whole frame at a time.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DecoderBenchmark {
+
+    private static final int STREAM_SIZE = 16384;
+
+    @Param({"1", "20", "0"})
+    public int chunkSize;
+
+    private PacketDecoder decoder;
+    private byte[] stream;
+    // Start offset of each frame in the stream, followed by STREAM_SIZE
+    private int[] frameStarts;
+    private int frameCount;
+    private long payloadBytes;
+
+    @Setup
+    public void setup() {
+        decoder = new PacketDecoder((flags, deviceID, commandID, sequence, packet, payloadOffset, payloadLength) -> payloadBytes += payloadLength);
+
+        // Mix of acknowledgements, battery responses and sensor-sized packets, some needing escapes.
+        Random random = new Random(42);
+        PacketEncoder encoder = new PacketEncoder();
+        byte[] payload = new byte[PacketEncoder.MAX_PAYLOAD_SIZE];
+        stream = new byte[STREAM_SIZE];
+        frameStarts = new int[STREAM_SIZE + 1];
+        int length = 0;
+        byte sequence = 0;
+        while(true) {
+            int payloadLength;
+            switch(random.nextInt(3)) {
+                case 0: payloadLength = 1; break;
+                case 1: payloadLength = 3; break;
+                default: payloadLength = 1 + random.nextInt(40); break;
+            }
+            for(int i = 0; i < payloadLength; i++)
+                payload[i] = (byte)random.nextInt(256);
+            byte[] frame = encoder.encode(SpheroConstants.isResponse, SpheroConstants.powerInfo, SpheroConstants.batteryVoltage, sequence++, payload, 0, payloadLength);
+            if(length + frame.length > STREAM_SIZE)
+                break;
+            frameStarts[frameCount++] = length;
+            System.arraycopy(frame, 0, stream, length, frame.length);
+            length += frame.length;
+        }
+        // Pad the rest with noise outside of a frame, which the decoder discards
+        for(; length < STREAM_SIZE; length++)
+            stream[length] = 0x00;
+        frameStarts[frameCount] = STREAM_SIZE;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(STREAM_SIZE)
+    public long decodeStream() {
+        if(chunkSize == 0) {
+            for(int i = 0; i < frameCount; i++)
+                decoder.decode(stream, frameStarts[i], frameStarts[i + 1] - frameStarts[i]);
+        } else {
+            for(int offset = 0; offset < STREAM_SIZE; offset += chunkSize)
+                decoder.decode(stream, offset, Math.min(chunkSize, STREAM_SIZE - offset));
+        }
+        return payloadBytes;
+    }
+}
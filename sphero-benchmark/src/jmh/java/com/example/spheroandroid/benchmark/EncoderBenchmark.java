@@ -0,0 +1,65 @@
+package com.example.spheroandroid.benchmark;
+
+import com.example.spheroandroid.protocol.PacketEncoder;
+import com.example.spheroandroid.protocol.SpheroConstants;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+// Packing commands into frames (what CommandTracker.pack_command does for every command sent).
+// Each operation encodes one command. gc.alloc.rate.norm should stay at 0 B/op.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EncoderBenchmark {
+
+    private static final byte FLAGS = SpheroConstants.requestsResponse | SpheroConstants.resetsInactivityTimeout;
+
+    private PacketEncoder encoder;
+    private byte[] payload;
+    // Payload made entirely of reserved bytes, so every byte is escaped.
+    private byte[] escapedPayload;
+    private byte sequence;
+    private int heading;
+
+    @Setup
+    public void setup() {
+        encoder = new PacketEncoder();
+        payload = new byte[PacketEncoder.MAX_PAYLOAD_SIZE];
+        escapedPayload = new byte[PacketEncoder.MAX_PAYLOAD_SIZE];
+        for(int i = 0; i < PacketEncoder.MAX_PAYLOAD_SIZE; i++) {
+            payload[i] = (byte)i;
+            escapedPayload[i] = (i % 3 == 0) ? SpheroConstants.start : (i % 3 == 1) ? SpheroConstants.end : SpheroConstants.escape;
+        }
+    }
+
+    // The roll command sent continuously while driving
+    @Benchmark
+    public byte[] roll() {
+        heading = (heading + 1) % 360;
+        return encoder.encodeRoll(FLAGS, sequence++, 128, heading);
+    }
+
+    @Benchmark
+    public byte[] ledColor() {
+        return encoder.encodeLEDColor(FLAGS, sequence++, 255, 0, 128);
+    }
+
+    @Benchmark
+    public byte[] fullPayload() {
+        return encoder.encode(FLAGS, SpheroConstants.userIO, SpheroConstants.allLEDs, sequence++, payload, 0, payload.length);
+    }
+
+    // Worst case: every payload byte must be escaped
+    @Benchmark
+    public byte[] fullPayloadEscaped() {
+        return encoder.encode(FLAGS, SpheroConstants.userIO, SpheroConstants.allLEDs, sequence++, escapedPayload, 0, escapedPayload.length);
+    }
+}
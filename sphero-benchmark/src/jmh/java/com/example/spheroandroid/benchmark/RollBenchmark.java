@@ -0,0 +1,53 @@
+package com.example.spheroandroid.benchmark;
+
+import com.example.spheroandroid.protocol.FrameWriter;
+import com.example.spheroandroid.protocol.ProtocolLog;
+import com.example.spheroandroid.protocol.SpheroProtocol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+// Driving faster than the sphero acknowledges. The sphero never acknowledges anything.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RollBenchmark {
+
+    private SpheroProtocol protocol;
+    private long bytesWritten;
+    private int heading;
+
+    @Setup
+    public void setup() {
+        FrameWriter writer = frame -> {
+            bytesWritten += frame.length;
+            return true;
+        };
+        protocol = new SpheroProtocol(writer, (command, timeout_ms) -> { }, volts -> { }, ProtocolLog.NONE, true, 3, 500, 1);
+        protocol.setInitialized(true);
+    }
+
+    // SpheroProtocol.roll(), which sends rolls without waiting for acknowledgements
+    @Benchmark
+    public long roll() {
+        heading = (heading + 1) % 360;
+        protocol.roll(128, heading);
+        return bytesWritten;
+    }
+
+    // rollStop() clears the queued rolls before queueing its own
+    @Benchmark
+    public long rollThenStop() {
+        heading = (heading + 1) % 360;
+        protocol.roll(128, heading);
+        protocol.rollStop(heading);
+        return bytesWritten;
+    }
+}
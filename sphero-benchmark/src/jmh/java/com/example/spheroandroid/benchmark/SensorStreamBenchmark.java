@@ -0,0 +1,81 @@
+package com.example.spheroandroid.benchmark;
+
+import com.example.spheroandroid.protocol.PacketEncoder;
+import com.example.spheroandroid.protocol.ProtocolLog;
+import com.example.spheroandroid.protocol.SensorSample;
+import com.example.spheroandroid.protocol.SensorStream;
+import com.example.spheroandroid.protocol.SpheroConstants;
+import com.example.spheroandroid.protocol.SpheroProtocol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+// Receiving sensor stream packets, from the frame bytes to the listener's SensorSample (and the
+// position estimate), and querying the position estimate.
+// gc.alloc.rate.norm should be 0: samples are decoded into primitive arrays.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SensorStreamBenchmark {
+
+    // SensorStream flags: attitude only, or everything
+    @Param({"1", "31"})
+    public int sensors;
+
+    private SpheroProtocol protocol;
+    private byte[] frame;
+    private float sum;
+    private final float[] position = new float[4];
+
+    @Setup
+    public void setup() {
+        protocol = new SpheroProtocol(frame -> true, (command, timeout_ms) -> { }, new SpheroProtocol.Listener() {
+            @Override
+            public void onBatteryVoltage(double volts) { }
+            @Override
+            public void onSensorSample(SensorSample sample) {
+                sum += sample.attitude[2];
+            }
+        }, ProtocolLog.NONE, true, 3, 500, 1);
+        protocol.configureSensorStream(sensors, SensorStream.MIN_INTERVAL_ms);
+
+        int channels = countChannels(sensors);
+        ByteBuffer payload = ByteBuffer.allocate(channels * 4);
+        for (int i = 0; i < channels; i++)
+            payload.putFloat(i * 1.5f);
+        frame = new PacketEncoder().encode(SpheroConstants.resetsInactivityTimeout, SpheroConstants.sensor, SpheroConstants.sensorResponse,
+                (byte)0, payload.array(), 0, payload.capacity()).clone();
+    }
+
+    private static int countChannels(int sensors) {
+        int channels = 0;
+        if ((sensors & SensorStream.ATTITUDE) != 0) channels += 3;
+        if ((sensors & SensorStream.ACCELEROMETER) != 0) channels += 3;
+        if ((sensors & SensorStream.GYROSCOPE) != 0) channels += 3;
+        if ((sensors & SensorStream.LOCATOR) != 0) channels += 2;
+        if ((sensors & SensorStream.VELOCITY) != 0) channels += 2;
+        return channels;
+    }
+
+    @Benchmark
+    public float receiveSample() {
+        protocol.receive(frame, 0, frame.length);
+        return sum;
+    }
+
+    // What a render loop pays to ask where the sphero is
+    @Benchmark
+    public float queryPosition() {
+        protocol.getPositionTracker().getPosition(position);
+        return position[0];
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.spheroandroid.benchmark;
+
+import com.example.spheroandroid.protocol.Clock;
+import com.example.spheroandroid.protocol.PacketEncoder;
+import com.example.spheroandroid.protocol.ProtocolLog;
+import com.example.spheroandroid.protocol.SpheroConstants;
+import com.example.spheroandroid.protocol.TransportOperationQueue;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+// GattTransport.write past its checks: encoded frames go through the TransportOperationQueue that
+// serializes the GATT operations. The GATT is replaced by adding up the lengths of the values
+// started, and each operation's callback arrives right away. gc.alloc.rate.norm should stay at 0 B/op.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TransportWriteBenchmark {
+
+    private static final byte FLAGS = SpheroConstants.requestsResponse | SpheroConstants.resetsInactivityTimeout;
+    private static final int WRITE = 0;
+
+    private PacketEncoder encoder;
+    private TransportOperationQueue queue;
+    private long bytesStarted;
+    private byte sequence;
+    private int heading;
+
+    @Setup
+    public void setup() {
+        encoder = new PacketEncoder();
+        queue = new TransportOperationQueue((type, target, value, length, writeType) -> {
+            bytesStarted += length;
+            return true;
+        }, ProtocolLog.NONE, Clock.SYSTEM, PacketEncoder.MAX_FRAME_SIZE, 32, 1_000_000_000L);
+    }
+
+    // A roll written while the GATT is idle, the usual case while driving
+    @Benchmark
+    public long rollWhileIdle() {
+        byte[] frame = roll();
+        queue.submit(WRITE, this, frame, frame.length, 0, false);
+        queue.complete();
+        return bytesStarted;
+    }
+
+    // Rolls written while an operation is outstanding, so they wait in the queue
+    @Benchmark
+    public long rollWhileBusy() {
+        byte[] frame = roll();
+        queue.submit(WRITE, this, frame, frame.length, 0, false);
+        frame = roll();
+        queue.submit(WRITE, this, frame, frame.length, 0, false);
+        frame = roll();
+        queue.submit(WRITE, this, frame, frame.length, 0, true);
+        queue.complete();
+        queue.complete();
+        queue.complete();
+        return bytesStarted;
+    }
+
+    private byte[] roll() {
+        heading = (heading + 1) % 360;
+        return encoder.encodeRoll(FLAGS, sequence++, 128, heading);
+    }
+}
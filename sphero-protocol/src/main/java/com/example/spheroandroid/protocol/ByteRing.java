@@ -0,0 +1,92 @@
+package com.example.spheroandroid.protocol;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Lock-free single-producer/single-consumer ring of bytes.
+// Used to hand received notifications from the thread the Bluetooth stack calls back on to the
+// BLE thread without allocating anything or going through the system: the producer copies each
+// notification in as soon as it arrives, and the consumer drains everything received so far into
+// the PacketDecoder (which doesn't care where one notification ends and the next begins).
+// Exactly one thread may call offer(), and exactly one (possibly different) thread may call
+// drainTo(). The other methods can be called from anywhere.
+public class ByteRing {
+
+    // Receives the drained bytes. Called once, or twice if the bytes wrap around the end of the ring.
+    // The buffer is the ring itself: it must not be kept after accept() returns.
+    public interface Consumer {
+        void accept(byte[] buffer, int offset, int length);
+    }
+
+    private final byte[] buffer;
+    private final int mask;
+    // Total number of bytes ever written (by the producer) and read (by the consumer).
+    // Each is only written by its own thread. lazySet() publishes the bytes before the index.
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    // Only written by the producer
+    private volatile long droppedCount;
+    private volatile long droppedBytes;
+
+    // capacity: a power of two
+    public ByteRing(int capacity) {
+        if(capacity < 1 || Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        buffer = new byte[capacity];
+        mask = capacity - 1;
+    }
+
+    // Producer only.
+    // Copies all of data into the ring, or none of it if there isn't enough room (so a partial
+    // notification never reaches the decoder). Returns false if it was dropped.
+    public boolean offer(byte[] data, int offset, int length) {
+        long h = head.get();
+        if(length > buffer.length - (h - tail.get())) {
+            droppedCount++;
+            droppedBytes += length;
+            return false;
+        }
+        int start = (int)(h & mask);
+        int first = Math.min(length, buffer.length - start);
+        System.arraycopy(data, offset, buffer, start, first);
+        System.arraycopy(data, offset + first, buffer, 0, length - first);
+        head.lazySet(h + length);
+        return true;
+    }
+    public boolean offer(byte[] data) {
+        return offer(data, 0, data.length);
+    }
+
+    // Consumer only.
+    // Passes every byte available to the consumer, then frees their room in the ring.
+    // Returns the number of bytes drained.
+    public int drainTo(Consumer consumer) {
+        long t = tail.get();
+        int available = (int)(head.get() - t);
+        if(available == 0)
+            return 0;
+        int start = (int)(t & mask);
+        int first = Math.min(available, buffer.length - start);
+        consumer.accept(buffer, start, first);
+        if(first < available)
+            consumer.accept(buffer, 0, available - first);
+        tail.lazySet(t + available);
+        return available;
+    }
+
+    public boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+    public int size() {
+        return (int)(head.get() - tail.get());
+    }
+    public int getCapacity() {
+        return buffer.length;
+    }
+    // Offers dropped because the ring was full, and how many bytes they held
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+    public long getDroppedBytes() {
+        return droppedBytes;
+    }
+}
@@ -0,0 +1,15 @@
+package com.example.spheroandroid.protocol;
+
+// Monotonic time of the protocol's thread. The system clock on a device; a VirtualScheduler's
+// clock in simulations and tests, so timeouts and round trip times follow virtual time.
+public interface Clock {
+
+    Clock SYSTEM = System::nanoTime;
+
+    // Like System.nanoTime(): only differences between values mean anything.
+    long nanoTime();
+
+    default long uptimeMillis() {
+        return nanoTime() / 1_000_000;
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.spheroandroid.protocol;
+
+// A collision reported by the sphero (see CollisionDetector).
+// The decoder reuses a single Collision for every packet, so a listener that keeps one past its
+// callback must copy it (copyFrom()).
+public class Collision {
+
+    // Axes flags: the axes whose threshold was exceeded
+    public static final int AXIS_X = 0x01;
+    public static final int AXIS_Y = 0x02;
+
+    // Acceleration at impact: X, Y, Z (g)
+    public final float[] acceleration = new float[3];
+    // AXIS_X and/or AXIS_Y
+    public int axes;
+    // Magnitude of the impact on each axis: X, Y, Z (the sphero's own units, compared to the thresholds)
+    public final int[] power = new int[3];
+    // Speed of the sphero at impact (0 - 255)
+    public int speed;
+    // The sphero's clock when it detected the collision (ms since it powered on)
+    public long sensorTime_ms;
+    // When the notification holding the packet arrived from the Bluetooth stack (System.nanoTime())
+    public long arrival_ns;
+    // When the packet was decoded (System.nanoTime())
+    public long decoded_ns;
+
+    public boolean hasAxis(int axis) {
+        return (axes & axis) != 0;
+    }
+
+    public void copyFrom(Collision other) {
+        System.arraycopy(other.acceleration, 0, acceleration, 0, acceleration.length);
+        axes = other.axes;
+        System.arraycopy(other.power, 0, power, 0, power.length);
+        speed = other.speed;
+        sensorTime_ms = other.sensorTime_ms;
+        arrival_ns = other.arrival_ns;
+        decoded_ns = other.decoded_ns;
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.spheroandroid.protocol;
+
+// Configures the sphero's collision detection and decodes the collisionDetectedAsync packets it sends.
+//
+// Detection is set up with two commands:
+// - configureCollision: method (uint8, 0 turns detection off), X threshold, Y threshold, X speed,
+//   Y speed (uint8 each) and dead time (uint8, in 10 ms units).
+//   A collision is reported when the impact on an axis exceeds its threshold plus its speed
+//   factor scaled by the current speed. No other collision is reported during the dead time.
+// - enableCollisionAsync: 1 to send collisionDetectedAsync packets, 0 to stop.
+// Every collision then arrives in an 18 byte collisionDetectedAsync packet, all big-endian:
+// acceleration X, Y, Z (int16, 1/4096 g), axes (uint8), power X, Y, Z (int16), speed (uint8),
+// timestamp (uint32, ms).
+// Not thread-safe: used from the protocol's thread.
+public class CollisionDetector {
+
+    // Detection methods
+    public static final int METHOD_OFF = 0;
+    public static final int METHOD_ACCELEROMETER = 1;
+
+    // Thresholds that detect bumping into walls at moderate speeds without reacting to rough floors
+    public static final int DEFAULT_THRESHOLD = 100;
+    public static final int DEFAULT_SPEED = 100;
+    public static final int DEFAULT_DEAD_TIME_ms = 100;
+
+    static final int PAYLOAD_LENGTH = 18;
+    private static final float ACCELERATION_SCALE_g = 1f / 4096;
+
+    private boolean enabled;
+    private final Collision collision = new Collision();
+    private long collisionCount;
+    private long malformedCount;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+    public long getCollisionCount() {
+        return collisionCount;
+    }
+    // collisionDetectedAsync packets that weren't PAYLOAD_LENGTH bytes long
+    public long getMalformedCount() {
+        return malformedCount;
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    // Payload of the configureCollision command. Returns its length.
+    // Thresholds and speeds are clamped to 0 - 255, and the dead time to 0 - 2550 ms.
+    static int configurePayload(byte[] dst, int offset, int method, int thresholdX, int thresholdY, int speedX, int speedY, int deadTime_ms) {
+        dst[offset] = (byte)method;
+        dst[offset + 1] = (byte)clamp(thresholdX);
+        dst[offset + 2] = (byte)clamp(thresholdY);
+        dst[offset + 3] = (byte)clamp(speedX);
+        dst[offset + 4] = (byte)clamp(speedY);
+        dst[offset + 5] = (byte)clamp((deadTime_ms + 5) / 10);
+        return 6;
+    }
+
+    // Decodes a collisionDetectedAsync payload into the collision, without allocating.
+    // Returns the collision, which is reused by the next call, or null if the payload is malformed.
+    Collision decode(byte[] packet, int offset, int length, long arrival_ns, long decoded_ns) {
+        if(length != PAYLOAD_LENGTH) {
+            malformedCount++;
+            return null;
+        }
+        for(int i = 0; i < 3; i++)
+            collision.acceleration[i] = getShort(packet, offset + i * 2) * ACCELERATION_SCALE_g;
+        collision.axes = packet[offset + 6] & (Collision.AXIS_X | Collision.AXIS_Y);
+        for(int i = 0; i < 3; i++)
+            collision.power[i] = getShort(packet, offset + 7 + i * 2);
+        collision.speed = packet[offset + 13] & 0xFF;
+        collision.sensorTime_ms = (((packet[offset + 14] & 0xFF) << 24)
+                | ((packet[offset + 15] & 0xFF) << 16)
+                | ((packet[offset + 16] & 0xFF) << 8)
+                | (packet[offset + 17] & 0xFF)) & 0xFFFFFFFFL;
+        collision.arrival_ns = arrival_ns;
+        collision.decoded_ns = decoded_ns;
+        collisionCount++;
+        return collision;
+    }
+
+    private static int getShort(byte[] src, int offset) {
+        return (short)(((src[offset] & 0xFF) << 8) | (src[offset + 1] & 0xFF));
+    }
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(0xFF, value));
+    }
+}
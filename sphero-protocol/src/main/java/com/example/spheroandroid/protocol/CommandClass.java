@@ -0,0 +1,51 @@
+package com.example.spheroandroid.protocol;
+
+// Quality-of-service class of an acknowledged command. Decides how the CommandTracker queues,
+// prioritizes, sheds and resends it. Classes are listed from the highest priority to the lowest:
+// when there is room to send a command, the oldest command of the highest-priority class that
+// has one waiting goes first.
+// (There is no class for rolls: they are sent without acknowledgements, see
+// CommandTracker.sendUnacknowledged().)
+public enum CommandClass {
+    // rollStop. Skips the queue and the in-flight window: it is always the next frame written.
+    EMERGENCY_STOP(1, OverflowPolicy.COALESCE, 6, true),
+    // LEDs, heading, stabilization, wake/sleep: every one of them matters, so none are shed.
+    CONFIGURATION(8, OverflowPolicy.QUEUE_UNBOUNDED, CommandClass.CONFIGURED_ATTEMPTS, false),
+    // Battery voltage, etc. Asking twice before getting an answer is the same as asking once.
+    TELEMETRY_QUERY(2, OverflowPolicy.COALESCE, 2, false);
+
+    // What happens when a command is queued while its class already has capacity commands waiting to be sent.
+    public enum OverflowPolicy {
+        // A waiting command of the same type (device and command ID) is replaced by the new one,
+        // keeping its place in the queue. (This happens even if the queue isn't full.)
+        // If there is none and the queue is full, the oldest waiting command is dropped.
+        COALESCE,
+        // The oldest waiting command is dropped.
+        DROP_OLDEST,
+        // The new command is dropped.
+        DROP_NEWEST,
+        // Nothing is dropped: the command is queued past capacity anyway, and counted. Nothing can
+        // block either, since acknowledgements arrive on the thread that sends. Callers that can
+        // hold off should check CommandTracker.canAccept() first.
+        QUEUE_UNBOUNDED
+    }
+
+    // maxSendAttempts value meaning the resendAttempts given to the CommandTracker
+    static final int CONFIGURED_ATTEMPTS = 0;
+
+    // Number of commands that can wait to be sent before the overflow policy applies
+    public final int capacity;
+    public final OverflowPolicy overflowPolicy;
+    // Retry budget: the number of times a command is sent (including resends) before giving up
+    final int maxSendAttempts;
+    // Continuous commands replace older commands of the same type, which are then no longer resent.
+    // Other commands are sent one at a time (see CommandTracker).
+    public final boolean continuous;
+
+    CommandClass(int capacity, OverflowPolicy overflowPolicy, int maxSendAttempts, boolean continuous) {
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.maxSendAttempts = maxSendAttempts;
+        this.continuous = continuous;
+    }
+}
@@ -0,0 +1,600 @@
+package com.example.spheroandroid.protocol;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+// Sends commands to the sphero, assigning their sequence numbers, and keeps track of the
+// commands that are waiting for an acknowledgement so they can be resent if they time out.
+// Commands that have been sent are kept in a table indexed by their sequence number, so
+// acknowledgements are matched without searching. Commands that haven't been sent yet wait in
+// one FIFO per CommandClass and only get a sequence number when they are sent. Each class has
+// its own priority, capacity, overflow policy and retry budget (see CommandClass).
+//
+// Up to windowSize commands may be waiting for an acknowledgement at once, each with its own
+// resend timer. Ordering guarantees:
+// - EMERGENCY_STOP commands are written immediately, even when the window is full, ahead of the
+//   queued commands and of the frames waiting to be written (see FrameWriter.writeUrgentFrame()).
+//   Once a newer stop (or roll) is sent, older stops are no longer resent, so a resent stop can't
+//   arrive after a newer drive command. It may arrive after CONFIGURATION or TELEMETRY_QUERY
+//   commands sent after it.
+// - CONFIGURATION commands are sent before TELEMETRY_QUERY commands. Within a class, commands are
+//   sent for the first time in the order they were queued (FIFO).
+// - CONFIGURATION and TELEMETRY_QUERY commands are strictly ordered among themselves: one isn't
+//   sent while another is waiting for its acknowledgement, so a resent one can never arrive after
+//   the ones sent after it. A query queued before a configuration command may still be sent after it.
+// - Rolls (sendUnacknowledged()) are written right away and never resent.
+// With a window of 1, every command waits for the previous one (stop-and-wait).
+// Command records come from a pool and are reused across resends and for later commands, so
+// once the pool has grown to the deepest queue seen, sending, resending and acknowledging
+// commands allocates nothing. A record is only reused once its resend timer has been dropped
+// (see ResendTimer.cancelResendTimer()).
+// All methods must be called from the same thread (the BLE thread, on Android).
+public class CommandTracker {
+
+    public static final String TAG = "CommandTracker";
+
+    // Told what became of the acknowledged commands. Called on the tracker's thread.
+    public interface Listener {
+        // rtt_ms: time from sending the command (the last time, if it was resent) to its acknowledgement
+        default void onAcknowledged(byte deviceID, byte commandID, CommandClass commandClass, long rtt_ms) {}
+        // The command was never acknowledged and won't be resent anymore.
+        // (Not called for continuous commands that were replaced by newer ones.)
+        default void onGaveUp(byte deviceID, byte commandID, CommandClass commandClass) {}
+    }
+
+    // Flags sent with every command
+    private final static byte COMMAND_FLAGS = SpheroConstants.requestsResponse | SpheroConstants.resetsInactivityTimeout;
+    // Flags sent with unacknowledged commands: the sphero only responds if the command failed
+    private final static byte UNACKNOWLEDGED_COMMAND_FLAGS = SpheroConstants.requestsOnlyErrorResponse | SpheroConstants.resetsInactivityTimeout;
+
+    private static final CommandClass[] CLASSES = CommandClass.values();
+
+    // One slot for every value of the sequence byte
+    private static final int SEQUENCE_SLOTS = 256;
+    // Largest in-flight window. Keeps sequence numbers of commands in flight far apart from the
+    // ones being reused.
+    public static final int MAX_WINDOW_SIZE = SEQUENCE_SLOTS / 2;
+
+    // Bounds of the resend timeout. The timeout is estimated from the round trip times of
+    // acknowledged commands (see RttEstimator), starting from messageTimeout_ms.
+    public static final int MIN_RESEND_TIMEOUT_ms = 30;
+    public static final int MAX_RESEND_TIMEOUT_ms = 2000;
+
+    private final PacketEncoder encoder;
+    private final FrameWriter writer;
+    private final ResendTimer resendTimer;
+    private final ProtocolLog log;
+    // Times round trips and queueing
+    private final Clock clock;
+    private Listener listener;
+    private final boolean waitForResponse;
+    private final int resendAttempts;
+    private final int windowSize;
+    // Round trip times of single commands and of continuous commands, which the sphero may handle differently
+    private final RttEstimator singleRtt;
+    private final RttEstimator continuousRtt;
+
+    // Commands that have been sent and are waiting to receive a response or be timed out,
+    // indexed by sequence number (as an unsigned byte).
+    private final ResponseCommand[] inFlight = new ResponseCommand[SEQUENCE_SLOTS];
+    // Incremented every time a slot is filled or emptied. A command remembers the generation of
+    // the slot it was sent in, so a timer for a command that has since been acknowledged, resent or
+    // dropped (possibly with its sequence number reused) is recognized as stale.
+    private final int[] slotGeneration = new int[SEQUENCE_SLOTS];
+    private int inFlightCount;
+    // Number of in-flight commands that aren't continuous (at most 1)
+    private int singleInFlightCount;
+    // Commands waiting to be sent, for each CommandClass (by ordinal), in the order they will be sent.
+    private final ArrayDeque<ResponseCommand>[] pending;
+    private int pendingCount;
+    // Free command records
+    private final ArrayDeque<ResponseCommand> pool;
+    private int allocatedCount;
+    // Statistics for each CommandClass (by ordinal)
+    private final long[] queuedCount = new long[CLASSES.length];
+    private final long[] sentCount = new long[CLASSES.length];
+    private final long[] resentCount = new long[CLASSES.length];
+    private final long[] acknowledgedCount = new long[CLASSES.length];
+    private final long[] coalescedCount = new long[CLASSES.length];
+    private final long[] droppedCount = new long[CLASSES.length];
+    private final long[] overCapacityCount = new long[CLASSES.length];
+    private final long[] gaveUpCount = new long[CLASSES.length];
+    private final int[] maxPendingCount = new int[CLASSES.length];
+    // Sequence number of the next command sent.
+    private byte sequenceNumber;
+    // False until the connection is ready for I/O. Commands are dropped until then.
+    private boolean initialized;
+
+    // See SpheroController for the meaning of waitForResponse, resendAttempts, messageTimeout_ms and windowSize.
+    public CommandTracker(PacketEncoder encoder, FrameWriter writer, ResendTimer resendTimer, ProtocolLog log,
+                          boolean waitForResponse, int resendAttempts, int messageTimeout_ms, int windowSize) {
+        this(encoder, writer, resendTimer, log, Clock.SYSTEM, waitForResponse, resendAttempts, messageTimeout_ms, windowSize);
+    }
+    // clock: the clock of the thread the resend timers run on, so round trips are timed the way the timeouts are
+    public CommandTracker(PacketEncoder encoder, FrameWriter writer, ResendTimer resendTimer, ProtocolLog log, Clock clock,
+                          boolean waitForResponse, int resendAttempts, int messageTimeout_ms, int windowSize) {
+        if(windowSize < 1 || windowSize > MAX_WINDOW_SIZE)
+            throw new IllegalArgumentException("windowSize must be between 1 and " + MAX_WINDOW_SIZE + ": " + windowSize);
+        this.encoder = encoder;
+        this.writer = writer;
+        this.resendTimer = resendTimer;
+        this.log = log;
+        this.clock = clock;
+        this.waitForResponse = waitForResponse;
+        this.resendAttempts = resendAttempts;
+        singleRtt = new RttEstimator(messageTimeout_ms, MIN_RESEND_TIMEOUT_ms, Math.max(MAX_RESEND_TIMEOUT_ms, messageTimeout_ms));
+        continuousRtt = new RttEstimator(messageTimeout_ms, MIN_RESEND_TIMEOUT_ms, Math.max(MAX_RESEND_TIMEOUT_ms, messageTimeout_ms));
+        this.windowSize = windowSize;
+        sequenceNumber = 0;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ArrayDeque<ResponseCommand>[] queues = new ArrayDeque[CLASSES.length];
+        for(CommandClass commandClass : CLASSES)
+            queues[commandClass.ordinal()] = new ArrayDeque<>(commandClass.capacity);
+        pending = queues;
+        // Enough records for a full window and full queues
+        int poolSize = windowSize;
+        for(CommandClass commandClass : CLASSES)
+            poolSize += commandClass.capacity;
+        pool = new ArrayDeque<>(poolSize);
+        for(int i = 0; i < poolSize; i++)
+            pool.push(new ResponseCommand());
+        allocatedCount = poolSize;
+        initialized = false;
+    }
+
+    // Forgets every queued command. Called when (re)connecting.
+    // Timers that are still running for sent commands will be ignored.
+    public void reset() {
+        sequenceNumber = 0;
+        for(int slot = 0; slot < SEQUENCE_SLOTS; slot++) {
+            ResponseCommand command = inFlight[slot];
+            if(command != null)
+                discard(command, retire(slot));
+        }
+        // (inFlightCount and singleInFlightCount are now 0)
+        for(ArrayDeque<ResponseCommand> queue : pending) {
+            while(!queue.isEmpty())
+                discard(queue.poll(), true);
+        }
+        pendingCount = 0;
+        initialized = false;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public boolean isInitialized() {
+        return initialized;
+    }
+    public void setInitialized(boolean initialized) {
+        this.initialized = initialized;
+    }
+
+    // Number of commands either waiting to be sent or waiting for an acknowledgement
+    public int getQueueSize() {
+        return inFlightCount + pendingCount;
+    }
+    public int getInFlightCount() {
+        return inFlightCount;
+    }
+    public int getWindowSize() {
+        return windowSize;
+    }
+    // Round trip time estimate used for the resend timeout of continuous or single commands
+    public RttEstimator getRttEstimator(boolean continuous) {
+        return continuous ? continuousRtt : singleRtt;
+    }
+    public int getPendingCount() {
+        return pendingCount;
+    }
+    // Command records created so far (the pool only grows when the queues are deeper than ever)
+    public int getAllocatedCommandCount() {
+        return allocatedCount;
+    }
+    public int getFreeCommandCount() {
+        return pool.size();
+    }
+
+    // Per-class queue depth and counters
+    public int getPendingCount(CommandClass commandClass) {
+        return pending[commandClass.ordinal()].size();
+    }
+    public int getMaxPendingCount(CommandClass commandClass) {
+        return maxPendingCount[commandClass.ordinal()];
+    }
+    public long getQueuedCount(CommandClass commandClass) {
+        return queuedCount[commandClass.ordinal()];
+    }
+    // First transmissions (not counting resends)
+    public long getSentCount(CommandClass commandClass) {
+        return sentCount[commandClass.ordinal()];
+    }
+    public long getResentCount(CommandClass commandClass) {
+        return resentCount[commandClass.ordinal()];
+    }
+    public long getAcknowledgedCount(CommandClass commandClass) {
+        return acknowledgedCount[commandClass.ordinal()];
+    }
+    // Commands replaced by a newer one of the same type before being sent
+    public long getCoalescedCount(CommandClass commandClass) {
+        return coalescedCount[commandClass.ordinal()];
+    }
+    // Commands dropped before being sent (by the overflow policy or removeCommandsOfType())
+    public long getDroppedCount(CommandClass commandClass) {
+        return droppedCount[commandClass.ordinal()];
+    }
+    // Commands queued past capacity by the QUEUE_UNBOUNDED policy
+    public long getOverCapacityCount(CommandClass commandClass) {
+        return overCapacityCount[commandClass.ordinal()];
+    }
+    // Commands given up on after using up their retry budget
+    public long getGaveUpCount(CommandClass commandClass) {
+        return gaveUpCount[commandClass.ordinal()];
+    }
+
+    // False if the class is full, so a new command would be shed (or, for QUEUE_UNBOUNDED, queued past capacity).
+    public boolean canAccept(CommandClass commandClass) {
+        return pending[commandClass.ordinal()].size() < commandClass.capacity;
+    }
+
+    // Sends a command, or queues it if we are waiting for the sphero to acknowledge earlier ones.
+    // The payload is copied if it needs to be kept.
+    public void send(byte deviceID, byte commandID, byte[] payload, int payloadLength, CommandClass commandClass) {
+        if(!initialized) {
+            log.w(TAG, "Failed to send message (not yet initialized for I/O)");
+            return;
+        }
+
+        if(waitForResponse) {
+            int c = commandClass.ordinal();
+            queuedCount[c]++;
+            if(!enqueue(deviceID, commandID, payload, payloadLength, commandClass))
+                return;
+            if(log.isVerbose())
+                log.v(TAG, "Added fresh command: " + String.format("%02X, %02X", deviceID, commandID) + " | " + commandClass + " queue size: " + pending[c].size());
+
+            // If there is room in the window, it is safe to send this command now.
+            // Otherwise, it will be sent by send_nextCommandInQueue() through acknowledge() or onTimeout()
+            send_nextCommandInQueue();
+        } else {
+            // Not waiting for responses. Bypass the response queue altogether.
+            // Just send commands to the sphero without worrying about if they get received.
+            write(pack_command(deviceID, commandID, payload, payloadLength, sequenceNumber), commandClass);
+            log.v(TAG, "Sending this fresh command now. Not awaiting a response.");
+            sequenceNumber++;
+        }
+    }
+
+    // Sends a command right away without waiting for (or expecting) an acknowledgement, and
+    // without resending it. Meant for commands that are sent continuously and are worthless
+    // once the next one is sent, like roll: a lost one is replaced by the next one soon anyway.
+    // The frame is written without a link-layer response, and the sphero only responds to the
+    // command if it fails.
+    // Older commands of the same type that are waiting for an acknowledgement stop being resent.
+    // Returns false if the frame wasn't handed to the transport.
+    public boolean sendUnacknowledged(byte deviceID, byte commandID, byte[] payload, int payloadLength) {
+        if(!initialized) {
+            log.w(TAG, "Failed to send message (not yet initialized for I/O)");
+            return false;
+        }
+        if(inFlightCount > 0) {
+            stopResendingInFlight(deviceID, commandID);
+            // Skip sequence numbers that are still waiting for an acknowledgement, so that an error
+            // response to this command can't be mistaken for one.
+            while(inFlight[sequenceNumber & 0xff] != null)
+                sequenceNumber++;
+        }
+        boolean written = writer.writeFrameWithoutResponse(encoder.encode(UNACKNOWLEDGED_COMMAND_FLAGS, deviceID, commandID, sequenceNumber, payload, 0, payloadLength));
+        sequenceNumber++;
+        return written;
+    }
+
+    // Called when the sphero acknowledges the command with the given sequence number.
+    // Removes the command from the queue and sends the next one(s).
+    // Returns the acknowledged command, or null if no command is waiting for that sequence number
+    // (for example, the acknowledgement was for a command that has since been resent).
+    // The returned record is reused for later commands: read it before sending anything else.
+    public ResponseCommand acknowledge(byte sequence) {
+        if(!waitForResponse)
+            return null;
+
+        int slot = sequence & 0xff;
+        ResponseCommand command = inFlight[slot];
+        if(command == null) {
+            if(log.isVerbose()) {
+                log.w(TAG, "Found no matching command! Queue size: " + getQueueSize() + " | sequence: " + String.format("%02X ", sequence));
+                log.w(TAG, "Perhaps it was resent/discarded after timing out, and this acknowledgement was for the original message.");
+            }
+            return null;
+        }
+        boolean timerDropped = retire(slot);
+        command.markReceived();
+        acknowledgedCount[command.getCommandClass().ordinal()]++;
+        long now_ms = clock.uptimeMillis();
+        long rtt_ms = command.timeSinceSent(now_ms);
+        getRttEstimator(command.getContinuous()).addSample(rtt_ms);
+        if(listener != null)
+            listener.onAcknowledged(command.deviceID, command.commandID, command.getCommandClass(), rtt_ms);
+        if(log.isVerbose())
+            log.v(TAG, "Found matching command. Queue size: " + getQueueSize() + " | time taken: " + rtt_ms + ", since queued: " + command.timeSinceQueued(now_ms));
+
+        // Because the Sphero has acknowledged a command, it is now ready(?) for the next one.
+        // Immediately send the next command, if it exists.
+        send_nextCommandInQueue();
+        if(timerDropped)
+            recycle(command);
+        return command;
+    }
+
+    // Called by the ResendTimer. Resends the command if it still hasn't been acknowledged.
+    public void onTimeout(ResponseCommand command) {
+        if(command.getState() != ResponseCommand.State.SENT) {
+            // good! Message was received. (Or it was given up on.)
+            return;
+        }
+        int slot = command.getSequence() & 0xff;
+        if(inFlight[slot] != command || slotGeneration[slot] != command.getGeneration()) {
+            // The command was already resent or dropped (e.g. by reset())
+            return;
+        }
+        if(log.isVerbose())
+            log.v(TAG, "Timed out... and wasn't received! | sequence: " + String.format("%02X ", command.getSequence()));
+        // No acknowledgement from the sphero... Try again, up to N attempts total.
+        // Send it again with a new sequence number, current time, etc.
+        getRttEstimator(command.getContinuous()).backoff();
+        resend_command(command);
+    }
+
+    // Removes commands that haven't been sent yet that match deviceId and commandID, of any class.
+    // Commands of that type that have already been sent are waiting for a response/timeout,
+    // so they are kept. If they time out, don't send them again.
+    public void removeCommandsOfType(byte deviceID, byte commandID) {
+        stopResendingInFlight(deviceID, commandID);
+        for(int c = 0; c < CLASSES.length; c++) {
+            Iterator<ResponseCommand> iter = pending[c].iterator();
+            while(iter.hasNext()) {
+                ResponseCommand el = iter.next();
+
+                if(el.getDeviceID() == deviceID && el.getCommandID() == commandID) {
+                    iter.remove();
+                    discard(el, true);
+                    pendingCount--;
+                    droppedCount[c]++;
+                }
+            }
+        }
+    }
+
+    // One line per class: queue depth and counters
+    public String getStatistics() {
+        StringBuilder builder = new StringBuilder();
+        for(CommandClass commandClass : CLASSES) {
+            int c = commandClass.ordinal();
+            builder.append(commandClass)
+                    .append(": pending ").append(pending[c].size()).append(" (max ").append(maxPendingCount[c]).append(")")
+                    .append(" | queued ").append(queuedCount[c])
+                    .append(" | sent ").append(sentCount[c])
+                    .append(" | resent ").append(resentCount[c])
+                    .append(" | acknowledged ").append(acknowledgedCount[c])
+                    .append(" | coalesced ").append(coalescedCount[c])
+                    .append(" | dropped ").append(droppedCount[c])
+                    .append(" | over capacity ").append(overCapacityCount[c])
+                    .append(" | gave up ").append(gaveUpCount[c])
+                    .append('\n');
+        }
+        return builder.toString();
+    }
+
+    // Adds a command to its class' queue, applying the class' overflow policy.
+    // Returns false if the new command was dropped.
+    private boolean enqueue(byte deviceID, byte commandID, byte[] payload, int payloadLength, CommandClass commandClass) {
+        int c = commandClass.ordinal();
+        ArrayDeque<ResponseCommand> queue = pending[c];
+        if(commandClass.overflowPolicy == CommandClass.OverflowPolicy.COALESCE) {
+            for(ResponseCommand waiting : queue) {
+                if(waiting.deviceID == deviceID && waiting.commandID == commandID) {
+                    waiting.coalesce(payload, payloadLength);
+                    coalescedCount[c]++;
+                    return true;
+                }
+            }
+        }
+        if(queue.size() >= commandClass.capacity) {
+            switch(commandClass.overflowPolicy) {
+                case COALESCE:
+                case DROP_OLDEST:
+                    log.i(TAG, commandClass + " queue full (" + queue.size() + "). Dropping the oldest command.");
+                    discard(queue.poll(), true);
+                    pendingCount--;
+                    droppedCount[c]++;
+                    break;
+                case DROP_NEWEST:
+                    log.i(TAG, commandClass + " queue full (" + queue.size() + "). Dropping the new command.");
+                    droppedCount[c]++;
+                    return false;
+                case QUEUE_UNBOUNDED:
+                    log.i(TAG, commandClass + " queue full (" + queue.size() + "). Queueing past capacity.");
+                    overCapacityCount[c]++;
+                    break;
+            }
+        }
+        ResponseCommand command = pool.poll();
+        if(command == null) {
+            command = new ResponseCommand();
+            allocatedCount++;
+        }
+        command.queue(deviceID, commandID, payload, payloadLength, commandClass, clock.uptimeMillis());
+        queue.add(command);
+        pendingCount++;
+        if(queue.size() > maxPendingCount[c])
+            maxPendingCount[c] = queue.size();
+        return true;
+    }
+
+    // Retry budget of the command's class
+    private int maxSendAttempts(CommandClass commandClass) {
+        return commandClass.maxSendAttempts == CommandClass.CONFIGURED_ATTEMPTS ? resendAttempts : commandClass.maxSendAttempts;
+    }
+
+    // Constructs a command to send to the Sphero using its communication protocol.
+    // See PacketEncoder for the packet structure.
+    // The returned frame is reused by the encoder, so write it before packing another command.
+    private byte[] pack_command(byte deviceID, byte commandID, byte[] payload, int payloadLength, byte sequence) {
+        return encoder.encode(COMMAND_FLAGS, deviceID, commandID, sequence, payload, 0, payloadLength);
+    }
+
+    // Sends commands from the front of the queues while there is room in the window, highest
+    // priority class first. Emergency stops are sent even if the window is full.
+    private void send_nextCommandInQueue() {
+        if(!initialized) {
+            log.w(TAG, "Failed to send message (not yet initialized for I/O)");
+            return;
+        }
+        // The previous command was just acknowledged, or we gave up on resending it.
+        // Send the next command in the queue.
+        ArrayDeque<ResponseCommand> stops = pending[CommandClass.EMERGENCY_STOP.ordinal()];
+        while(!stops.isEmpty())
+            send_firstCommandOf(stops);
+        while(pendingCount > 0 && inFlightCount < windowSize) {
+            ArrayDeque<ResponseCommand> next = null;
+            for(int c = 0; c < CLASSES.length && next == null; c++) {
+                ResponseCommand command = pending[c].peek();
+                // Wait for the single command in flight before sending another
+                if(command != null && (command.getContinuous() || singleInFlightCount == 0))
+                    next = pending[c];
+            }
+            if(next == null)
+                return;
+            send_firstCommandOf(next);
+        }
+    }
+
+    private void send_firstCommandOf(ArrayDeque<ResponseCommand> queue) {
+        ResponseCommand command = queue.poll();
+        pendingCount--;
+        sentCount[command.getCommandClass().ordinal()]++;
+        if(log.isVerbose())
+            log.v(TAG, "Sending first " + command.getCommandClass() + " command in queue: " + String.format("%02X, %02X", command.deviceID, command.commandID) + " | Queue size: " + getQueueSize() + " | sequence: " + String.format("%02X ", sequenceNumber) + " | times sent: " + command.getSendAttemptsCount());
+        transmit(command);
+    }
+
+    // Resend a command after its acknowledgement wasn't received after the timeout.
+    private void resend_command(ResponseCommand command) {
+        if(!waitForResponse) {
+            log.e(TAG, "Attempted to resend a command when waitForResponse was false.");
+            return;
+        }
+        if(!initialized) {
+            log.w(TAG, "Failed to send message (not yet initialized for I/O)");
+            return;
+        }
+        // Remove the old message. An acknowledgement for its sequence number will now be ignored.
+        boolean timerDropped = retire(command.getSequence() & 0xff);
+
+        int sendAttemptsCount = command.getSendAttemptsCount() + 1;
+
+        // Resend the command, if it hasn't used up its class' retry budget.
+        // Also don't resend it if newer commands replaced it.
+        if(sendAttemptsCount >= maxSendAttempts(command.getCommandClass()) || command.isResendStopped()) {
+            log.w(TAG, "Command failed to send " + sendAttemptsCount + " time(s): " + String.format("%02X %02X  | sequence: %02X", command.deviceID, command.commandID, command.sequence));
+            gaveUpCount[command.getCommandClass().ordinal()]++;
+            if(listener != null && !command.isResendStopped())
+                listener.onGaveUp(command.deviceID, command.commandID, command.getCommandClass());
+            discard(command, timerDropped);
+
+            // Give up on this command. send the next one.
+            send_nextCommandInQueue();
+        } else {
+            // Resent right away, ahead of the queued commands, in the same record with a new sequence number.
+            // (The timer that just ran was its only one.)
+            resentCount[command.getCommandClass().ordinal()]++;
+            command.markResent();
+            if(log.isVerbose())
+                log.v(TAG, "Resending command. Queue size: " + getQueueSize() + " | sequence: " + String.format("%02X ", sequenceNumber) + " | times sent: " + command.getSendAttemptsCount());
+            transmit(command);
+        }
+    }
+
+    // Gives the command the next sequence number, sends it and waits for its acknowledgement.
+    private void transmit(ResponseCommand command) {
+        int slot = sequenceNumber & 0xff;
+        if(inFlight[slot] != null) {
+            // Only possible if a command has been waiting through 256 other commands.
+            log.e(TAG, "Sequence number " + String.format("%02X", sequenceNumber) + " is still waiting for an acknowledgement. Dropping the old command.");
+            ResponseCommand old = inFlight[slot];
+            discard(old, retire(slot));
+        }
+        // Older stops are now out of date, so don't resend them
+        if(command.getContinuous())
+            stopResendingInFlight(command.deviceID, command.commandID);
+        command.sequence = sequenceNumber;
+        command.generation = ++slotGeneration[slot];
+        inFlight[slot] = command;
+        inFlightCount++;
+        if(!command.getContinuous())
+            singleInFlightCount++;
+
+        write(pack_command(command.deviceID, command.commandID, command.payload, command.payloadLength, sequenceNumber), command.getCommandClass());
+        // Resend the message if it isn't AWK'd soon enough
+        startResendTimer(command);
+        sequenceNumber++;
+    }
+
+    // Emergency stops are written ahead of the frames still waiting to be written.
+    private void write(byte[] frame, CommandClass commandClass) {
+        if(commandClass == CommandClass.EMERGENCY_STOP)
+            writer.writeUrgentFrame(frame);
+        else
+            writer.writeFrame(frame);
+    }
+
+    // Empties an occupied slot of the in-flight table, dropping the command's resend timer.
+    // Returns false if the timer couldn't be dropped, in which case the record must not be reused.
+    private boolean retire(int slot) {
+        boolean timerDropped = resendTimer.cancelResendTimer(inFlight[slot]);
+        if(!inFlight[slot].getContinuous())
+            singleInFlightCount--;
+        inFlight[slot] = null;
+        slotGeneration[slot]++;
+        inFlightCount--;
+        return timerDropped;
+    }
+
+    // A command that won't be sent (anymore). Its record goes back to the pool if nothing refers to it.
+    private void discard(ResponseCommand command, boolean timerDropped) {
+        command.stopResending();
+        command.markDiscarded();
+        if(timerDropped)
+            recycle(command);
+    }
+
+    private void recycle(ResponseCommand command) {
+        command.markFree();
+        pool.push(command);
+    }
+
+    // Marks in-flight commands of this type so they are not resent if they time out.
+    private void stopResendingInFlight(byte deviceID, byte commandID) {
+        // Sent commands have the sequence numbers just before sequenceNumber.
+        for(int i = 1, found = 0; found < inFlightCount && i <= SEQUENCE_SLOTS; i++) {
+            ResponseCommand command = inFlight[(sequenceNumber - i) & 0xff];
+            if(command != null) {
+                if(command.deviceID == deviceID && command.commandID == commandID)
+                    command.stopResending();
+                found++;
+            }
+        }
+    }
+
+    private void startResendTimer(ResponseCommand command) {
+        command.markSent(clock.uptimeMillis());
+        // (TIMEOUT) milliseconds after a command has been sent, check if it has been received.
+        // The timeout adapts to the measured round trip times (see RttEstimator).
+        // If it hasn't been received, Send it again.
+        // Give up after this is attempted N times (decided in resend_command())
+        if(log.isVerbose())
+            log.v(TAG, "Starting timer... | sequence: " + String.format("%02X ", command.getSequence()));
+        resendTimer.startResendTimer(command, getRttEstimator(command.getContinuous()).getTimeout_ms());
+    }
+}
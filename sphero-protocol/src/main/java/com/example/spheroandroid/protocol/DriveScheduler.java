@@ -0,0 +1,176 @@
+package com.example.spheroandroid.protocol;
+
+// Decouples the rate of roll commands from the rate of input events.
+// The host calls tick() at a fixed rate (tickInterval_ms) with the latest input. A roll is only
+// sent when the input, quantized to speedStep/headingStep, has changed since the last roll that
+// was sent, or when keepalive_ms has passed without sending one (rolls can be lost, so the
+// latest one is repeated now and then).
+// Also keeps statistics on the tick timing and on how many ticks sent a roll, to help pick a
+// tick rate that keeps input-to-motion latency low without saturating the link.
+// All methods must be called from the same thread (the BLE thread, on Android).
+public class DriveScheduler {
+
+    public static final String TAG = "DriveScheduler";
+
+    private final SpheroProtocol protocol;
+    private int tickInterval_ms;
+    private final int speedStep;
+    private final int headingStep;
+    private int keepalive_ms;
+
+    // Last roll that was sent, quantized
+    private int lastSpeed, lastHeading;
+    private long lastSendTime;
+    private boolean sentAny;
+
+    // Statistics
+    private long tickCount;
+    private long sentCount;
+    private long keepaliveCount;
+    private long skippedUnchangedCount;
+    private long skippedBusyCount;
+    // Tick timing, since the sphero last started driving (reset() clears it)
+    private boolean hasLastTick;
+    private long lastTickTime;
+    private long tickIntervalCount;
+    private long totalTickInterval_ms;
+    private long maxTickInterval_ms;
+    // Ticks that came more than one tick interval late
+    private long lateTickCount;
+
+    // tickInterval_ms: how often the host calls tick()
+    // speedStep, headingStep: inputs are rounded to multiples of these before comparing them.
+    // keepalive_ms: an unchanged roll is sent again after this long. 0 to never send it again.
+    public DriveScheduler(SpheroProtocol protocol, int tickInterval_ms, int speedStep, int headingStep, int keepalive_ms) {
+        checkSchedule(tickInterval_ms, keepalive_ms);
+        if(speedStep < 1 || headingStep < 1)
+            throw new IllegalArgumentException("Invalid drive scheduler steps: " + speedStep + ", " + headingStep);
+        this.protocol = protocol;
+        this.tickInterval_ms = tickInterval_ms;
+        this.speedStep = speedStep;
+        this.headingStep = headingStep;
+        this.keepalive_ms = keepalive_ms;
+    }
+
+    // Throws IllegalArgumentException if the schedule can't be used, so that callers on other
+    // threads can check it before handing it to the scheduler's thread.
+    public static void checkSchedule(int tickInterval_ms, int keepalive_ms) {
+        if(tickInterval_ms < 1)
+            throw new IllegalArgumentException("Drive tick interval must be at least 1 ms: " + tickInterval_ms);
+        if(keepalive_ms < 0)
+            throw new IllegalArgumentException("Drive keepalive must not be negative: " + keepalive_ms);
+    }
+
+    // Changes the schedule, from the next tick on. The last roll sent and the statistics are kept.
+    public void configure(int tickInterval_ms, int keepalive_ms) {
+        checkSchedule(tickInterval_ms, keepalive_ms);
+        this.tickInterval_ms = tickInterval_ms;
+        this.keepalive_ms = keepalive_ms;
+    }
+
+    public int getTickInterval_ms() {
+        return tickInterval_ms;
+    }
+    public int getKeepalive_ms() {
+        return keepalive_ms;
+    }
+
+    // Forgets the last roll sent, so the next tick always sends. Called when the sphero stops.
+    // The tick timing statistics are cleared, since the time until driving again isn't a tick
+    // interval. The counts of ticks and rolls are kept.
+    public void reset() {
+        sentAny = false;
+        hasLastTick = false;
+        tickIntervalCount = 0;
+        totalTickInterval_ms = 0;
+        maxTickInterval_ms = 0;
+        lateTickCount = 0;
+    }
+
+    // Samples the latest input.
+    // speed: -255 - 255, heading: 0 - 360 (degrees)
+    // linkIdle: false if the link can't accept a write right now. The roll is then sent on a later tick.
+    // now_ms: current time, from a monotonic clock.
+    // Returns true if a roll was sent.
+    public boolean tick(int speed, int heading, boolean linkIdle, long now_ms) {
+        if(hasLastTick) {
+            long interval = now_ms - lastTickTime;
+            tickIntervalCount++;
+            totalTickInterval_ms += interval;
+            if(interval > maxTickInterval_ms)
+                maxTickInterval_ms = interval;
+            if(interval >= 2 * tickInterval_ms)
+                lateTickCount++;
+        }
+        hasLastTick = true;
+        lastTickTime = now_ms;
+        tickCount++;
+
+        speed = quantize(speed, speedStep);
+        heading = quantize(heading, headingStep) % 360;
+        if(heading < 0)
+            heading += 360;
+
+        boolean changed = !sentAny || speed != lastSpeed || heading != lastHeading;
+        boolean keepalive = !changed && keepalive_ms > 0 && now_ms - lastSendTime >= keepalive_ms;
+        if(!changed && !keepalive) {
+            skippedUnchangedCount++;
+            return false;
+        }
+        // If the link refuses the roll, it is sent again on the next tick
+        if(!linkIdle || !protocol.roll(speed, heading)) {
+            skippedBusyCount++;
+            return false;
+        }
+        lastSpeed = speed;
+        lastHeading = heading;
+        lastSendTime = now_ms;
+        sentAny = true;
+        sentCount++;
+        if(keepalive)
+            keepaliveCount++;
+        return true;
+    }
+
+    private static int quantize(int value, int step) {
+        if(value < 0)
+            return -quantize(-value, step);
+        return (value + step / 2) / step * step;
+    }
+
+    public long getTickCount() {
+        return tickCount;
+    }
+    // Includes keepalives
+    public long getSentCount() {
+        return sentCount;
+    }
+    public long getKeepaliveCount() {
+        return keepaliveCount;
+    }
+    public long getSkippedUnchangedCount() {
+        return skippedUnchangedCount;
+    }
+    // Ticks whose roll the link couldn't take (busy, or the write was refused)
+    public long getSkippedBusyCount() {
+        return skippedBusyCount;
+    }
+    public long getMaxTickInterval_ms() {
+        return maxTickInterval_ms;
+    }
+    public long getLateTickCount() {
+        return lateTickCount;
+    }
+    public double getAverageTickInterval_ms() {
+        return tickIntervalCount > 0 ? (double)totalTickInterval_ms / tickIntervalCount : 0;
+    }
+
+    public String getStatistics() {
+        return "ticks: " + tickCount
+                + " | sent: " + sentCount + " (keepalives: " + keepaliveCount + ")"
+                + " | skipped unchanged: " + skippedUnchangedCount
+                + " | skipped busy: " + skippedBusyCount
+                + " | tick interval: " + String.format("%.1f", getAverageTickInterval_ms()) + " ms average, " + maxTickInterval_ms + " ms max"
+                + " | late ticks: " + lateTickCount;
+    }
+}
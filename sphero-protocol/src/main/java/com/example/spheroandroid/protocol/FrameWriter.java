@@ -0,0 +1,19 @@
+package com.example.spheroandroid.protocol;
+
+// Sends packed commands to the sphero (over the API_V2 characteristic, on Android).
+public interface FrameWriter {
+    // The frame is reused by the encoder once this returns, so it must be written or copied immediately.
+    // Returns false if the frame could not be written.
+    boolean writeFrame(byte[] frame);
+
+    // Writes a frame that may be lost (a write without response, on Android).
+    // Used for commands that are replaced by the next one soon anyway, like roll.
+    default boolean writeFrameWithoutResponse(byte[] frame) {
+        return writeFrame(frame);
+    }
+
+    // Writes a frame ahead of any frames still waiting to be written (used for emergency stops).
+    default boolean writeUrgentFrame(byte[] frame) {
+        return writeFrame(frame);
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.spheroandroid.protocol;
+
+import java.util.Arrays;
+
+// Distribution of latencies, e.g. from a collision notification arriving to a listener receiving it.
+// Keeps the count, mean and maximum, and a histogram of power-of-two microsecond buckets
+// (bucket i holds latencies below 2^i us) for percentiles. Recording doesn't allocate.
+// Thread-safe: latencies can be recorded and read from any thread.
+public class LatencyStats {
+
+    private static final int BUCKET_COUNT = 32;
+
+    private final long[] buckets = new long[BUCKET_COUNT];
+    private long count;
+    private long total_ns;
+    private long max_ns;
+
+    public synchronized void record(long latency_ns) {
+        if(latency_ns < 0)
+            latency_ns = 0;
+        long latency_us = latency_ns / 1000;
+        int bucket = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(latency_us));
+        buckets[bucket]++;
+        count++;
+        total_ns += latency_ns;
+        max_ns = Math.max(max_ns, latency_ns);
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+    public synchronized long getMean_ns() {
+        return count == 0 ? 0 : total_ns / count;
+    }
+    public synchronized long getMax_ns() {
+        return max_ns;
+    }
+    // Upper bound of the given percentile (0 - 100), to within a factor of two. 0 if nothing was recorded.
+    public synchronized long getPercentile_ns(double percentile) {
+        if(count == 0)
+            return 0;
+        long rank = (long)Math.ceil(count * Math.max(0, Math.min(100, percentile)) / 100);
+        long seen = 0;
+        for(int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets[i];
+            if(seen >= rank && seen > 0)
+                return Math.min(max_ns, (1L << i) * 1000);
+        }
+        return max_ns;
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(buckets, 0);
+        count = 0;
+        total_ns = 0;
+        max_ns = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "n=" + count + ", mean=" + getMean_ns() / 1000 + " us, p99<=" + getPercentile_ns(99) / 1000
+                + " us, max=" + max_ns / 1000 + " us";
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.spheroandroid.protocol;
+
+// Incremental decoder for the packets the sphero sends over the API_V2 characteristic.
+// Bytes can arrive in any fragmentation (often one byte per notification), so decoding is a
+// state machine that consumes each byte exactly once and never looks back, keeping its cost
+// linear in the bytes received. Decoding allocates nothing.
+//
+// Escaped bytes are restored before the checksum is verified, so payloads can safely contain
+// start, end or escape bytes (see PacketEncoder for the packet structure).
+// An unescaped start byte can only ever begin a packet, so after any error (bad checksum, bad
+// escape, overflow, truncated packet) the decoder resynchronises on the next start byte.
+// Not thread-safe: feed it from one thread.
+public class PacketDecoder {
+
+    // Receives packets that passed their checksum.
+    // The payload is a view into the decoder's buffer: bytes [payloadOffset, payloadOffset + payloadLength)
+    // of packet. It is only valid during the call, so copy out anything that needs to be kept.
+    public interface PacketHandler {
+        void onPacket(byte flags, byte deviceID, byte commandID, byte sequence, byte[] packet, int payloadOffset, int payloadLength);
+    }
+
+    // Largest packet (after removing escapes, excluding the start and end bytes) that can be decoded.
+    public final static int MAX_PACKET_SIZE = 64;
+    // Flags, device ID, command ID and sequence, followed by the payload and the checksum
+    private final static int HEADER_SIZE = 4;
+    private final static int MIN_PACKET_SIZE = HEADER_SIZE + 1;
+
+    private final static int STATE_WAITING_FOR_START = 0;
+    private final static int STATE_IN_PACKET = 1;
+    private final static int STATE_ESCAPED = 2;
+
+    private final PacketHandler handler;
+    // Unescaped bytes of the packet being received, from the flags through the checksum
+    private final byte[] packet = new byte[MAX_PACKET_SIZE];
+    private int length;
+    private int checksum;
+    private int state;
+
+    // Statistics, for judging link quality
+    private long packetCount;
+    private long checksumErrorCount;
+    private long framingErrorCount;
+    private long discardedByteCount;
+
+    public PacketDecoder(PacketHandler handler) {
+        this.handler = handler;
+        state = STATE_WAITING_FOR_START;
+    }
+
+    public void decode(byte[] data) {
+        decode(data, 0, data.length);
+    }
+
+    public void decode(byte[] data, int offset, int count) {
+        for(int i = offset; i < offset + count; i++) {
+            byte data_byte = data[i];
+            switch(state) {
+                case STATE_WAITING_FOR_START:
+                    if(data_byte == SpheroConstants.start)
+                        startPacket();
+                    else
+                        discardedByteCount++;
+                    break;
+                case STATE_IN_PACKET:
+                    if(data_byte == SpheroConstants.start) {
+                        // The previous packet never ended. Dump it and start over.
+                        framingErrorCount++;
+                        startPacket();
+                    } else if(data_byte == SpheroConstants.end) {
+                        finishPacket();
+                    } else if(data_byte == SpheroConstants.escape) {
+                        state = STATE_ESCAPED;
+                    } else {
+                        append(data_byte);
+                    }
+                    break;
+                case STATE_ESCAPED:
+                    if(data_byte == SpheroConstants.start) {
+                        framingErrorCount++;
+                        startPacket();
+                    } else if(data_byte == SpheroConstants.escapedStart
+                            || data_byte == SpheroConstants.escapedEnd
+                            || data_byte == SpheroConstants.escapedEscape) {
+                        state = STATE_IN_PACKET;
+                        append((byte)(data_byte | SpheroConstants.escapeMask));
+                    } else {
+                        // Not a valid escape sequence. Drop the packet.
+                        framingErrorCount++;
+                        state = STATE_WAITING_FOR_START;
+                    }
+                    break;
+            }
+        }
+    }
+
+    // Drops any partially received packet, e.g. after reconnecting.
+    public void reset() {
+        state = STATE_WAITING_FOR_START;
+        length = 0;
+    }
+
+    public long getPacketCount() {
+        return packetCount;
+    }
+    public long getChecksumErrorCount() {
+        return checksumErrorCount;
+    }
+    public long getFramingErrorCount() {
+        return framingErrorCount;
+    }
+    public long getDiscardedByteCount() {
+        return discardedByteCount;
+    }
+
+    private void startPacket() {
+        state = STATE_IN_PACKET;
+        length = 0;
+        checksum = 0;
+    }
+
+    private void append(byte data_byte) {
+        if(length >= packet.length) {
+            // Packet is unexpectedly long, or an end byte was missed. Discard it.
+            framingErrorCount++;
+            state = STATE_WAITING_FOR_START;
+            return;
+        }
+        packet[length++] = data_byte;
+        checksum += data_byte;
+    }
+
+    private void finishPacket() {
+        state = STATE_WAITING_FOR_START;
+        if(length < MIN_PACKET_SIZE) {
+            framingErrorCount++;
+            return;
+        }
+        // The checksum byte is the 1's complement of the sum of the other bytes,
+        // so the sum of every byte including it is 0xFF.
+        if((checksum & 0xff) != 0xff) {
+            checksumErrorCount++;
+            return;
+        }
+        packetCount++;
+        handler.onPacket(packet[0], packet[1], packet[2], packet[3], packet, HEADER_SIZE, length - MIN_PACKET_SIZE);
+    }
+}
@@ -0,0 +1,153 @@
+package com.example.spheroandroid.protocol;
+
+// Packs commands into Sphero API packets without allocating.
+// Packets are built in a scratch buffer and copied into a frame buffer of exactly the packet's
+// length, since BluetoothGattCharacteristic.setValue() sends the whole array it is given.
+// One frame buffer is kept per packet length and reused, so once every length that is used has
+// been seen once, encoding a command allocates nothing.
+//
+// A returned frame stays valid until the next frame of the same length is encoded, which is
+// always long enough for a synchronous writeCharacteristic() on the BLE thread.
+// Not thread-safe: use one encoder per thread.
+/*
+Packet structure has the following format (in order):
+
+- Start byte: always 0x8D
+- Flags byte: indicate response required, etc
+- Virtual device ID: see SpheroConstants
+- Command ID: see SpheroConstants
+- Sequence number: echoed by the sphero in its response, so it can be matched to the command.
+- Payload: Could be varying number of bytes (incl. none), depending on the command
+- Checksum: 1's complement of the sum of the bytes from the flags through the payload
+- End byte: always 0xD8
+
+Any start, end or escape byte between the start and end bytes is escaped (see SpheroConstants).
+*/
+public class PacketEncoder {
+
+    // Largest payload that can be packed. No command sends more than a handful of bytes.
+    public final static int MAX_PAYLOAD_SIZE = 64;
+    // Flags, device ID, command ID, sequence and checksum, each of which may need escaping,
+    // plus the start and end bytes.
+    public final static int MAX_FRAME_SIZE = 2 + 2 * (5 + MAX_PAYLOAD_SIZE);
+
+    private final byte[] scratch = new byte[MAX_FRAME_SIZE];
+    // Payload buffer for the command-specific encode methods
+    private final byte[] payload = new byte[MAX_PAYLOAD_SIZE];
+    // Frame buffers indexed by packet length. Allocated the first time a length is used.
+    private final byte[][] frames = new byte[MAX_FRAME_SIZE + 1][];
+    // State of the packet currently being built
+    private int length;
+    private int checksum;
+    private int payloadSize;
+
+    // Starts a new packet. Follow with put() for each payload byte, then end().
+    public void begin(byte flags, byte deviceID, byte commandID, byte sequence) {
+        length = 0;
+        checksum = 0;
+        payloadSize = 0;
+        scratch[length++] = SpheroConstants.start;
+        putEscaped(flags);
+        putEscaped(deviceID);
+        putEscaped(commandID);
+        putEscaped(sequence);
+    }
+
+    // Appends a payload byte to the packet started with begin().
+    public void put(byte value) {
+        if(payloadSize >= MAX_PAYLOAD_SIZE)
+            throw new IllegalStateException("Payload is longer than " + MAX_PAYLOAD_SIZE + " bytes.");
+        payloadSize++;
+        putEscaped(value);
+    }
+
+    // Finishes the packet started with begin() and returns its frame buffer.
+    public byte[] end() {
+        // Checksum is the 1's complement of the (sum of all the previous bytes, excluding the start marker)
+        byte checksumByte = (byte)(0xff - checksum);
+        putEscaped(checksumByte);
+        scratch[length++] = SpheroConstants.end;
+
+        byte[] frame = frames[length];
+        if(frame == null) {
+            frame = new byte[length];
+            frames[length] = frame;
+        }
+        System.arraycopy(scratch, 0, frame, 0, length);
+        return frame;
+    }
+
+    public byte[] encode(byte flags, byte deviceID, byte commandID, byte sequence) {
+        begin(flags, deviceID, commandID, sequence);
+        return end();
+    }
+
+    public byte[] encode(byte flags, byte deviceID, byte commandID, byte sequence, byte payloadByte) {
+        begin(flags, deviceID, commandID, sequence);
+        put(payloadByte);
+        return end();
+    }
+
+    public byte[] encode(byte flags, byte deviceID, byte commandID, byte sequence, byte[] payload, int offset, int count) {
+        begin(flags, deviceID, commandID, sequence);
+        for(int i = 0; i < count; i++)
+            put(payload[offset + i]);
+        return end();
+    }
+
+    // driveWithHeading command.
+    // speed: -255 - 255. Negative speeds drive in reverse.
+    // heading: 0 - 360 (degrees)
+    public byte[] encodeRoll(byte flags, byte sequence, int speed, int heading) {
+        int count = rollPayload(payload, 0, speed, heading);
+        return encode(flags, SpheroConstants.driving, SpheroConstants.driveWithHeading, sequence, payload, 0, count);
+    }
+
+    // allLEDs command setting the RGB color of the top LED. 0-255
+    public byte[] encodeLEDColor(byte flags, byte sequence, int red, int green, int blue) {
+        int count = ledColorPayload(payload, 0, red, green, blue);
+        return encode(flags, SpheroConstants.userIO, SpheroConstants.allLEDs, sequence, payload, 0, count);
+    }
+
+    // allLEDs command setting the intensity of the back LED. 0-255
+    public byte[] encodeBackLEDIntensity(byte flags, byte sequence, int intensity) {
+        int count = backLEDIntensityPayload(payload, 0, intensity);
+        return encode(flags, SpheroConstants.userIO, SpheroConstants.allLEDs, sequence, payload, 0, count);
+    }
+
+    // Payload writers for the commands above, for callers that keep the payload around (e.g. to resend it).
+    // Each writes the payload to dst starting at offset and returns its length.
+    public static int rollPayload(byte[] dst, int offset, int speed, int heading) {
+        if(speed < 0)
+            speed = -1 * speed + 256; // speed values > 256 in the send packet make the spero go in reverse
+        dst[offset] = (byte)(speed & 0xFF);
+        dst[offset + 1] = (byte)((heading & 0xFF00) >> 8);
+        dst[offset + 2] = (byte)(heading & 0xFF);
+        dst[offset + 3] = (byte)((speed & 0xFF00) >> 8);
+        return 4;
+    }
+    public static int ledColorPayload(byte[] dst, int offset, int red, int green, int blue) {
+        dst[offset] = 0x00;
+        dst[offset + 1] = 0x0e;
+        dst[offset + 2] = (byte)(red & 0xff);
+        dst[offset + 3] = (byte)(green & 0xff);
+        dst[offset + 4] = (byte)(blue & 0xff);
+        return 5;
+    }
+    public static int backLEDIntensityPayload(byte[] dst, int offset, int intensity) {
+        dst[offset] = 0x00;
+        dst[offset + 1] = 0x01;
+        dst[offset + 2] = (byte)(intensity & 0xff);
+        return 3;
+    }
+
+    private void putEscaped(byte value) {
+        checksum = (checksum + value) & 0xff;
+        if(value == SpheroConstants.start || value == SpheroConstants.end || value == SpheroConstants.escape) {
+            scratch[length++] = SpheroConstants.escape;
+            scratch[length++] = (byte)(value & ~SpheroConstants.escapeMask);
+        } else {
+            scratch[length++] = value;
+        }
+    }
+}
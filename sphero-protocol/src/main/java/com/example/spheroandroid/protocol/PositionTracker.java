@@ -0,0 +1,181 @@
+package com.example.spheroandroid.protocol;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Dead-reckoning estimate of where the sphero is, in the locator's frame: centimeters from where
+// the locator was last reset, +Y along heading 0 and +X along heading 90.
+//
+// The sensor stream's locator and velocity samples are the ground truth. Between samples the
+// estimate is extrapolated from the last sampled velocity, which blends into the velocity of the
+// last roll command with a time constant of responseTime_ms (roughly how long the sphero takes to
+// reach a new speed). So a roll shows up in the estimate right away, not one sample later.
+// Extrapolation stops maxExtrapolation_ms after the last sample or roll, so a stalled stream
+// doesn't send the estimate off into the distance.
+//
+// The protocol's thread updates the estimate (onSample(), onRoll(), reset()); getPosition() can
+// be called from any thread at any time. Both take constant time and don't allocate: the state is
+// a few doubles published under a sequence number, and readers retry if it changed while they
+// read it.
+public class PositionTracker {
+
+    // Speed of a roll at speed 255 (Sphero Mini, on a smooth floor)
+    public static final float DEFAULT_MAX_SPEED_cm_per_s = 100;
+    public static final int DEFAULT_RESPONSE_TIME_ms = 250;
+    public static final int DEFAULT_MAX_EXTRAPOLATION_ms = 500;
+
+    // Indices of the state in AtomicLongArray, as double bits
+    private static final int TIME_ns = 0; // long, not double
+    private static final int X = 1;
+    private static final int Y = 2;
+    private static final int VELOCITY_X = 3;
+    private static final int VELOCITY_Y = 4;
+    private static final int COMMANDED_X = 5;
+    private static final int COMMANDED_Y = 6;
+    private static final int STATE_SIZE = 7;
+
+    private final double speedScale_cm_per_s;
+    private final double responseTime_s;
+    private final long maxExtrapolation_ns;
+
+    // State at TIME_ns, from which the estimate is extrapolated.
+    private final AtomicLongArray state = new AtomicLongArray(STATE_SIZE);
+    // Odd while the writer is changing the state. Also counts the updates.
+    private final AtomicLong version = new AtomicLong();
+    // Writer only: plain copies of the published state
+    private long time_ns;
+    private double x, y, velocityX, velocityY, commandedX, commandedY;
+    private boolean hasFix;
+    private volatile boolean published;
+
+    public PositionTracker(float maxSpeed_cm_per_s, int responseTime_ms, int maxExtrapolation_ms) {
+        if(responseTime_ms <= 0)
+            throw new IllegalArgumentException("Response time must be positive: " + responseTime_ms);
+        speedScale_cm_per_s = maxSpeed_cm_per_s / 255.0;
+        responseTime_s = responseTime_ms / 1000.0;
+        maxExtrapolation_ns = maxExtrapolation_ms * 1_000_000L;
+    }
+    public PositionTracker() {
+        this(DEFAULT_MAX_SPEED_cm_per_s, DEFAULT_RESPONSE_TIME_ms, DEFAULT_MAX_EXTRAPOLATION_ms);
+    }
+
+    // Writer only.
+    // Takes the locator and velocity of a sensor sample, if it has them.
+    // If only the locator is streamed, the velocity is the difference between the last two positions.
+    public void onSample(SensorSample sample) {
+        if(!sample.has(SensorStream.LOCATOR))
+            return;
+        double newX = sample.locator[0];
+        double newY = sample.locator[1];
+        long now_ns = sample.timestamp_ns;
+        if(sample.has(SensorStream.VELOCITY)) {
+            velocityX = sample.velocity[0];
+            velocityY = sample.velocity[1];
+        } else if(hasFix && now_ns > time_ns) {
+            double dt_s = (now_ns - time_ns) / 1e9;
+            velocityX = (newX - x) / dt_s;
+            velocityY = (newY - y) / dt_s;
+        }
+        x = newX;
+        y = newY;
+        time_ns = now_ns;
+        hasFix = true;
+        publish();
+    }
+
+    // Writer only.
+    // A roll was sent: the estimate heads toward its velocity from now on.
+    public void onRoll(int speed, int heading, long now_ns) {
+        if(hasFix) {
+            // Rebase on the current estimate, so the new command only affects what comes after it
+            advance(now_ns);
+        }
+        double radians = Math.toRadians(heading);
+        double speed_cm_per_s = speed * speedScale_cm_per_s;
+        commandedX = speed_cm_per_s * Math.sin(radians);
+        commandedY = speed_cm_per_s * Math.cos(radians);
+        time_ns = now_ns;
+        publish();
+    }
+
+    // Writer only.
+    // The locator was reset: the sphero is at the origin again, and stopped.
+    public void reset(long now_ns) {
+        x = y = 0;
+        velocityX = velocityY = 0;
+        time_ns = now_ns;
+        hasFix = true;
+        publish();
+    }
+
+    // Any thread.
+    // Writes the estimate at now_ns into dst: X, Y (cm), velocity X, velocity Y (cm/s).
+    // Returns false (and leaves dst alone) until the first locator sample or reset.
+    public boolean getPosition(long now_ns, float[] dst) {
+        if(!published)
+            return false;
+        while(true) {
+            long before = version.get();
+            if((before & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            long t0 = state.get(TIME_ns);
+            double x0 = Double.longBitsToDouble(state.get(X));
+            double y0 = Double.longBitsToDouble(state.get(Y));
+            double vx0 = Double.longBitsToDouble(state.get(VELOCITY_X));
+            double vy0 = Double.longBitsToDouble(state.get(VELOCITY_Y));
+            double cx = Double.longBitsToDouble(state.get(COMMANDED_X));
+            double cy = Double.longBitsToDouble(state.get(COMMANDED_Y));
+            if(version.get() != before)
+                continue;
+            double dt_s = elapsed_s(t0, now_ns);
+            double decay = Math.exp(-dt_s / responseTime_s);
+            // v(t) = c + (v0 - c) e^(-t/tau), and its integral from 0 to dt
+            double blend = responseTime_s * (1 - decay);
+            dst[0] = (float)(x0 + cx * dt_s + (vx0 - cx) * blend);
+            dst[1] = (float)(y0 + cy * dt_s + (vy0 - cy) * blend);
+            dst[2] = (float)(cx + (vx0 - cx) * decay);
+            dst[3] = (float)(cy + (vy0 - cy) * decay);
+            return true;
+        }
+    }
+    public boolean getPosition(float[] dst) {
+        return getPosition(System.nanoTime(), dst);
+    }
+
+    // Number of updates to the estimate
+    public long getUpdateCount() {
+        return version.get() / 2;
+    }
+
+    // Moves the writer's state forward to now_ns along the extrapolated path
+    private void advance(long now_ns) {
+        double dt_s = elapsed_s(time_ns, now_ns);
+        double decay = Math.exp(-dt_s / responseTime_s);
+        double blend = responseTime_s * (1 - decay);
+        x += commandedX * dt_s + (velocityX - commandedX) * blend;
+        y += commandedY * dt_s + (velocityY - commandedY) * blend;
+        velocityX = commandedX + (velocityX - commandedX) * decay;
+        velocityY = commandedY + (velocityY - commandedY) * decay;
+    }
+
+    private double elapsed_s(long from_ns, long to_ns) {
+        return Math.max(0, Math.min(maxExtrapolation_ns, to_ns - from_ns)) / 1e9;
+    }
+
+    private void publish() {
+        long v = version.get();
+        version.set(v + 1);
+        state.set(TIME_ns, time_ns);
+        state.set(X, Double.doubleToRawLongBits(x));
+        state.set(Y, Double.doubleToRawLongBits(y));
+        state.set(VELOCITY_X, Double.doubleToRawLongBits(velocityX));
+        state.set(VELOCITY_Y, Double.doubleToRawLongBits(velocityY));
+        state.set(COMMANDED_X, Double.doubleToRawLongBits(commandedX));
+        state.set(COMMANDED_Y, Double.doubleToRawLongBits(commandedY));
+        version.set(v + 2);
+        if(hasFix)
+            published = true;
+    }
+}
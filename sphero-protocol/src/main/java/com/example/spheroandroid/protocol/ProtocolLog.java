@@ -0,0 +1,28 @@
+package com.example.spheroandroid.protocol;
+
+// Destination for the protocol's log messages, so that the protocol doesn't depend on android.util.Log.
+// The methods mirror android.util.Log.
+public interface ProtocolLog {
+    // Verbose messages are built by concatenating strings, so they are only built if this is true.
+    boolean isVerbose();
+    void v(String tag, String message);
+    void i(String tag, String message);
+    void w(String tag, String message);
+    void e(String tag, String message);
+
+    // Discards every message. For tests and benchmarks.
+    ProtocolLog NONE = new ProtocolLog() {
+        @Override
+        public boolean isVerbose() {
+            return false;
+        }
+        @Override
+        public void v(String tag, String message) { }
+        @Override
+        public void i(String tag, String message) { }
+        @Override
+        public void w(String tag, String message) { }
+        @Override
+        public void e(String tag, String message) { }
+    };
+}
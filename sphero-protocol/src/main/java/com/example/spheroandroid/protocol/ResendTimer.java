@@ -0,0 +1,15 @@
+package com.example.spheroandroid.protocol;
+
+// Schedules the check for whether a sent command has been acknowledged.
+public interface ResendTimer {
+    // After timeout_ms milliseconds, call CommandTracker.onTimeout(command) on the protocol's thread.
+    void startResendTimer(ResponseCommand command, int timeout_ms);
+
+    // The command was acknowledged, resent or given up on: its timer can be dropped.
+    // Returns true if nothing will call onTimeout() for it anymore (the timer was dropped, or has
+    // already run), so its record can be reused. Timers that aren't dropped are harmless, since
+    // onTimeout() ignores retired commands, but their records are left to the garbage collector.
+    default boolean cancelResendTimer(ResponseCommand command) {
+        return false;
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.spheroandroid.protocol;
+
+// Resend timers on a TimerWheel, keyed by the commands' sequence numbers (one in-flight command
+// per sequence number, see CommandTracker). Arming and cancelling are O(1) and allocate nothing:
+// a command's timer is dropped as soon as it is acknowledged, instead of staying queued on the
+// scheduler until it runs for nothing. While any timer is armed, a single task ticks the wheel
+// every TICK_ms, on tick boundaries, so timeouts that are multiples of TICK_ms are exact.
+// Must be used on the scheduler's thread.
+public class ResendTimerWheel implements ResendTimer {
+
+    public static final int TICK_ms = 10;
+    // 2.56 s per turn, more than CommandTracker's longest resend timeout
+    private static final int BUCKET_COUNT = 256;
+    private static final int SEQUENCE_SLOTS = 256;
+
+    // Called when a command's timer expires (CommandTracker.onTimeout(), usually)
+    public interface Timeout {
+        void onTimeout(ResponseCommand command);
+    }
+
+    private final Scheduler scheduler;
+    private final Timeout timeout;
+    private final TimerWheel wheel = new TimerWheel(SEQUENCE_SLOTS, TICK_ms, BUCKET_COUNT);
+    // The command each armed timer is for, by sequence number
+    private final ResponseCommand[] commands = new ResponseCommand[SEQUENCE_SLOTS];
+    private final Runnable tickTask = this::tick;
+    private final TimerWheel.Expiry expiry = this::expire;
+    // True while tickTask is posted
+    private boolean ticking;
+
+    public ResendTimerWheel(Scheduler scheduler, Timeout timeout) {
+        this.scheduler = scheduler;
+        this.timeout = timeout;
+    }
+
+    public TimerWheel getWheel() {
+        return wheel;
+    }
+    public int getArmedCount() {
+        return wheel.getArmedCount();
+    }
+
+    @Override
+    public void startResendTimer(ResponseCommand command, int timeout_ms) {
+        int key = command.getSequence() & 0xff;
+        long now_ms = scheduler.uptimeMillis();
+        commands[key] = command;
+        wheel.arm(key, now_ms, timeout_ms);
+        if(!ticking) {
+            ticking = true;
+            scheduler.post(tickTask, wheel.getNextTick_ms(now_ms) - now_ms);
+        }
+    }
+
+    @Override
+    public boolean cancelResendTimer(ResponseCommand command) {
+        int key = command.getSequence() & 0xff;
+        // Unless it already ran
+        if(commands[key] == command) {
+            wheel.cancel(key);
+            commands[key] = null;
+        }
+        return true;
+    }
+
+    private void tick() {
+        ticking = false;
+        long now_ms = scheduler.uptimeMillis();
+        wheel.advance(now_ms, expiry);
+        // Stop ticking when there is nothing left to time
+        if(!wheel.isEmpty() && !ticking) {
+            ticking = true;
+            scheduler.post(tickTask, wheel.getNextTick_ms(now_ms) - now_ms);
+        }
+    }
+
+    private void expire(int key) {
+        ResponseCommand command = commands[key];
+        commands[key] = null;
+        timeout.onTimeout(command);
+    }
+}
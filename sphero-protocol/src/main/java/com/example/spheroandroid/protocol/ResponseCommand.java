@@ -0,0 +1,130 @@
+package com.example.spheroandroid.protocol;
+
+// A command used in the response queue for keeping track of commands that are awaiting responses.
+// Is resent by the CommandTracker if it times out.
+// Records are pooled by the CommandTracker: a record is taken from the pool when a command is
+// queued, keeps the payload inline, is reused as is when the command is resent, and goes back
+// to the pool once nothing refers to it anymore (see State). Don't hold on to a record after it
+// is acknowledged or discarded: it may already stand for another command.
+public class ResponseCommand {
+
+    // Lifecycle of a record
+    public enum State {
+        // In the tracker's pool
+        FREE,
+        // Waiting to be sent
+        QUEUED,
+        // Sent (or resent), waiting for its acknowledgement
+        SENT,
+        ACKNOWLEDGED,
+        // Dropped before being sent, given up on, or forgotten by CommandTracker.reset()
+        DISCARDED
+    }
+
+    // Data in the message that was sent
+    byte deviceID;
+    byte commandID;
+    // The payload is the first payloadLength bytes. Replaced if a newer command of the same type
+    // is coalesced into this one while it waits to be sent.
+    final byte[] payload = new byte[PacketEncoder.MAX_PAYLOAD_SIZE];
+    int payloadLength;
+    // Assigned by the CommandTracker when the command is sent. The generation is the one of the
+    // sequence slot it was sent in, so that a late timer for a reused sequence number can be told apart.
+    byte sequence;
+    int generation;
+    private State state = State.FREE;
+    // Set when newer commands replaced it, so that it won't be resent
+    private boolean resendStopped;
+    // Decides how the command is queued, shed and resent.
+    private CommandClass commandClass;
+    // Number of times this command has been sent/resent
+    private int sendAttemptsCount;
+    // Timestamps of when the message was first queued and last sent (used for debugging)
+    private long timeWasQueued;
+    private long timeWasSent;
+
+    public byte getDeviceID() { return deviceID; }
+    public byte getCommandID() { return commandID; }
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+    public byte getSequence() {
+        return sequence;
+    }
+    public int getGeneration() {
+        return generation;
+    }
+    public State getState() {
+        return state;
+    }
+    public CommandClass getCommandClass() {
+        return commandClass;
+    }
+    // True for roll commands. Used to optimize the right to discard unnecessary messages.
+    public boolean getContinuous() {
+        return commandClass.continuous;
+    }
+    public boolean getReceived() {
+        return state == State.ACKNOWLEDGED;
+    }
+    public boolean isDiscarded() {
+        return state == State.DISCARDED;
+    }
+    public boolean isResendStopped() {
+        return resendStopped;
+    }
+    public int getSendAttemptsCount() {
+        return sendAttemptsCount;
+    }
+    // now_ms: on the clock the times were taken with (see CommandTracker)
+    public long timeSinceSent(long now_ms) {
+        return now_ms - timeWasSent;
+    }
+    public long timeSinceQueued(long now_ms) {
+        return now_ms - timeWasQueued;
+    }
+
+    // Takes a free record for a new command.
+    void queue(byte deviceID, byte commandID, byte[] payload, int payloadLength, CommandClass commandClass, long currentTime) {
+        this.deviceID = deviceID;
+        this.commandID = commandID;
+        setPayload(payload, payloadLength);
+        this.commandClass = commandClass;
+        state = State.QUEUED;
+        resendStopped = false;
+        sendAttemptsCount = 0;
+        timeWasQueued = currentTime;
+    }
+    // Takes the payload of a newer command of the same type (see CommandClass.OverflowPolicy.COALESCE).
+    void coalesce(byte[] payload, int payloadLength) {
+        setPayload(payload, payloadLength);
+    }
+    void markSent(long time) {
+        state = State.SENT;
+        timeWasSent = time;
+    }
+    // Sent again after timing out
+    void markResent() {
+        sendAttemptsCount++;
+    }
+    void markReceived() {
+        state = State.ACKNOWLEDGED;
+    }
+    void markDiscarded() {
+        state = State.DISCARDED;
+    }
+    void markFree() {
+        state = State.FREE;
+    }
+    // Don't resend this command if it times out
+    void stopResending() {
+        resendStopped = true;
+    }
+
+    private void setPayload(byte[] payload, int payloadLength) {
+        if(payloadLength > this.payload.length)
+            throw new IllegalStateException("Payload is longer than " + this.payload.length + " bytes.");
+        System.arraycopy(payload, 0, this.payload, 0, payloadLength);
+        this.payloadLength = payloadLength;
+    }
+}
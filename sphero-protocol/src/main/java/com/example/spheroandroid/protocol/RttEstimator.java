@@ -0,0 +1,80 @@
+package com.example.spheroandroid.protocol;
+
+// Estimates the round trip time of commands (from sending a command to receiving its
+// acknowledgement), and the retransmission timeout to use for them.
+// Uses a smoothed RTT and RTT variance, the same way TCP does (RFC 6298):
+//      rttVariance = 3/4 rttVariance + 1/4 |smoothedRtt - sample|
+//      smoothedRtt = 7/8 smoothedRtt + 1/8 sample
+//      timeout = smoothedRtt + 4 rttVariance, kept between minTimeout_ms and maxTimeout_ms
+// Every timeout doubles the timeout (backoff) until the next sample, so a congested link isn't
+// made worse by resending too early.
+// Each acknowledgement matches exactly one transmission (a resent command gets a new sequence
+// number), so every acknowledgement is a valid sample.
+public class RttEstimator {
+
+    private final int minTimeout_ms;
+    private final int maxTimeout_ms;
+
+    private double smoothedRtt_ms;
+    private double rttVariance_ms;
+    private int timeout_ms;
+    private long sampleCount;
+    private long backoffCount;
+
+    // initialTimeout_ms: timeout used until the first sample
+    // minTimeout_ms, maxTimeout_ms: floor and ceiling of the timeout
+    public RttEstimator(int initialTimeout_ms, int minTimeout_ms, int maxTimeout_ms) {
+        if(minTimeout_ms < 1 || maxTimeout_ms < minTimeout_ms)
+            throw new IllegalArgumentException("Invalid timeout bounds: " + minTimeout_ms + " - " + maxTimeout_ms);
+        this.minTimeout_ms = minTimeout_ms;
+        this.maxTimeout_ms = maxTimeout_ms;
+        timeout_ms = clamp(initialTimeout_ms);
+    }
+
+    // Adds the round trip time of an acknowledged command.
+    public void addSample(long rtt_ms) {
+        if(rtt_ms < 0)
+            return;
+        if(sampleCount == 0) {
+            smoothedRtt_ms = rtt_ms;
+            rttVariance_ms = rtt_ms / 2.0;
+        } else {
+            rttVariance_ms = 0.75 * rttVariance_ms + 0.25 * Math.abs(smoothedRtt_ms - rtt_ms);
+            smoothedRtt_ms = 0.875 * smoothedRtt_ms + 0.125 * rtt_ms;
+        }
+        sampleCount++;
+        timeout_ms = clamp((int)Math.ceil(smoothedRtt_ms + 4 * rttVariance_ms));
+    }
+
+    // Called when a command timed out. Doubles the timeout until the next sample.
+    public void backoff() {
+        timeout_ms = clamp(timeout_ms * 2);
+        backoffCount++;
+    }
+
+    public int getTimeout_ms() {
+        return timeout_ms;
+    }
+    public double getSmoothedRtt_ms() {
+        return smoothedRtt_ms;
+    }
+    public double getRttVariance_ms() {
+        return rttVariance_ms;
+    }
+    public long getSampleCount() {
+        return sampleCount;
+    }
+    public long getBackoffCount() {
+        return backoffCount;
+    }
+
+    private int clamp(int value) {
+        return Math.max(minTimeout_ms, Math.min(maxTimeout_ms, value));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RTT %.1f ms (variance %.1f ms) | timeout %d ms | samples: %d | backoffs: %d",
+                smoothedRtt_ms, rttVariance_ms, timeout_ms, sampleCount, backoffCount);
+    }
+}
@@ -0,0 +1,20 @@
+package com.example.spheroandroid.protocol;
+
+// Clock and delayed tasks of the protocol's thread (a Handler on Android, see the app's
+// HandlerScheduler; a VirtualScheduler in simulations and tests).
+// Tasks run on the protocol's thread, in the order they are due, and never from inside postDelayed().
+public interface Scheduler extends Clock {
+
+    // Returned by postDelayed(), to cancel the task if it hasn't run yet
+    interface Cancellable {
+        void cancel();
+    }
+
+    // Runs task after delay_ms (as soon as possible if delay_ms <= 0).
+    Cancellable postDelayed(Runnable task, long delay_ms);
+
+    // Like postDelayed(), for tasks that are never cancelled, so nothing is allocated to cancel them.
+    default void post(Runnable task, long delay_ms) {
+        postDelayed(task, delay_ms);
+    }
+}
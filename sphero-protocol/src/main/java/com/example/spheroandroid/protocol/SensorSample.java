@@ -0,0 +1,37 @@
+package com.example.spheroandroid.protocol;
+
+// One sample of the sensor stream (see SensorStream).
+// Only the groups in sensors hold values from this sample; the others keep whatever they held before.
+// The decoder reuses a single SensorSample for every packet, so a listener that keeps a sample
+// past its callback must copy it (copyFrom()).
+public class SensorSample {
+
+    // When the packet was decoded (System.nanoTime())
+    public long timestamp_ns;
+    // SensorStream group flags of the values in this sample
+    public int sensors;
+    // Pitch, roll, yaw (degrees)
+    public final float[] attitude = new float[3];
+    // X, Y, Z (g)
+    public final float[] accelerometer = new float[3];
+    // X, Y, Z (degrees/s)
+    public final float[] gyroscope = new float[3];
+    // X, Y position from where the locator was last reset (cm)
+    public final float[] locator = new float[2];
+    // X, Y (cm/s)
+    public final float[] velocity = new float[2];
+
+    public boolean has(int sensor) {
+        return (sensors & sensor) != 0;
+    }
+
+    public void copyFrom(SensorSample other) {
+        timestamp_ns = other.timestamp_ns;
+        sensors = other.sensors;
+        System.arraycopy(other.attitude, 0, attitude, 0, attitude.length);
+        System.arraycopy(other.accelerometer, 0, accelerometer, 0, accelerometer.length);
+        System.arraycopy(other.gyroscope, 0, gyroscope, 0, gyroscope.length);
+        System.arraycopy(other.locator, 0, locator, 0, locator.length);
+        System.arraycopy(other.velocity, 0, velocity, 0, velocity.length);
+    }
+}
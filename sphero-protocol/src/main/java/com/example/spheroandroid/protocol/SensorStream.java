@@ -0,0 +1,147 @@
+package com.example.spheroandroid.protocol;
+
+// Configures the sphero's sensor stream and decodes the sensorResponse packets it sends.
+//
+// Streaming is set up with two commands:
+// - sensorMask: sample rate divisor (uint16), packet count (uint8, 0 to stream until told
+//   otherwise) and MASK (uint32), which selects the IMU channels.
+// - configureSensorStream: MASK2 (uint32), which selects the locator and velocity channels.
+// (Same layout as the sphero API's data streaming masks, and as the Sphero Edu app sends them.)
+// Every sample then arrives in a sensorResponse packet as one float per selected channel, in mask
+// bit order from MASK's highest bit down, then MASK2's. The floats are big-endian IEEE-754, the same
+// conversion as bits_to_num() in packet sniffer/processor.py.
+// Not thread-safe: used from the protocol's thread.
+public class SensorStream {
+
+    // Groups of channels that can be streamed, as flags.
+    public static final int ATTITUDE = 0x01;
+    public static final int ACCELEROMETER = 0x02;
+    public static final int GYROSCOPE = 0x04;
+    public static final int LOCATOR = 0x08;
+    public static final int VELOCITY = 0x10;
+    public static final int ALL = ATTITUDE | ACCELEROMETER | GYROSCOPE | LOCATOR | VELOCITY;
+
+    // MASK bits of each group (pitch, roll, yaw / X, Y, Z)
+    static final int MASK_ATTITUDE = 0x00070000;
+    static final int MASK_ACCELEROMETER = 0x0000E000;
+    static final int MASK_GYROSCOPE = 0x00001C00;
+    // MASK2 bits of each group (X, Y)
+    static final int MASK2_LOCATOR = 0x0C000000;
+    static final int MASK2_VELOCITY = 0x01800000;
+
+    // The sphero samples its sensors at this rate, and streams every divisor'th sample.
+    public static final int BASE_SAMPLE_RATE_Hz = 400;
+    // Shortest interval between samples. Streaming everything at 50 Hz takes three notifications
+    // per sample, which is about as much as the Mini's link carries while leaving room for commands.
+    public static final int MIN_INTERVAL_ms = 20;
+
+    // Groups currently streaming, and the number of floats in each sample
+    private int sensors;
+    private int channelCount;
+    private final SensorSample sample = new SensorSample();
+    private long sampleCount;
+    private long malformedCount;
+
+    public int getSensors() {
+        return sensors;
+    }
+    public long getSampleCount() {
+        return sampleCount;
+    }
+    // sensorResponse packets that didn't match the configured sensors
+    public long getMalformedCount() {
+        return malformedCount;
+    }
+
+    // Sets the groups that the decoder expects. Called when the sensorMask command is sent.
+    void setSensors(int sensors) {
+        this.sensors = sensors & ALL;
+        channelCount = channelCount(this.sensors);
+    }
+
+    static int channelCount(int sensors) {
+        return Integer.bitCount(mask(sensors)) + Integer.bitCount(mask2(sensors));
+    }
+    static int mask(int sensors) {
+        int mask = 0;
+        if((sensors & ATTITUDE) != 0)
+            mask |= MASK_ATTITUDE;
+        if((sensors & ACCELEROMETER) != 0)
+            mask |= MASK_ACCELEROMETER;
+        if((sensors & GYROSCOPE) != 0)
+            mask |= MASK_GYROSCOPE;
+        return mask;
+    }
+    static int mask2(int sensors) {
+        int mask2 = 0;
+        if((sensors & LOCATOR) != 0)
+            mask2 |= MASK2_LOCATOR;
+        if((sensors & VELOCITY) != 0)
+            mask2 |= MASK2_VELOCITY;
+        return mask2;
+    }
+
+    // Sample rate divisor for the requested interval, rounded to the nearest sample.
+    static int divisor(int interval_ms) {
+        interval_ms = Math.max(MIN_INTERVAL_ms, interval_ms);
+        return Math.max(1, Math.min(0xFFFF, (interval_ms * BASE_SAMPLE_RATE_Hz + 500) / 1000));
+    }
+
+    // Payload of the sensorMask command. Returns its length.
+    static int maskPayload(byte[] dst, int offset, int sensors, int interval_ms) {
+        int divisor = divisor(interval_ms);
+        dst[offset] = (byte)(divisor >> 8);
+        dst[offset + 1] = (byte)divisor;
+        dst[offset + 2] = 0; // packet count: stream until told otherwise
+        putInt(dst, offset + 3, mask(sensors));
+        return 7;
+    }
+    // Payload of the configureSensorStream command. Returns its length.
+    static int streamPayload(byte[] dst, int offset, int sensors) {
+        putInt(dst, offset, mask2(sensors));
+        return 4;
+    }
+
+    // Decodes a sensorResponse payload into the sample, without allocating.
+    // Returns the sample, which is reused by the next call, or null if the payload doesn't match the configured sensors.
+    SensorSample decode(byte[] packet, int offset, int length, long timestamp_ns) {
+        if(channelCount == 0 || length != channelCount * 4) {
+            malformedCount++;
+            return null;
+        }
+        // The groups are in mask bit order
+        if((sensors & ATTITUDE) != 0)
+            offset = getFloats(packet, offset, sample.attitude);
+        if((sensors & ACCELEROMETER) != 0)
+            offset = getFloats(packet, offset, sample.accelerometer);
+        if((sensors & GYROSCOPE) != 0)
+            offset = getFloats(packet, offset, sample.gyroscope);
+        if((sensors & LOCATOR) != 0)
+            offset = getFloats(packet, offset, sample.locator);
+        if((sensors & VELOCITY) != 0)
+            getFloats(packet, offset, sample.velocity);
+        sample.sensors = sensors;
+        sample.timestamp_ns = timestamp_ns;
+        sampleCount++;
+        return sample;
+    }
+
+    // Reads dst.length floats from src starting at offset. Returns the offset after them.
+    private static int getFloats(byte[] src, int offset, float[] dst) {
+        for(int i = 0; i < dst.length; i++, offset += 4)
+            dst[i] = getFloat(src, offset);
+        return offset;
+    }
+    static float getFloat(byte[] src, int offset) {
+        return Float.intBitsToFloat(((src[offset] & 0xFF) << 24)
+                | ((src[offset + 1] & 0xFF) << 16)
+                | ((src[offset + 2] & 0xFF) << 8)
+                | (src[offset + 3] & 0xFF));
+    }
+    private static void putInt(byte[] dst, int offset, int value) {
+        dst[offset] = (byte)(value >> 24);
+        dst[offset + 1] = (byte)(value >> 16);
+        dst[offset + 2] = (byte)(value >> 8);
+        dst[offset + 3] = (byte)value;
+    }
+}
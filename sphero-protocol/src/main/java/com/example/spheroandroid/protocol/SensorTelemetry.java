@@ -0,0 +1,59 @@
+package com.example.spheroandroid.protocol;
+
+// Recent sensor stream samples, one TelemetryRing per SensorStream group, timestamped with the
+// sample's timestamp_ns. The protocol's thread publishes every sample (publish()); UI, recorders and
+// control loops read them from any thread with their own cursors, or take snapshots.
+public class SensorTelemetry {
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    public final TelemetryRing attitude;
+    public final TelemetryRing accelerometer;
+    public final TelemetryRing gyroscope;
+    public final TelemetryRing locator;
+    public final TelemetryRing velocity;
+
+    // capacity: samples kept in each ring (a power of two)
+    public SensorTelemetry(int capacity) {
+        attitude = new TelemetryRing(capacity, 3);
+        accelerometer = new TelemetryRing(capacity, 3);
+        gyroscope = new TelemetryRing(capacity, 3);
+        locator = new TelemetryRing(capacity, 2);
+        velocity = new TelemetryRing(capacity, 2);
+    }
+    public SensorTelemetry() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    // Ring of a single SensorStream group
+    public TelemetryRing get(int sensor) {
+        switch(sensor) {
+            case SensorStream.ATTITUDE:
+                return attitude;
+            case SensorStream.ACCELEROMETER:
+                return accelerometer;
+            case SensorStream.GYROSCOPE:
+                return gyroscope;
+            case SensorStream.LOCATOR:
+                return locator;
+            case SensorStream.VELOCITY:
+                return velocity;
+            default:
+                throw new IllegalArgumentException("Not a single sensor group: " + sensor);
+        }
+    }
+
+    // Writer only. Publishes the groups that the sample holds.
+    public void publish(SensorSample sample) {
+        if(sample.has(SensorStream.ATTITUDE))
+            attitude.publish(sample.timestamp_ns, sample.attitude);
+        if(sample.has(SensorStream.ACCELEROMETER))
+            accelerometer.publish(sample.timestamp_ns, sample.accelerometer);
+        if(sample.has(SensorStream.GYROSCOPE))
+            gyroscope.publish(sample.timestamp_ns, sample.gyroscope);
+        if(sample.has(SensorStream.LOCATOR))
+            locator.publish(sample.timestamp_ns, sample.locator);
+        if(sample.has(SensorStream.VELOCITY))
+            velocity.publish(sample.timestamp_ns, sample.velocity);
+    }
+}
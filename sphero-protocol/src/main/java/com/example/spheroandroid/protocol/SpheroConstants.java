@@ -1,4 +1,4 @@
-package com.example.spheroandroid;
+package com.example.spheroandroid.protocol;
 
 // Contains the constant byte codes used in sending and receiving commands over BLE to the sphero.
 // Excludes several unknown values.
@@ -35,6 +35,13 @@ public class SpheroConstants {
     // Start/end of packet constants
     public final static byte start = (byte)0x8d;
     public final static byte end = (byte)0xd8;
+    // Escape sequences. A start, end or escape byte inside a packet is sent as the escape byte
+    // followed by the original byte with the escapeMask bits cleared.
+    public final static byte escape = (byte)0xab;
+    public final static byte escapedStart = 0x05;
+    public final static byte escapedEnd = 0x50;
+    public final static byte escapedEscape = 0x23;
+    public final static byte escapeMask = (byte)0x88;
 
     // User IO command IDs
     public final static byte allLEDs = 0x0e;
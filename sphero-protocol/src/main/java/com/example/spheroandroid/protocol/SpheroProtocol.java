@@ -0,0 +1,352 @@
+package com.example.spheroandroid.protocol;
+
+// The Sphero Mini's API: turns commands into packets and processes the packets the sphero sends back.
+// Owns the encoder, decoder and CommandTracker. The host (SpheroController on Android) provides
+// the FrameWriter that sends packets, the ResendTimer, and feeds received bytes to receive().
+// All methods must be called from the same thread (the BLE thread, on Android).
+public class SpheroProtocol {
+
+    public static final String TAG = "SpheroProtocol";
+
+    // Receives data reported by the sphero, and what became of the commands sent to it
+    // (see CommandTracker.Listener).
+    public interface Listener extends CommandTracker.Listener {
+        void onBatteryVoltage(double volts);
+        // The sphero responded to a command with a nonzero error code.
+        default void onCommandError(byte deviceID, byte commandID, int errorCode) {}
+        // A sample of the sensor stream (see configureSensorStream()).
+        // The sample is reused for the next one: copy it to keep it.
+        default void onSensorSample(SensorSample sample) {}
+        // The sphero detected a collision (see configureCollisionDetection()).
+        // Called as soon as the packet is decoded. The collision is reused for the next one: copy it to keep it.
+        default void onCollision(Collision collision) {}
+    }
+
+    private final Listener listener;
+    private final ProtocolLog log;
+    private final Clock clock;
+    private final CommandTracker tracker;
+    private final SensorStream sensorStream = new SensorStream();
+    private final CollisionDetector collisionDetector = new CollisionDetector();
+    // Every sensor sample, for readers on other threads
+    private final SensorTelemetry telemetry = new SensorTelemetry();
+    // Where the sphero is, from locator samples and rolls
+    private final PositionTracker positionTracker = new PositionTracker();
+    // Builds response commands read over time
+    private final PacketDecoder decoder = new PacketDecoder(this::process_packet);
+    // When the bytes being decoded arrived (see receive())
+    private long arrival_ns;
+    // Scratch payload for commands. Copied by the tracker if the command is queued.
+    private final byte[] commandPayload = new byte[PacketEncoder.MAX_PAYLOAD_SIZE];
+
+    // See SpheroController for the meaning of waitForResponse, resendAttempts, messageTimeout_ms and windowSize.
+    public SpheroProtocol(FrameWriter writer, ResendTimer resendTimer, Listener listener, ProtocolLog log,
+                          boolean waitForResponse, int resendAttempts, int messageTimeout_ms, int windowSize) {
+        this(writer, resendTimer, listener, log, Clock.SYSTEM, waitForResponse, resendAttempts, messageTimeout_ms, windowSize);
+    }
+    // clock: the clock of the protocol's thread (see Scheduler). Times round trips, rolls and samples.
+    public SpheroProtocol(FrameWriter writer, ResendTimer resendTimer, Listener listener, ProtocolLog log, Clock clock,
+                          boolean waitForResponse, int resendAttempts, int messageTimeout_ms, int windowSize) {
+        this.listener = listener;
+        this.log = log;
+        this.clock = clock;
+        tracker = new CommandTracker(new PacketEncoder(), writer, resendTimer, log, clock, waitForResponse, resendAttempts, messageTimeout_ms, windowSize);
+        tracker.setListener(listener);
+    }
+
+    public CommandTracker getTracker() {
+        return tracker;
+    }
+    public PacketDecoder getDecoder() {
+        return decoder;
+    }
+    public SensorStream getSensorStream() {
+        return sensorStream;
+    }
+    public CollisionDetector getCollisionDetector() {
+        return collisionDetector;
+    }
+    // Can be read from any thread (see TelemetryRing).
+    public SensorTelemetry getTelemetry() {
+        return telemetry;
+    }
+    // Can be queried from any thread (see PositionTracker).
+    public PositionTracker getPositionTracker() {
+        return positionTracker;
+    }
+
+    // Forgets all queued commands and partially received packets. Called when (re)connecting.
+    public void reset() {
+        tracker.reset();
+        decoder.reset();
+    }
+
+    // Commands are dropped until the connection is ready for I/O.
+    public boolean isInitialized() {
+        return tracker.isInitialized();
+    }
+    public void setInitialized(boolean initialized) {
+        tracker.setInitialized(initialized);
+    }
+
+    // Reset the heading zero angle to the current heading (useful during aiming)
+    // Note: in order to manually rotate the sphero, you need to call stabilization(false).
+    // Once the heading has been set, call stabilization(true).
+    public void resetHeading() {
+        send_command(SpheroConstants.driving, SpheroConstants.resetHeading, CommandClass.CONFIGURATION);
+    }
+    // Sends command to turn on/off the motor stabilization system (required when manually turning/aiming the sphero)
+    public void stabilization(boolean enabled) {
+        send_command(SpheroConstants.driving, SpheroConstants.stabilization, (byte)(enabled ? 0x01 : 0x00), CommandClass.CONFIGURATION);
+    }
+    public void wake() {
+        send_command(SpheroConstants.powerInfo, SpheroConstants.wake, CommandClass.CONFIGURATION);
+    }
+    public void sleep() {
+        send_command(SpheroConstants.powerInfo, SpheroConstants.sleep, CommandClass.CONFIGURATION);
+    }
+
+    //        Start to move the Sphero at a given direction and speed.
+    //        heading: integer from 0 - 360 (degrees)
+    //        speed: Integer from 0 - 255
+    //
+    //        Note: the zero heading should be set at startup with the resetHeading method.
+    //        Otherwise, it may seem that the sphero doesn't honor the heading argument
+    //
+    //        Rolls are sent continuously while driving, so they are sent right away without waiting
+    //        for acknowledgements and aren't resent (see CommandTracker.sendUnacknowledged).
+    //        Returns false if the roll wasn't handed to the transport; the position estimate then
+    //        keeps the previous roll.
+    public boolean roll(int speed, int heading) {
+        int length = PacketEncoder.rollPayload(commandPayload, 0, speed, heading);
+        if(!tracker.sendUnacknowledged(SpheroConstants.driving, SpheroConstants.driveWithHeading, commandPayload, length))
+            return false;
+        positionTracker.onRoll(speed, heading, clock.nanoTime());
+        return true;
+    }
+    // Remove all other roll commands from the queue right now,
+    // and send a roll(0, heading) command ahead of everything else (as an EMERGENCY_STOP).
+    // Unlike roll(), this is acknowledged and resent if needed, so the sphero reliably stops.
+    public void rollStop(int heading) {
+        tracker.removeCommandsOfType(SpheroConstants.driving, SpheroConstants.driveWithHeading);
+
+        int length = PacketEncoder.rollPayload(commandPayload, 0, 0, heading);
+        send_command(SpheroConstants.driving, SpheroConstants.driveWithHeading, commandPayload, length, CommandClass.EMERGENCY_STOP);
+        // Stops skip every queue and are resent until acknowledged, so one that was sent will arrive
+        if(tracker.isInitialized())
+            positionTracker.onRoll(0, heading, clock.nanoTime());
+    }
+    public void setLEDColor(int red, int green, int blue) {
+        int length = PacketEncoder.ledColorPayload(commandPayload, 0, red, green, blue);
+        send_command(SpheroConstants.userIO, SpheroConstants.allLEDs, commandPayload, length, CommandClass.CONFIGURATION);
+    }
+    public void setBackLEDIntensity(int intensity) {
+        int length = PacketEncoder.backLEDIntensityPayload(commandPayload, 0, intensity);
+        send_command(SpheroConstants.userIO, SpheroConstants.allLEDs, commandPayload, length, CommandClass.CONFIGURATION);
+    }
+    public void checkBattery() {
+        send_command(SpheroConstants.powerInfo, SpheroConstants.batteryVoltage, CommandClass.TELEMETRY_QUERY);
+    }
+    // Starts streaming the given sensors (SensorStream flags) every interval_ms, or stops streaming if sensors is 0.
+    // interval_ms is rounded to the sphero's sample rate, and is at least SensorStream.MIN_INTERVAL_ms.
+    // Samples are passed to Listener.onSensorSample() and published to getTelemetry().
+    public void configureSensorStream(int sensors, int interval_ms) {
+        sensorStream.setSensors(sensors);
+        int length = SensorStream.maskPayload(commandPayload, 0, sensors, interval_ms);
+        send_command(SpheroConstants.sensor, SpheroConstants.sensorMask, commandPayload, length, CommandClass.CONFIGURATION);
+        length = SensorStream.streamPayload(commandPayload, 0, sensors);
+        send_command(SpheroConstants.sensor, SpheroConstants.configureSensorStream, commandPayload, length, CommandClass.CONFIGURATION);
+    }
+
+    // Streams the locator and velocity (on top of whatever is already streaming) every interval_ms,
+    // to keep getPositionTracker() up to date.
+    public void startPositionTracking(int interval_ms) {
+        configureSensorStream(sensorStream.getSensors() | SensorStream.LOCATOR | SensorStream.VELOCITY, interval_ms);
+    }
+    // Makes the sphero's current position the locator's origin.
+    // The position estimate is reset right away; samples taken before the sphero handles the
+    // command may still be relative to the old origin.
+    public void resetLocator() {
+        send_command(SpheroConstants.sensor, SpheroConstants.resetLocator, CommandClass.CONFIGURATION);
+        positionTracker.reset(clock.nanoTime());
+    }
+
+    // Detects collisions with the given thresholds (see CollisionDetector), which are passed to
+    // Listener.onCollision().
+    // deadTime_ms: time after a collision during which no other collision is reported
+    public void configureCollisionDetection(int thresholdX, int thresholdY, int speedX, int speedY, int deadTime_ms) {
+        collisionDetector.setEnabled(true);
+        int length = CollisionDetector.configurePayload(commandPayload, 0, CollisionDetector.METHOD_ACCELEROMETER,
+                thresholdX, thresholdY, speedX, speedY, deadTime_ms);
+        send_command(SpheroConstants.sensor, SpheroConstants.configureCollision, commandPayload, length, CommandClass.CONFIGURATION);
+        send_command(SpheroConstants.sensor, SpheroConstants.enableCollisionAsync, (byte)0x01, CommandClass.CONFIGURATION);
+    }
+    public void disableCollisionDetection() {
+        collisionDetector.setEnabled(false);
+        send_command(SpheroConstants.sensor, SpheroConstants.enableCollisionAsync, (byte)0x00, CommandClass.CONFIGURATION);
+        int length = CollisionDetector.configurePayload(commandPayload, 0, CollisionDetector.METHOD_OFF, 0, 0, 0, 0, 0);
+        send_command(SpheroConstants.sensor, SpheroConstants.configureCollision, commandPayload, length, CommandClass.CONFIGURATION);
+    }
+
+    // Called with bytes received from the sphero.
+    // (In practice, this is called nearly once for every byte it sends and the data array only
+    // contains one byte.)
+    public void receive(byte[] data, int offset, int count) {
+        receive(data, offset, count, clock.nanoTime());
+    }
+    // arrival_ns: when the bytes arrived from the Bluetooth stack (on the protocol's clock), if they
+    // waited before being passed on. Collisions report it, to measure their latency.
+    public void receive(byte[] data, int offset, int count, long arrival_ns) {
+        this.arrival_ns = arrival_ns;
+        decoder.decode(data, offset, count);
+    }
+
+    private void send_command(byte deviceID, byte commandID, CommandClass commandClass) {
+        send_command(deviceID, commandID, commandPayload, 0, commandClass);
+    }
+    private void send_command(byte deviceID, byte commandID, byte payloadByte, CommandClass commandClass) {
+        commandPayload[0] = payloadByte;
+        send_command(deviceID, commandID, commandPayload, 1, commandClass);
+    }
+    private void send_command(byte deviceID, byte commandID, byte[] payload, int payloadLength, CommandClass commandClass) {
+        tracker.send(deviceID, commandID, payload, payloadLength, commandClass);
+    }
+
+    // Processes a packet received from the sphero, and keeps track of the message it's currently sending.
+    // The payload is bytes [payloadOffset, payloadOffset + payloadLength) of packet, and is only
+    // valid during this call.
+    private void process_packet(byte flags, byte devid, byte comid, byte sequence, byte[] packet, int payloadOffset, int payloadLength) {
+        boolean handled = false;
+
+        if((flags & SpheroConstants.isResponse) > 0) { // acknowledgement response
+            switch(devid) {
+                case SpheroConstants.powerInfo:
+                    switch(comid) {
+                        case SpheroConstants.wake:
+                            log.v(TAG, "AWK: wake");
+                            handled = true;
+                            break;
+                        case SpheroConstants.sleep:
+                            log.v(TAG, "AWK: sleep");
+                            handled = true;
+                            break;
+                        case SpheroConstants.batteryVoltage:
+                            if(payloadLength != 3) {
+                                log.v(TAG, "AWK: battery voltage, but payload length was not 3: " + payloadLength);
+                                break;
+                            }
+                            int pay2 = Byte.toUnsignedInt(packet[payloadOffset + 2]);
+                            int pay1 = Byte.toUnsignedInt(packet[payloadOffset + 1]);
+                            int pay0 = Byte.toUnsignedInt(packet[payloadOffset]);
+                            double vbatt = pay2 + pay1 * 256 + pay0 * 65536;
+                            vbatt /= 100; // Notification gives V_batt in 10mV increments. Divide by 100 to get to volts.
+                            if(log.isVerbose())
+                                log.v(TAG, "AWK: battery voltage: " + vbatt);
+                            listener.onBatteryVoltage(vbatt);
+                            handled = true;
+                            break;
+                    }
+                    break;
+                case SpheroConstants.driving:
+                    switch(comid) {
+                        case SpheroConstants.driveWithHeading:
+                            log.v(TAG, "AWK: roll");
+                            // Rolls sent by roll() only get a response if they failed
+                            if(payloadLength > 0 && packet[payloadOffset] != 0) {
+                                log.w(TAG, "Roll failed with error code " + packet[payloadOffset]);
+                                listener.onCommandError(devid, comid, Byte.toUnsignedInt(packet[payloadOffset]));
+                            }
+                            handled = true;
+                            break;
+                        case SpheroConstants.stabilization:
+                            log.v(TAG, "AWK: stabilization");
+                            handled = true;
+                            break;
+                        case SpheroConstants.resetHeading:
+                            log.v(TAG, "AWK: reset heading");
+                            handled = true;
+                            break;
+                    }
+                    break;
+                case SpheroConstants.userIO:
+                    switch(comid) {
+                        case SpheroConstants.allLEDs:
+                            log.v(TAG, "AWK: LED/backlight color");
+                            handled = true;
+                            break;
+                    }
+                    break;
+                case SpheroConstants.sensor:
+                    switch(comid) {
+                        case SpheroConstants.configureCollision:
+                            log.v(TAG, "AWK: collision detection configuration");
+                            handled = true;
+                            break;
+                        case SpheroConstants.resetLocator:
+                            log.v(TAG, "AWK: reset locator");
+                            handled = true;
+                            break;
+                        case SpheroConstants.enableCollisionAsync:
+                            log.v(TAG, "AWK: collision notifications");
+                            handled = true;
+                            break;
+                        case SpheroConstants.configureSensorStream:
+                            log.v(TAG, "AWK: sensor stream configuration");
+                            handled = true;
+                            break;
+                        case SpheroConstants.sensorMask:
+                            log.v(TAG, "AWK: sensor mask configuration");
+                            handled = true;
+                            break;
+                    }
+                    break;
+            }
+
+        } else { // asynchronous packets: sensor readings, etc.
+            if(devid == SpheroConstants.sensor && comid == SpheroConstants.sensorResponse) {
+                SensorSample sample = sensorStream.decode(packet, payloadOffset, payloadLength, clock.nanoTime());
+                if(sample != null) {
+                    telemetry.publish(sample);
+                    positionTracker.onSample(sample);
+                    listener.onSensorSample(sample);
+                }
+                else if(log.isVerbose())
+                    log.v(TAG, "Sensor packet doesn't match the configured sensors: " + payloadLength + " bytes");
+                // Not an acknowledgement
+                return;
+            }
+            if(devid == SpheroConstants.sensor && comid == SpheroConstants.collisionDetectedAsync) {
+                Collision collision = collisionDetector.decode(packet, payloadOffset, payloadLength, arrival_ns, clock.nanoTime());
+                if(collision != null)
+                    listener.onCollision(collision);
+                else
+                    log.w(TAG, "Collision packet of the wrong length: " + payloadLength + " bytes");
+                return;
+            }
+        }
+
+        if(handled) {
+            // Formatting the packet allocates, so only do it when it will be logged.
+            if(log.isVerbose())
+                log.v(TAG, stringifyBytes(packet, payloadOffset + payloadLength));
+            // Received acknowledgement command.
+            tracker.acknowledge(sequence);
+        } else {
+            if(log.isVerbose())
+                log.v(TAG, "Received unprocessed bytes: " + stringifyBytes(packet, payloadOffset + payloadLength));
+        }
+    }
+
+    // Converts a byte array into a string of hex numbers representing their bytes.
+    // Used for debugging to display messages sent/received.
+    static String stringifyBytes(final byte[] data, int length) {
+        if((data != null && data.length > 0) || length < 0) {
+            final StringBuilder stringBuilder = new StringBuilder(data.length);
+            for(int i = 0; i < length && i < data.length; i++)
+                stringBuilder.append(String.format("%02X ", data[i]));
+
+            return stringBuilder.toString();
+        }
+        return "";
+    }
+}
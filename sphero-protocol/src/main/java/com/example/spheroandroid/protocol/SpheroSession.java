@@ -0,0 +1,322 @@
+package com.example.spheroandroid.protocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A connection to the sphero: a SpheroProtocol wired to a SpheroTransport, with everything that
+// waits (the delays of connecting and disconnecting, the keep-awake handshake, resend timers and
+// drive ticks) scheduled on a Scheduler instead of sleeping or using timers of its own.
+// SpheroController runs one on its BLE thread, on a Handler. Simulations and tests run one on a
+// VirtualScheduler, so its timing can be tested in virtual time and reproduced exactly.
+//
+// connect() -> (CONNECT_DELAY_ms) transport.connect() -> onConnected() -> discoverServices() ->
+// onServicesDiscovered() -> subscribe() -> (HANDSHAKE_DELAY_ms) keep-awake handshake ->
+// onWriteComplete(ANTI_DOS): the protocol is initialized and Listener.onReady() is called.
+//
+// Except for offerRoll() and clearRoll(), everything must be called on the scheduler's thread,
+// including the SpheroTransport.Callback methods: set the session as the transport's callback if
+// the transport calls back on that thread, or pass the callbacks on to it there.
+public class SpheroSession implements FrameWriter, SpheroTransport.Callback {
+
+    public static final String TAG = "SpheroSession";
+
+    // Android's Bluetooth stack doesn't reliably connect right after a scan stops
+    public static final int CONNECT_DELAY_ms = 500;
+    // The sphero doesn't properly receive the keep-awake handshake right after the services are discovered
+    public static final int HANDSHAKE_DELAY_ms = 200;
+    // Time for the sleep command to go out before disconnecting
+    public static final int SLEEP_DELAY_ms = 200;
+    // Written to the ANTI_DOS channel, without which the sphero drops the connection after 10 seconds.
+    // (look up "Sphero Force Band" and guess why)
+    public static final String KEEP_AWAKE_KEY = "usetheforce...band";
+    // Default drive scheduler settings (see setDriveSchedule())
+    public static final int DEFAULT_DRIVE_TICK_INTERVAL_ms = 50;
+    public static final int DEFAULT_DRIVE_KEEPALIVE_ms = 250;
+    private static final int DRIVE_SPEED_STEP = 2;
+    private static final int DRIVE_HEADING_STEP = 2;
+
+    private static final byte[] KEEP_AWAKE = KEEP_AWAKE_KEY.getBytes(StandardCharsets.UTF_8);
+    private static final long NO_ROLL = Long.MIN_VALUE;
+
+    // What the protocol reports, and how the connection is going
+    public interface Listener extends SpheroProtocol.Listener {
+        // The transport connected, and the services are being discovered
+        default void onTransportConnected() {}
+        default void onServicesDiscovered() {}
+        // The handshake went through: commands are sent from now on
+        default void onReady() {}
+        default void onDisconnected() {}
+    }
+
+    private final SpheroTransport transport;
+    private final Scheduler scheduler;
+    private final Listener listener;
+    private final ProtocolLog log;
+    // Packs commands, parses responses and keeps track of the commands waiting for acknowledgements.
+    private final SpheroProtocol protocol;
+    // Times the commands waiting for acknowledgements
+    private final ResendTimerWheel resendTimers;
+
+    // Latest roll (or aim) input: speed in the high 32 bits and heading in the low 32 bits, or
+    // NO_ROLL when not rolling. Each offerRoll() overwrites it, and the drive scheduler samples
+    // it at a fixed rate, so whatever is sent is always the latest input and a flood of inputs
+    // doesn't build up a queue.
+    private final AtomicLong rollMailbox = new AtomicLong(NO_ROLL);
+    // Samples rollMailbox and sends rolls while driving
+    private final DriveScheduler driveScheduler;
+    private boolean driving;
+    // Time (scheduler.uptimeMillis()) at which the next drive tick is due
+    private long nextDriveTick_ms;
+    private final Runnable driveTickTask = this::driveTick;
+
+    // Scheduled tasks, until they run or are cancelled
+    private Scheduler.Cancellable nextDriveTick;
+    private Scheduler.Cancellable connectTask;
+    private Scheduler.Cancellable handshakeTask;
+    private Scheduler.Cancellable disconnectTask;
+
+    // See SpheroController for the meaning of waitForResponse, resendAttempts, messageTimeout_ms and windowSize.
+    public SpheroSession(SpheroTransport transport, Scheduler scheduler, Listener listener, ProtocolLog log,
+                         boolean waitForResponse, int resendAttempts, int messageTimeout_ms, int windowSize) {
+        this.transport = transport;
+        this.scheduler = scheduler;
+        this.listener = listener;
+        this.log = log;
+        resendTimers = new ResendTimerWheel(scheduler, this::resendTimedOut);
+        protocol = new SpheroProtocol(this, resendTimers, listener, log, scheduler, waitForResponse, resendAttempts, messageTimeout_ms, windowSize);
+        driveScheduler = new DriveScheduler(protocol, DEFAULT_DRIVE_TICK_INTERVAL_ms, DRIVE_SPEED_STEP, DRIVE_HEADING_STEP, DEFAULT_DRIVE_KEEPALIVE_ms);
+    }
+
+    public SpheroProtocol getProtocol() {
+        return protocol;
+    }
+    public SpheroTransport getTransport() {
+        return transport;
+    }
+    public Scheduler getScheduler() {
+        return scheduler;
+    }
+    public ResendTimerWheel getResendTimers() {
+        return resendTimers;
+    }
+    public DriveScheduler getDriveScheduler() {
+        return driveScheduler;
+    }
+    // True once the handshake went through, until disconnected
+    public boolean isReady() {
+        return protocol.isInitialized();
+    }
+    public boolean isDriving() {
+        return driving;
+    }
+
+    // Starts connecting to the sphero at address, after CONNECT_DELAY_ms.
+    public void connect(String address) {
+        // A disconnection still waiting for the sleep command goes first
+        if (disconnectTask != null)
+            disconnect_now();
+        cancel_connecting();
+        protocol.reset();
+        log.i(TAG, "Attempting to connect to Sphero...");
+        connectTask = scheduler.postDelayed(() -> {
+            connectTask = null;
+            if (!transport.connect(address))
+                log.e(TAG, "Unable to start connecting to the sphero.");
+        }, CONNECT_DELAY_ms);
+    }
+
+    // Disconnects, putting the sphero to sleep first (and waiting SLEEP_DELAY_ms for that to go out) if connected.
+    public void disconnect() {
+        cancel_connecting();
+        if (protocol.isInitialized()) {
+            if (disconnectTask != null)
+                return;
+            protocol.sleep();
+            disconnectTask = scheduler.postDelayed(this::disconnect_now, SLEEP_DELAY_ms);
+        } else {
+            disconnect_now();
+        }
+    }
+
+    // Disconnects like disconnect(), then closes the transport for good.
+    // closed: called once the transport is closed, e.g. to stop the scheduler's thread.
+    public void close(Runnable closed) {
+        stopDriving();
+        cancel_connecting();
+        Runnable close = () -> {
+            disconnect_now();
+            transport.close();
+            closed.run();
+        };
+        if (protocol.isInitialized()) {
+            // Unless disconnect() already did
+            if (disconnectTask != null)
+                disconnectTask.cancel();
+            else
+                protocol.sleep();
+            disconnectTask = scheduler.postDelayed(close, SLEEP_DELAY_ms);
+        } else {
+            close.run();
+        }
+    }
+
+    private void disconnect_now() {
+        if (disconnectTask != null) {
+            disconnectTask.cancel();
+            disconnectTask = null;
+        }
+        transport.disconnect();
+        protocol.setInitialized(false);
+    }
+
+    private void cancel_connecting() {
+        if (connectTask != null) {
+            connectTask.cancel();
+            connectTask = null;
+        }
+        if (handshakeTask != null) {
+            handshakeTask.cancel();
+            handshakeTask = null;
+        }
+    }
+
+    // Driving
+
+    // Can be called from any thread, as often as the input changes: the input is sampled by the
+    // drive scheduler (see setDriveSchedule()), and only changes are sent.
+    // Returns true if driving isn't started yet, in which case startDriving() must be called
+    // (on the scheduler's thread).
+    public boolean offerRoll(int speed, int heading) {
+        long roll = ((long)speed << 32) | (heading & 0xFFFFFFFFL);
+        return rollMailbox.getAndSet(roll) == NO_ROLL;
+    }
+    // Can be called from any thread. Drops the roll that hasn't been sent yet, and stops driving at the next tick.
+    public void clearRoll() {
+        rollMailbox.set(NO_ROLL);
+    }
+
+    // Starts sampling the latest roll at the drive scheduler's rate.
+    public void startDriving() {
+        if (driving)
+            return;
+        driving = true;
+        nextDriveTick_ms = scheduler.uptimeMillis();
+        driveTick();
+    }
+
+    // Immediately stops rolling the sphero, facing lastHeading (see SpheroProtocol.rollStop()).
+    public void stopDriving(int lastHeading) {
+        clearRoll();
+        stopDriving();
+        protocol.rollStop(lastHeading);
+    }
+
+    // See SpheroController.setDriveSchedule(). The drive scheduler is reconfigured, so its statistics are kept.
+    // Throws IllegalArgumentException for an invalid schedule (see DriveScheduler.checkSchedule()).
+    public void setDriveSchedule(int tickInterval_ms, int keepalive_ms) {
+        driveScheduler.configure(tickInterval_ms, keepalive_ms);
+    }
+
+    // Sends the latest roll if it changed, and schedules the next tick.
+    // Ticks are scheduled at fixed times, so a late tick doesn't delay the following ones.
+    private void driveTick() {
+        long roll = rollMailbox.get();
+        if (!driving || roll == NO_ROLL) {
+            stopDriving();
+            return;
+        }
+        long now = scheduler.uptimeMillis();
+        driveScheduler.tick((int)(roll >> 32), (int)roll, transport.isIdle(), now);
+
+        nextDriveTick_ms += driveScheduler.getTickInterval_ms();
+        if (nextDriveTick_ms <= now) // fell behind: skip the missed ticks
+            nextDriveTick_ms = now + driveScheduler.getTickInterval_ms();
+        nextDriveTick = scheduler.postDelayed(driveTickTask, nextDriveTick_ms - now);
+    }
+
+    private void stopDriving() {
+        if (nextDriveTick != null) {
+            nextDriveTick.cancel();
+            nextDriveTick = null;
+        }
+        if (driving) {
+            driving = false;
+            log.i(TAG, "Drive scheduler: " + driveScheduler.getStatistics());
+            driveScheduler.reset();
+        }
+    }
+
+    // FrameWriter: sends a packed command to the sphero.
+    @Override
+    public boolean writeFrame(byte[] frame) {
+        return transport.write(SpheroTransport.Channel.API_V2, frame, SpheroTransport.WriteType.WITH_RESPONSE, false);
+    }
+    @Override
+    public boolean writeFrameWithoutResponse(byte[] frame) {
+        return transport.write(SpheroTransport.Channel.API_V2, frame, SpheroTransport.WriteType.WITHOUT_RESPONSE, false);
+    }
+    @Override
+    public boolean writeUrgentFrame(byte[] frame) {
+        return transport.write(SpheroTransport.Channel.API_V2, frame, SpheroTransport.WriteType.WITH_RESPONSE, true);
+    }
+
+    // The command's resend timer expired: the tracker resends it or gives up, unless it was acknowledged.
+    private void resendTimedOut(ResponseCommand command) {
+        protocol.getTracker().onTimeout(command);
+    }
+
+    // SpheroTransport.Callback
+
+    @Override
+    public void onConnected() {
+        listener.onTransportConnected();
+        if (!transport.discoverServices())
+            log.e(TAG, "Failed to start discovering services.");
+    }
+
+    @Override
+    public void onDisconnected() {
+        protocol.setInitialized(false);
+        cancel_connecting();
+        log.i(TAG, "Single commands: " + protocol.getTracker().getRttEstimator(false));
+        log.i(TAG, "Continuous commands: " + protocol.getTracker().getRttEstimator(true));
+        log.i(TAG, "Command classes:\n" + protocol.getTracker().getStatistics());
+        listener.onDisconnected();
+    }
+
+    @Override
+    public void onServicesDiscovered() {
+        listener.onServicesDiscovered();
+        // Start listening to responses sent by the sphero (API_V2 is where most of the data is read from)
+        if (!transport.subscribe(SpheroTransport.Channel.API_V2))
+            log.e(TAG, "Failed to subscribe to API_V2.");
+        if (!transport.subscribe(SpheroTransport.Channel.DFU))
+            log.e(TAG, "Failed to subscribe to DFU.");
+        log.i(TAG, "Starting delay for initial configuration...");
+        if (handshakeTask != null)
+            handshakeTask.cancel();
+        handshakeTask = scheduler.postDelayed(() -> {
+            handshakeTask = null;
+            if (!transport.write(SpheroTransport.Channel.ANTI_DOS, KEEP_AWAKE, SpheroTransport.WriteType.WITH_RESPONSE, false))
+                log.i(TAG, "Failed to send keep-awake message.");
+        }, HANDSHAKE_DELAY_ms);
+    }
+
+    @Override
+    public void onWriteComplete(SpheroTransport.Channel channel) {
+        // Writes of commands are tracked by the protocol's acknowledgements instead.
+        if (channel == SpheroTransport.Channel.ANTI_DOS) {
+            // The keep-awake command is confirmed to have been sent
+            protocol.setInitialized(true);
+            log.i(TAG, "Successfully sent keep-awake. Ready for I/O.");
+            listener.onReady();
+        }
+    }
+
+    // The bytes are timed as arriving now. Hosts that buffer what the transport receives pass it
+    // to getProtocol().receive() with the time it arrived instead.
+    @Override
+    public void onDataReceived(byte[] data, int offset, int length) {
+        protocol.receive(data, offset, length, scheduler.nanoTime());
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.spheroandroid.protocol;
+
+// The link to a sphero, underneath the protocol: connects, finds the sphero's channels, writes
+// bytes to them and reports what the sphero sends back.
+// On Android this is the Bluetooth GATT (the app's GattTransport). Simulators, recorded streams or
+// network bridges implement it too, so the same controller, command scheduler and codec can run
+// against them.
+//
+// A session goes: connect() -> Callback.onConnected() -> discoverServices() ->
+// Callback.onServicesDiscovered() -> subscribe() and write() ... -> Callback.onDisconnected().
+// Methods are called from one thread (the BLE thread, on Android) and must not block it.
+// Callbacks may arrive on any thread, but one at a time.
+public interface SpheroTransport {
+
+    // The sphero's channels (GATT characteristics on a real one)
+    enum Channel {
+        // Commands, and the responses and async packets that come back as notifications
+        API_V2,
+        // Takes the keep-awake handshake, without which the sphero drops the connection
+        ANTI_DOS,
+        // Firmware updates. Subscribed to, but otherwise unused.
+        DFU
+    }
+
+    enum WriteType {
+        // Acknowledged by the link layer: never lost, but slower
+        WITH_RESPONSE,
+        // Not acknowledged: faster, and may be lost
+        WITHOUT_RESPONSE
+    }
+
+    interface Callback {
+        // The link is up. Call discoverServices() next.
+        void onConnected();
+        // The link is down, or connecting failed. Queued writes are forgotten.
+        void onDisconnected();
+        // The channels are known: subscribe() and write() can be used.
+        void onServicesDiscovered();
+        // A write to a channel went through (or failed: either way, the channel is free again).
+        void onWriteComplete(Channel channel);
+        // Bytes sent by the sphero. data is only valid during the call, so it must be copied.
+        void onDataReceived(byte[] data, int offset, int length);
+    }
+
+    void setCallback(Callback callback);
+
+    // Starts connecting to the sphero at the given address (a MAC address, for Bluetooth).
+    // Returns false if connecting couldn't even start.
+    boolean connect(String address);
+    void disconnect();
+    // Disconnects and releases everything. The transport isn't used again.
+    void close();
+
+    // Starts finding the sphero's channels. Returns false if it couldn't start.
+    boolean discoverServices();
+    // Asks for the channel's notifications, passed to Callback.onDataReceived().
+    boolean subscribe(Channel channel);
+    // Writes value to the channel. value may be reused by the caller once this returns.
+    // urgent: write it ahead of any writes that are still waiting.
+    // Returns false if the write was refused (not connected, or the channel wasn't found).
+    boolean write(Channel channel, byte[] value, WriteType writeType, boolean urgent);
+    // True if nothing is waiting to be written, so a write would go out right away.
+    boolean isIdle();
+}
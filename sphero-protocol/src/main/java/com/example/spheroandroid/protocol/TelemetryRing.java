@@ -0,0 +1,148 @@
+package com.example.spheroandroid.protocol;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Preallocated ring of timestamped samples, each made of a fixed number of float channels.
+// One thread writes (the BLE thread, on Android) and any number of threads read, without locks and
+// without allocating.
+// - A Cursor reads every sample in order, like a queue of its own. Each reader creates its own.
+//   If a reader falls more than capacity samples behind, the oldest samples are lost; the cursor
+//   skips ahead and counts them as overrun.
+// - snapshot() copies the latest samples at any time, e.g. to plot or filter them.
+// Readers never see a sample that was overwritten while they copied it: the writer announces each
+// sample before writing it (started) and after (published), and readers check afterwards that
+// what they copied wasn't being overwritten.
+public class TelemetryRing {
+
+    private final int capacity;
+    private final int mask;
+    private final int channels;
+    // Sample data, indexed by slot. The values are stored as float bits.
+    private final AtomicLongArray timestamps;
+    private final AtomicIntegerArray values;
+    // Number of samples the writer has started writing, and finished writing
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong published = new AtomicLong();
+
+    // capacity: number of samples kept (a power of two)
+    // channels: number of values per sample
+    public TelemetryRing(int capacity, int channels) {
+        if(capacity < 2 || Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        if(channels < 1)
+            throw new IllegalArgumentException("A sample needs at least one channel: " + channels);
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.channels = channels;
+        timestamps = new AtomicLongArray(capacity);
+        values = new AtomicIntegerArray(capacity * channels);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+    public int getChannels() {
+        return channels;
+    }
+    // Total number of samples ever published
+    public long getPublishedCount() {
+        return published.get();
+    }
+
+    // Writer only.
+    // Publishes a sample: the first getChannels() values of src.
+    public void publish(long timestamp, float[] src) {
+        long sequence = started.get();
+        // Announced first, so readers can tell that this slot is being overwritten
+        started.set(sequence + 1);
+        int slot = (int)(sequence & mask);
+        timestamps.lazySet(slot, timestamp);
+        int base = slot * channels;
+        for(int i = 0; i < channels; i++)
+            values.lazySet(base + i, Float.floatToRawIntBits(src[i]));
+        published.lazySet(sequence + 1);
+    }
+
+    // Copies the latest samples (at most n, and at most capacity - 1), oldest first.
+    // timestampsDst[i] and valuesDst[i * getChannels(), (i + 1) * getChannels()) receive sample i.
+    // Returns the number of samples copied.
+    public int snapshot(int n, long[] timestampsDst, float[] valuesDst) {
+        while(true) {
+            long end = published.get();
+            int count = (int)Math.min(Math.min(n, end), capacity - 1);
+            long first = end - count;
+            copy(first, count, timestampsDst, 0, valuesDst, 0);
+            // Any slot overwritten during the copy makes the snapshot inconsistent: copy it again.
+            if(started.get() - first <= capacity)
+                return count;
+        }
+    }
+
+    // Reads the samples of a ring in order. Belongs to one reader thread.
+    public class Cursor {
+        // Sequence of the next sample to read
+        private long next;
+        private long overrunCount;
+
+        private Cursor(long next) {
+            this.next = next;
+        }
+
+        // Samples published but not read yet (including any that are about to be overrun)
+        public long available() {
+            return published.get() - next;
+        }
+        // Samples lost because this reader fell too far behind
+        public long getOverrunCount() {
+            return overrunCount;
+        }
+
+        // Copies up to max unread samples, oldest first, in the same layout as snapshot().
+        // Returns the number of samples copied.
+        public int poll(int max, long[] timestampsDst, float[] valuesDst) {
+            long end = published.get();
+            if(end - next > capacity) {
+                overrunCount += end - capacity - next;
+                next = end - capacity;
+            }
+            int count = (int)Math.min(max, end - next);
+            if(count <= 0)
+                return 0;
+            copy(next, count, timestampsDst, 0, valuesDst, 0);
+            // Samples that were overwritten during the copy are lost too
+            long lost = started.get() - capacity - next;
+            if(lost > 0) {
+                int kept = (int)Math.max(0, count - lost);
+                System.arraycopy(timestampsDst, count - kept, timestampsDst, 0, kept);
+                System.arraycopy(valuesDst, (count - kept) * channels, valuesDst, 0, kept * channels);
+                overrunCount += lost;
+                next += lost;
+                count = kept;
+            }
+            next += count;
+            return count;
+        }
+    }
+
+    // A cursor that starts reading at the next sample published.
+    public Cursor newCursor() {
+        return new Cursor(published.get());
+    }
+    // A cursor that starts reading at the oldest sample still in the ring.
+    public Cursor newCursorFromOldest() {
+        return new Cursor(Math.max(0, published.get() - capacity));
+    }
+
+    private void copy(long first, int count, long[] timestampsDst, int timestampOffset, float[] valuesDst, int valueOffset) {
+        for(int i = 0; i < count; i++) {
+            int slot = (int)((first + i) & mask);
+            timestampsDst[timestampOffset + i] = timestamps.get(slot);
+            int base = slot * channels;
+            int dst = valueOffset + i * channels;
+            for(int c = 0; c < channels; c++)
+                valuesDst[dst + c] = Float.intBitsToFloat(values.get(base + c));
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.example.spheroandroid.protocol;
+
+// Hashed timer wheel: at most one timer per key (0 .. capacity-1), each due at a time in ms.
+// A timer goes in the bucket of the tick it is due at (modulo the number of buckets), in a
+// doubly linked list threaded through arrays indexed by key, so arming and cancelling are O(1)
+// and advance() only visits the buckets of the ticks that passed. Timers due more than one turn
+// of the wheel ahead stay in their bucket until their turn comes.
+// Everything is allocated up front: arming, cancelling and firing never allocate.
+// Timers fire at the first tick at or after they are due, so up to tick_ms late and never early.
+// Not thread-safe.
+public class TimerWheel {
+
+    // Called by advance() for each timer that is due
+    public interface Expiry {
+        void onExpired(int key);
+    }
+
+    private static final int NONE = -1;
+    private static final byte IDLE = 0;
+    private static final byte ARMED = 1;
+    // Taken out of its bucket by advance(), about to fire
+    private static final byte FIRING = 2;
+
+    private final int tick_ms;
+    private final int bucketMask;
+    private final int[] bucketHeads;
+    private final int[] next;
+    private final int[] previous;
+    private final long[] dueTick;
+    private final byte[] state;
+    // Keys taken out by advance(), fired once every bucket has been visited
+    private final int[] due;
+    // Last tick advance() went through
+    private long currentTick;
+    private int armedCount;
+
+    // Statistics
+    private long armCount;
+    private long cancelCount;
+    private long firedCount;
+
+    // capacity: number of keys. bucketCount: a power of two. tick_ms * bucketCount should cover
+    // the usual timeouts, so most timers fire in their first turn.
+    public TimerWheel(int capacity, int tick_ms, int bucketCount) {
+        if(bucketCount <= 0 || (bucketCount & (bucketCount - 1)) != 0)
+            throw new IllegalArgumentException("bucketCount must be a power of two: " + bucketCount);
+        if(tick_ms <= 0)
+            throw new IllegalArgumentException("tick_ms must be positive: " + tick_ms);
+        this.tick_ms = tick_ms;
+        bucketMask = bucketCount - 1;
+        bucketHeads = new int[bucketCount];
+        java.util.Arrays.fill(bucketHeads, NONE);
+        next = new int[capacity];
+        previous = new int[capacity];
+        dueTick = new long[capacity];
+        state = new byte[capacity];
+        due = new int[capacity];
+    }
+
+    public int getTick_ms() {
+        return tick_ms;
+    }
+    public int getArmedCount() {
+        return armedCount;
+    }
+    public boolean isEmpty() {
+        return armedCount == 0;
+    }
+    public boolean isArmed(int key) {
+        return state[key] == ARMED;
+    }
+    public long getArmCount() {
+        return armCount;
+    }
+    public long getCancelCount() {
+        return cancelCount;
+    }
+    public long getFiredCount() {
+        return firedCount;
+    }
+
+    // Arms the key's timer to fire delay_ms after now_ms, replacing the one it had.
+    public void arm(int key, long now_ms, long delay_ms) {
+        disarm(key);
+        if(armedCount == 0) {
+            // Nothing to catch up on: start from now
+            currentTick = Math.max(currentTick, Math.floorDiv(now_ms, tick_ms));
+        }
+        long tick = -Math.floorDiv(-(now_ms + Math.max(0, delay_ms)), tick_ms);
+        if(tick <= currentTick)
+            tick = currentTick + 1;
+        dueTick[key] = tick;
+        int bucket = (int)(tick & bucketMask);
+        int head = bucketHeads[bucket];
+        next[key] = head;
+        previous[key] = NONE;
+        if(head != NONE)
+            previous[head] = key;
+        bucketHeads[bucket] = key;
+        state[key] = ARMED;
+        armedCount++;
+        armCount++;
+    }
+
+    // Cancels the key's timer, if it has one. It won't fire, even if it is due in the advance()
+    // that is running.
+    public void cancel(int key) {
+        if(state[key] != IDLE) {
+            disarm(key);
+            cancelCount++;
+        }
+    }
+
+    // Fires the timers due at or before now_ms, in the order of the ticks they are due at (bucket
+    // by bucket when more than a turn has passed). expiry may arm and cancel timers.
+    // Returns the number of timers fired.
+    public int advance(long now_ms, Expiry expiry) {
+        long nowTick = Math.floorDiv(now_ms, tick_ms);
+        if(nowTick <= currentTick)
+            return 0;
+        int dueCount = 0;
+        // After a full turn, every bucket has been visited
+        long lastTick = Math.min(nowTick, currentTick + bucketHeads.length);
+        for(long tick = currentTick + 1; tick <= lastTick && armedCount > 0; tick++) {
+            int key = bucketHeads[(int)(tick & bucketMask)];
+            while(key != NONE) {
+                int nextKey = next[key];
+                if(dueTick[key] <= nowTick) {
+                    unlink(key);
+                    state[key] = FIRING;
+                    due[dueCount++] = key;
+                }
+                key = nextKey;
+            }
+        }
+        currentTick = nowTick;
+        int fired = 0;
+        for(int i = 0; i < dueCount; i++) {
+            int key = due[i];
+            // Unless it was cancelled or armed again by an earlier expiry
+            if(state[key] == FIRING) {
+                state[key] = IDLE;
+                fired++;
+                expiry.onExpired(key);
+            }
+        }
+        firedCount += fired;
+        return fired;
+    }
+
+    // Time of the next tick after now_ms, when advance() should be called next if not empty
+    public long getNextTick_ms(long now_ms) {
+        return (Math.floorDiv(now_ms, tick_ms) + 1) * tick_ms;
+    }
+
+    private void disarm(int key) {
+        if(state[key] == ARMED)
+            unlink(key);
+        state[key] = IDLE;
+    }
+
+    private void unlink(int key) {
+        int nextKey = next[key];
+        int previousKey = previous[key];
+        if(previousKey != NONE)
+            next[previousKey] = nextKey;
+        else
+            bucketHeads[(int)(dueTick[key] & bucketMask)] = nextKey;
+        if(nextKey != NONE)
+            previous[nextKey] = previousKey;
+        armedCount--;
+    }
+}
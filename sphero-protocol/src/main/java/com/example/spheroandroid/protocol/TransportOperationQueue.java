@@ -0,0 +1,220 @@
+package com.example.spheroandroid.protocol;
+
+import java.util.ArrayDeque;
+
+// Runs a transport's operations one at a time, for transports like Android's BluetoothGatt that
+// only allow one outstanding operation: a new operation started before the previous one's callback
+// arrives is silently dropped. Operations are queued here and the next one is started as soon as
+// the transport reports the previous one complete().
+// Nothing is allocated per operation: an operation submitted while idle is started straight away
+// without a record, and queued operations use pooled records that keep the value inline. The pool
+// only grows if more operations are queued at once than it was sized for.
+// Operations are submitted from the transport's thread and completed from the threads its
+// callbacks arrive on, so every method is synchronized.
+public class TransportOperationQueue {
+    private static final String TAG = "TransportOperationQueue";
+
+    // Starts the operations. Called with the queue's lock held.
+    public interface Starter {
+        // Starts an operation, as it was submitted. value: the first length bytes (null if length is 0),
+        // only valid during the call. Returns false if the operation couldn't be started; it is then dropped.
+        boolean start(int type, Object target, byte[] value, int length, int writeType);
+    }
+
+    // A queued operation
+    private static class Operation {
+        int type;
+        Object target;
+        final byte[] value;
+        int length;
+        int writeType;
+        long timeQueued_ns;
+
+        Operation(int maxValueLength) {
+            value = new byte[maxValueLength];
+        }
+    }
+
+    private final Starter starter;
+    private final ProtocolLog log;
+    private final Clock clock;
+    private final int maxValueLength;
+    // If an operation's callback hasn't arrived after this long, assume it was lost and
+    // move on to the next operation.
+    private final long operationTimeout_ns;
+
+    private final ArrayDeque<Operation> queue;
+    private final ArrayDeque<Operation> pool;
+    private int allocatedOperationCount;
+
+    // Whether an operation is waiting for its callback, and when that operation was queued and started
+    private boolean busy;
+    private long currentTimeQueued_ns;
+    private long currentTimeStarted_ns;
+    // An operation was given up on, but its callback may still arrive: the next complete() is then
+    // that callback, not the current operation's.
+    private boolean expectingLateCallback;
+    // A callback was taken for a late one while the current operation was outstanding. If the current
+    // operation then times out too, that callback was really its own (the lost one never arrived).
+    private boolean lateCallbackTaken;
+
+    // Completed operations and their latency (from starting the operation to its callback)
+    private long operationCount;
+    private long totalLatency_ns;
+    private long maxLatency_ns;
+    // Total time that operations spent waiting in the queue
+    private long totalQueueWait_ns;
+    private int maxQueueLength;
+    private long lostOperationCount;
+
+    // maxValueLength: longest value that can be submitted. capacity: records allocated up front.
+    public TransportOperationQueue(Starter starter, ProtocolLog log, Clock clock, int maxValueLength, int capacity, long operationTimeout_ns) {
+        this.starter = starter;
+        this.log = log;
+        this.clock = clock;
+        this.maxValueLength = maxValueLength;
+        this.operationTimeout_ns = operationTimeout_ns;
+        queue = new ArrayDeque<>(capacity);
+        pool = new ArrayDeque<>(capacity);
+        for(int i = 0; i < capacity; i++)
+            pool.push(new Operation(maxValueLength));
+        allocatedOperationCount = capacity;
+    }
+
+    public synchronized long getOperationCount() {
+        return operationCount;
+    }
+    public synchronized long getLostOperationCount() {
+        return lostOperationCount;
+    }
+    public synchronized int getQueueLength() {
+        return queue.size();
+    }
+    public synchronized int getMaxQueueLength() {
+        return maxQueueLength;
+    }
+    public synchronized int getAllocatedOperationCount() {
+        return allocatedOperationCount;
+    }
+    public synchronized String getStatistics() {
+        return "operations: " + operationCount
+                + " | average latency: " + (operationCount == 0 ? 0 : totalLatency_ns / operationCount / 1000) + " us"
+                + " | max latency: " + (maxLatency_ns / 1000) + " us"
+                + " | average queue wait: " + (operationCount == 0 ? 0 : totalQueueWait_ns / operationCount / 1000) + " us"
+                + " | max queue length: " + maxQueueLength
+                + " | lost: " + lostOperationCount;
+    }
+
+    // True if no operation is outstanding, so an operation would start right away.
+    public synchronized boolean isIdle() {
+        expireLostOperation();
+        return !busy && queue.isEmpty();
+    }
+
+    // Starts the operation now if the transport is idle, or queues it until the previous
+    // operations complete.
+    // value may be reused by the caller once this returns, so it is copied if the operation is queued.
+    // urgent: queue the operation ahead of the other queued operations.
+    public synchronized void submit(int type, Object target, byte[] value, int length, int writeType, boolean urgent) {
+        if(length > maxValueLength)
+            throw new IllegalArgumentException("Value is longer than " + maxValueLength + " bytes: " + length);
+        expireLostOperation();
+        long now_ns = clock.nanoTime();
+        if(!busy && queue.isEmpty()) {
+            // The transport copies the value when the operation starts, so it doesn't need to be kept.
+            start(type, target, value, length, writeType, now_ns, now_ns);
+            return;
+        }
+        Operation operation = pool.poll();
+        if(operation == null) {
+            operation = new Operation(maxValueLength);
+            allocatedOperationCount++;
+        }
+        operation.type = type;
+        operation.target = target;
+        if(length > 0)
+            System.arraycopy(value, 0, operation.value, 0, length);
+        operation.length = length;
+        operation.writeType = writeType;
+        operation.timeQueued_ns = now_ns;
+        if(urgent)
+            queue.addFirst(operation);
+        else
+            queue.add(operation);
+        if(queue.size() > maxQueueLength)
+            maxQueueLength = queue.size();
+        if(!busy)
+            startNextOperation();
+    }
+
+    // Called when the outstanding operation's callback arrives: starts the next one.
+    // Returns false if no operation was outstanding, or if the callback was taken for the late one of
+    // an operation that was assumed lost.
+    public synchronized boolean complete() {
+        if(expectingLateCallback) {
+            expectingLateCallback = false;
+            lateCallbackTaken = busy;
+            log.w(TAG, "Callback of a lost operation arrived late");
+            return false;
+        }
+        if(!busy)
+            return false;
+        long latency_ns = clock.nanoTime() - currentTimeStarted_ns;
+        operationCount++;
+        totalLatency_ns += latency_ns;
+        if(latency_ns > maxLatency_ns)
+            maxLatency_ns = latency_ns;
+        if(log.isVerbose())
+            log.v(TAG, "Operation took " + latency_ns / 1000 + " us (queued for " + (currentTimeStarted_ns - currentTimeQueued_ns) / 1000 + " us)");
+        busy = false;
+        startNextOperation();
+        return true;
+    }
+
+    // Forgets the outstanding and queued operations, e.g. when disconnected, since their callbacks won't arrive anymore.
+    public synchronized void clear() {
+        Operation operation;
+        while((operation = queue.poll()) != null)
+            release(operation);
+        busy = false;
+        expectingLateCallback = false;
+        lateCallbackTaken = false;
+    }
+
+    // Gives up on the current operation if its callback is taking far too long.
+    private void expireLostOperation() {
+        if(busy && clock.nanoTime() - currentTimeStarted_ns > operationTimeout_ns) {
+            lostOperationCount++;
+            log.w(TAG, "Operation callback never arrived. Lost operations: " + lostOperationCount);
+            busy = false;
+            expectingLateCallback = !lateCallbackTaken;
+            startNextOperation();
+        }
+    }
+
+    private void startNextOperation() {
+        Operation operation;
+        while(!busy && (operation = queue.poll()) != null) {
+            start(operation.type, operation.target, operation.value, operation.length, operation.writeType, operation.timeQueued_ns, clock.nanoTime());
+            release(operation);
+        }
+    }
+
+    // If the operation can't be started, it is dropped and the queue stays idle.
+    private void start(int type, Object target, byte[] value, int length, int writeType, long timeQueued_ns, long now_ns) {
+        if(starter.start(type, target, value, length, writeType)) {
+            busy = true;
+            lateCallbackTaken = false;
+            currentTimeQueued_ns = timeQueued_ns;
+            currentTimeStarted_ns = now_ns;
+            totalQueueWait_ns += now_ns - timeQueued_ns;
+        } else {
+            log.w(TAG, "Failed to start operation of type " + type);
+        }
+    }
+
+    private void release(Operation operation) {
+        operation.target = null;
+        pool.push(operation);
+    }
+}
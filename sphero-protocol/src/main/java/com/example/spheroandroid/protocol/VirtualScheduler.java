@@ -0,0 +1,98 @@
+package com.example.spheroandroid.protocol;
+
+import java.util.PriorityQueue;
+
+// Scheduler on a virtual clock: a discrete-event loop. The session under test and everything it
+// talks to (the simulator's links and virtual sphero, or a test's fake transport) run as events on
+// it, on the caller's thread, so a run is deterministic and goes as fast as the events can be
+// processed. Time only moves in runUntil(), runFor() and runUntilIdle().
+// Events scheduled for the same time run in the order they were scheduled.
+// Not thread-safe.
+public class VirtualScheduler implements Scheduler {
+
+    private static class Event implements Comparable<Event> {
+        final long time_ns;
+        final long order;
+        final Runnable task;
+        boolean cancelled;
+
+        Event(long time_ns, long order, Runnable task) {
+            this.time_ns = time_ns;
+            this.order = order;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            if(time_ns != other.time_ns)
+                return Long.compare(time_ns, other.time_ns);
+            return Long.compare(order, other.order);
+        }
+    }
+
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private long now_ns;
+    private long scheduledCount;
+    private long executedCount;
+
+    public long now_ns() {
+        return now_ns;
+    }
+    public long now_ms() {
+        return now_ns / 1_000_000;
+    }
+    @Override
+    public long nanoTime() {
+        return now_ns;
+    }
+    public long getExecutedCount() {
+        return executedCount;
+    }
+    public boolean isIdle() {
+        return events.isEmpty();
+    }
+
+    // Runs task delay_ns from now (or now, if delay_ns <= 0).
+    public Cancellable schedule(long delay_ns, Runnable task) {
+        return scheduleAt(now_ns + Math.max(0, delay_ns), task);
+    }
+    public Cancellable scheduleAt(long time_ns, Runnable task) {
+        Event event = new Event(Math.max(now_ns, time_ns), scheduledCount++, task);
+        events.add(event);
+        return () -> event.cancelled = true;
+    }
+    @Override
+    public Cancellable postDelayed(Runnable task, long delay_ms) {
+        return schedule(delay_ms * 1_000_000, task);
+    }
+
+    // Runs the events up to and including time_ns, then moves the clock to time_ns.
+    public void runUntil(long time_ns) {
+        Event event;
+        while((event = events.peek()) != null && event.time_ns <= time_ns)
+            runNext();
+        now_ns = Math.max(now_ns, time_ns);
+    }
+    public void runFor(long duration_ns) {
+        runUntil(now_ns + duration_ns);
+    }
+    // Runs events until there are none left, or until maxEvents have run (in case something
+    // keeps rescheduling itself). Returns false if it stopped at maxEvents.
+    public boolean runUntilIdle(long maxEvents) {
+        for(long i = 0; i < maxEvents; i++) {
+            if(events.isEmpty())
+                return true;
+            runNext();
+        }
+        return events.isEmpty();
+    }
+
+    private void runNext() {
+        Event event = events.poll();
+        now_ns = event.time_ns;
+        if(event.cancelled)
+            return;
+        executedCount++;
+        event.task.run();
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.spheroandroid.protocol;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ByteRingTest {
+
+    @Test
+    public void drain_returnsBytesInOrderAcrossTheWrap() {
+        ByteRing ring = new ByteRing(8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(ring.offer(new byte[] {1, 2, 3, 4, 5, 6}));
+        assertEquals(6, ring.drainTo(out::write));
+
+        // Wraps around the end of the ring
+        assertTrue(ring.offer(new byte[] {7, 8, 9, 10, 11}));
+        int[] calls = new int[1];
+        assertEquals(5, ring.drainTo((buffer, offset, length) -> {
+            calls[0]++;
+            out.write(buffer, offset, length);
+        }));
+        assertEquals(2, calls[0]);
+        assertArrayEquals(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11}, out.toByteArray());
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void offer_dropsWholeNotificationWhenFull() {
+        ByteRing ring = new ByteRing(8);
+        assertTrue(ring.offer(new byte[] {1, 2, 3, 4, 5}));
+        assertFalse(ring.offer(new byte[] {6, 7, 8, 9}));
+        assertEquals(5, ring.size());
+        assertEquals(1, ring.getDroppedCount());
+        assertEquals(4, ring.getDroppedBytes());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ring.drainTo(out::write);
+        assertArrayEquals(new byte[] {1, 2, 3, 4, 5}, out.toByteArray());
+        assertEquals(0, ring.drainTo(out::write));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacity_mustBeAPowerOfTwo() {
+        new ByteRing(20);
+    }
+
+    @Test
+    public void producerAndConsumerThreads_seeEveryByteInOrder() throws InterruptedException {
+        final int total = 200_000;
+        ByteRing ring = new ByteRing(64);
+        Thread producer = new Thread(() -> {
+            Random random = new Random(7);
+            byte[] chunk = new byte[20];
+            int sent = 0;
+            while(sent < total) {
+                int length = Math.min(total - sent, 1 + random.nextInt(chunk.length));
+                for(int i = 0; i < length; i++)
+                    chunk[i] = (byte)(sent + i);
+                // Full: wait for the consumer instead of dropping, so every byte can be checked
+                while(!ring.offer(chunk, 0, length))
+                    Thread.yield();
+                sent += length;
+            }
+        });
+        producer.start();
+
+        int[] received = new int[1];
+        boolean[] inOrder = {true};
+        while(received[0] < total) {
+            int drained = ring.drainTo((buffer, offset, length) -> {
+                for(int i = 0; i < length; i++)
+                    if(buffer[offset + i] != (byte)(received[0] + i))
+                        inOrder[0] = false;
+                received[0] += length;
+            });
+            if(drained == 0)
+                Thread.yield();
+        }
+        producer.join();
+        assertTrue(inOrder[0]);
+        assertEquals(total, received[0]);
+    }
+}
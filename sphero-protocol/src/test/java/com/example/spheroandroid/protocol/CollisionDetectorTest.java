@@ -0,0 +1,115 @@
+package com.example.spheroandroid.protocol;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CollisionDetectorTest {
+
+    private static final byte ASYNC_FLAGS = SpheroConstants.resetsInactivityTimeout;
+
+    private final List<byte[]> written = new ArrayList<>();
+    private final List<Collision> collisions = new ArrayList<>();
+    private final SpheroProtocol protocol = new SpheroProtocol(frame -> written.add(frame.clone()), (command, timeout_ms) -> { },
+            new SpheroProtocol.Listener() {
+                @Override
+                public void onBatteryVoltage(double volts) { }
+                @Override
+                public void onCollision(Collision collision) {
+                    Collision copy = new Collision();
+                    copy.copyFrom(collision);
+                    collisions.add(copy);
+                }
+            }, ProtocolLog.NONE, true, 3, 200, 1);
+
+    @Test
+    public void configure_sendsThresholdsThenEnablesNotifications() {
+        protocol.setInitialized(true);
+        protocol.configureCollisionDetection(90, 80, 300, 40, 250);
+        assertTrue(protocol.getCollisionDetector().isEnabled());
+        assertEquals(1, written.size());
+        // Speed X clamped to 255, dead time in 10 ms units
+        assertFrame(written.get(0), SpheroConstants.configureCollision, 0x01, 90, 80, 0xFF, 40, 25);
+
+        protocol.getTracker().acknowledge((byte)0);
+        assertEquals(2, written.size());
+        assertFrame(written.get(1), SpheroConstants.enableCollisionAsync, 0x01);
+    }
+
+    @Test
+    public void disable_turnsNotificationsAndDetectionOff() {
+        protocol.setInitialized(true);
+        protocol.disableCollisionDetection();
+        protocol.getTracker().acknowledge((byte)0);
+        assertFalse(protocol.getCollisionDetector().isEnabled());
+        assertFrame(written.get(0), SpheroConstants.enableCollisionAsync, 0x00);
+        assertFrame(written.get(1), SpheroConstants.configureCollision, 0x00);
+    }
+
+    @Test
+    public void receive_decodesCollisionsWithTheirArrivalTime() {
+        byte[] payload = {
+                0x10, 0x00, (byte)0xF8, 0x00, 0x00, 0x00, // acceleration: 1 g, -0.5 g, 0 g
+                0x03, // X and Y
+                0x01, 0x2C, 0x00, 0x64, (byte)0xFF, (byte)0xFF, // power: 300, 100, -1
+                (byte)0xC8, // speed 200
+                (byte)0x80, 0x00, 0x01, 0x00 // 2147483904 ms
+        };
+        receiveCollision(payload, 1234L);
+
+        assertEquals(1, collisions.size());
+        Collision collision = collisions.get(0);
+        assertArrayEquals(new float[] {1f, -0.5f, 0f}, collision.acceleration, 0);
+        assertTrue(collision.hasAxis(Collision.AXIS_X));
+        assertTrue(collision.hasAxis(Collision.AXIS_Y));
+        assertArrayEquals(new int[] {300, 100, -1}, collision.power);
+        assertEquals(200, collision.speed);
+        assertEquals(2147483904L, collision.sensorTime_ms);
+        assertEquals(1234L, collision.arrival_ns);
+        assertTrue(collision.decoded_ns != 0);
+        // Collisions aren't acknowledgements
+        assertEquals(0, protocol.getTracker().getAcknowledgedCount(CommandClass.CONFIGURATION));
+    }
+
+    @Test
+    public void receive_dropsCollisionsOfTheWrongLength() {
+        receiveCollision(new byte[10], 0);
+        assertTrue(collisions.isEmpty());
+        assertEquals(1, protocol.getCollisionDetector().getMalformedCount());
+    }
+
+    @Test
+    public void latencyStats_keepCountMeanMaxAndPercentiles() {
+        LatencyStats stats = new LatencyStats();
+        assertEquals(0, stats.getPercentile_ns(99));
+        for(int i = 0; i < 99; i++)
+            stats.record(500_000); // 0.5 ms
+        stats.record(20_000_000); // 20 ms
+
+        assertEquals(100, stats.getCount());
+        assertEquals((99 * 500_000L + 20_000_000L) / 100, stats.getMean_ns());
+        assertEquals(20_000_000, stats.getMax_ns());
+        // Bucket bounds are within a factor of two
+        long median = stats.getPercentile_ns(50);
+        assertTrue(median >= 500_000 && median <= 1_000_000);
+        assertEquals(20_000_000, stats.getPercentile_ns(100));
+        stats.reset();
+        assertEquals(0, stats.getCount());
+    }
+
+    private void receiveCollision(byte[] payload, long arrival_ns) {
+        byte[] frame = new PacketEncoder().encode(ASYNC_FLAGS, SpheroConstants.sensor, SpheroConstants.collisionDetectedAsync, (byte)0,
+                payload, 0, payload.length);
+        protocol.receive(frame, 0, frame.length, arrival_ns);
+    }
+
+    private static void assertFrame(byte[] frame, byte commandID, int... payload) {
+        assertEquals(SpheroConstants.sensor, frame[2]);
+        assertEquals(commandID, frame[3]);
+        for(int i = 0; i < payload.length; i++)
+            assertEquals("payload byte " + i, (byte)payload[i], frame[5 + i]);
+    }
+}
@@ -0,0 +1,423 @@
+package com.example.spheroandroid.protocol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CommandTrackerTest {
+
+    private final List<byte[]> written = new ArrayList<>();
+    private final List<ResponseCommand> timers = new ArrayList<>();
+    private final List<Integer> timeouts = new ArrayList<>();
+    private CommandTracker tracker;
+
+    @Before
+    public void setUp() {
+        tracker = new CommandTracker(new PacketEncoder(), frame -> written.add(frame.clone()),
+                (command, timeout_ms) -> {
+                    timers.add(command);
+                    timeouts.add(timeout_ms);
+                }, ProtocolLog.NONE, true, 3, 200, 1);
+        tracker.setInitialized(true);
+    }
+
+    @Test
+    public void send_waitsForAcknowledgementBeforeSendingNext() {
+        tracker.send(SpheroConstants.powerInfo, SpheroConstants.wake, new byte[0], 0, CommandClass.CONFIGURATION);
+        tracker.send(SpheroConstants.driving, SpheroConstants.resetHeading, new byte[0], 0, CommandClass.CONFIGURATION);
+        assertEquals(1, written.size());
+        assertEquals(0, sequenceOf(written.get(0)));
+
+        assertNotNull(tracker.acknowledge((byte)0));
+        assertEquals(2, written.size());
+        assertEquals(1, sequenceOf(written.get(1)));
+        assertEquals(SpheroConstants.resetHeading, written.get(1)[3]);
+        assertEquals(1, tracker.getQueueSize());
+    }
+
+    @Test
+    public void onTimeout_resendsWithNewSequenceThenGivesUp() {
+        tracker.send(SpheroConstants.powerInfo, SpheroConstants.wake, new byte[0], 0, CommandClass.CONFIGURATION);
+        tracker.onTimeout(timers.get(0));
+        assertEquals(2, written.size());
+        assertEquals(1, sequenceOf(written.get(1)));
+
+        tracker.onTimeout(timers.get(1));
+        tracker.onTimeout(timers.get(2));
+        assertEquals("sent 3 times in total", 3, written.size());
+        assertEquals(0, tracker.getQueueSize());
+    }
+
+    @Test
+    public void listener_isToldOfAcknowledgementsAndGivingUp() {
+        List<String> events = new ArrayList<>();
+        tracker.setListener(new CommandTracker.Listener() {
+            @Override
+            public void onAcknowledged(byte deviceID, byte commandID, CommandClass commandClass, long rtt_ms) {
+                events.add("ack " + commandID + " " + commandClass);
+            }
+            @Override
+            public void onGaveUp(byte deviceID, byte commandID, CommandClass commandClass) {
+                events.add("gave up " + commandID + " " + commandClass);
+            }
+        });
+        tracker.send(SpheroConstants.powerInfo, SpheroConstants.wake, new byte[0], 0, CommandClass.CONFIGURATION);
+        tracker.acknowledge((byte)0);
+        tracker.send(SpheroConstants.powerInfo, SpheroConstants.batteryVoltage, new byte[0], 0, CommandClass.TELEMETRY_QUERY);
+        tracker.onTimeout(timers.get(1));
+        tracker.onTimeout(timers.get(2));
+
+        assertEquals(2, events.size());
+        assertEquals("ack " + SpheroConstants.wake + " CONFIGURATION", events.get(0));
+        assertEquals("gave up " + SpheroConstants.batteryVoltage + " TELEMETRY_QUERY", events.get(1));
+    }
+
+    @Test
+    public void onTimeout_backsOffResendTimeout() {
+        tracker.send(SpheroConstants.powerInfo, SpheroConstants.wake, new byte[0], 0, CommandClass.CONFIGURATION);
+        tracker.onTimeout(timers.get(0));
+        assertEquals(200, (int)timeouts.get(0));
+        assertEquals(400, (int)timeouts.get(1));
+        // Continuous commands have their own estimate
+        assertEquals(200, tracker.getRttEstimator(true).getTimeout_ms());
+    }
+
+    @Test
+    public void onTimeout_ignoresAcknowledgedCommands() {
+        tracker.send(SpheroConstants.powerInfo, SpheroConstants.wake, new byte[0], 0, CommandClass.CONFIGURATION);
+        tracker.acknowledge((byte)0);
+        tracker.onTimeout(timers.get(0));
+        assertEquals(1, written.size());
+    }
+
+    @Test
+    public void acknowledge_rejectsAcknowledgementOfResentOriginal() {
+        tracker.send(SpheroConstants.powerInfo, SpheroConstants.wake, new byte[0], 0, CommandClass.CONFIGURATION);
+        tracker.send(SpheroConstants.driving, SpheroConstants.resetHeading, new byte[0], 0, CommandClass.CONFIGURATION);
+        tracker.onTimeout(timers.get(0));
+        assertEquals(1, sequenceOf(written.get(1)));
+
+        // Late acknowledgement for the first attempt: the resent command is still waiting
+        assertNull(tracker.acknowledge((byte)0));
+        assertEquals(2, written.size());
+        assertEquals(1, tracker.getInFlightCount());
+
+        ResponseCommand acknowledged = tracker.acknowledge((byte)1);
+        assertNotNull(acknowledged);
+        assertEquals(SpheroConstants.wake, acknowledged.getCommandID());
+        assertEquals(SpheroConstants.resetHeading, written.get(2)[3]);
+    }
+
+    @Test
+    public void onTimeout_ignoresTimerOfReusedSequenceNumber() {
+        // Go all the way around the sequence numbers, so sequence 0 is used again
+        for(int i = 0; i < 257; i++) {
+            tracker.send(SpheroConstants.powerInfo, SpheroConstants.wake, new byte[0], 0, CommandClass.CONFIGURATION);
+            if(i < 256)
+                tracker.acknowledge((byte)i);
+        }
+        assertEquals(0, sequenceOf(written.get(256)));
+        assertEquals(1, tracker.getInFlightCount());
+
+        // The first command's timer fires late
+        tracker.onTimeout(timers.get(0));
+        assertEquals(257, written.size());
+        assertNotNull(tracker.acknowledge((byte)0));
+    }
+
+    @Test
+    public void send_queuesCommandsWithoutSequenceNumbersUntilSent() {
+        for(int i = 0; i < 8; i++)
+            tracker.send(SpheroConstants.userIO, SpheroConstants.allLEDs, new byte[] { (byte)i }, 1, CommandClass.CONFIGURATION);
+        assertEquals(1, tracker.getInFlightCount());
+        assertEquals(7, tracker.getPendingCount());
+
+        // Each acknowledgement sends the next command with the next sequence number
+        for(int i = 0; i < 8; i++)
+            assertNotNull(tracker.acknowledge((byte)i));
+        assertEquals(8, written.size());
+        for(int i = 0; i < 8; i++) {
+            assertEquals(i, sequenceOf(written.get(i)));
+            assertEquals(i, written.get(i)[5]);
+        }
+        assertEquals(0, tracker.getQueueSize());
+    }
+
+    @Test
+    public void window_sendsStopsWithoutWaitingAndMatchesAcknowledgementsOutOfOrder() {
+        tracker = windowedTracker(4);
+        tracker.send(SpheroConstants.userIO, SpheroConstants.allLEDs, new byte[] { 1 }, 1, CommandClass.CONFIGURATION);
+        for(int i = 0; i < 3; i++)
+            tracker.send(SpheroConstants.driving, SpheroConstants.driveWithHeading, new byte[] { 0, (byte)i, 0, 0 }, 4, CommandClass.EMERGENCY_STOP);
+        assertEquals(4, written.size());
+        assertEquals(4, tracker.getInFlightCount());
+
+        // Full window: the next command waits for an acknowledgement
+        tracker.send(SpheroConstants.powerInfo, SpheroConstants.batteryVoltage, new byte[0], 0, CommandClass.TELEMETRY_QUERY);
+        assertEquals(4, written.size());
+        assertEquals(2, tracker.acknowledge((byte)2).getSequence());
+        // It is a single command, so it also waits for the LED command
+        assertEquals(4, written.size());
+        assertNotNull(tracker.acknowledge((byte)0));
+        assertEquals(5, written.size());
+        assertEquals(4, sequenceOf(written.get(4)));
+        assertNull(tracker.acknowledge((byte)2));
+    }
+
+    @Test
+    public void window_countsStopsInFlight() {
+        tracker.send(SpheroConstants.driving, SpheroConstants.driveWithHeading, new byte[] { 0, 0, 0, 0 }, 4, CommandClass.EMERGENCY_STOP);
+        // Window of 1: the LED command waits for the stop's acknowledgement
+        tracker.send(SpheroConstants.userIO, SpheroConstants.allLEDs, new byte[] { 1 }, 1, CommandClass.CONFIGURATION);
+        assertEquals(1, written.size());
+        tracker.acknowledge((byte)0);
+        assertEquals(2, written.size());
+        assertEquals(SpheroConstants.allLEDs, written.get(1)[3]);
+    }
+
+    @Test
+    public void window_sendsSingleCommandsOneAtATime() {
+        tracker = windowedTracker(4);
+        tracker.send(SpheroConstants.userIO, SpheroConstants.allLEDs, new byte[] { 1 }, 1, CommandClass.CONFIGURATION);
+        tracker.send(SpheroConstants.userIO, SpheroConstants.allLEDs, new byte[] { 2 }, 1, CommandClass.CONFIGURATION);
+        // The stop doesn't wait behind the second LED command
+        tracker.send(SpheroConstants.driving, SpheroConstants.driveWithHeading, new byte[] { 0, 0, 0, 0 }, 4, CommandClass.EMERGENCY_STOP);
+        assertEquals(2, written.size());
+        assertEquals(1, written.get(0)[5]);
+        assertEquals(SpheroConstants.driveWithHeading, written.get(1)[3]);
+
+        // The first LED command is resent before the second one is sent
+        tracker.onTimeout(timers.get(0));
+        assertEquals(3, written.size());
+        assertEquals(1, written.get(2)[5]);
+
+        tracker.acknowledge((byte)2);
+        assertEquals(4, written.size());
+        assertEquals(2, written.get(3)[5]);
+    }
+
+    @Test
+    public void emergencyStop_skipsQueueAndFullWindow() {
+        List<byte[]> urgent = new ArrayList<>();
+        tracker = new CommandTracker(new PacketEncoder(), new FrameWriter() {
+            @Override
+            public boolean writeFrame(byte[] frame) {
+                return written.add(frame.clone());
+            }
+            @Override
+            public boolean writeUrgentFrame(byte[] frame) {
+                return urgent.add(frame.clone());
+            }
+        }, (command, timeout_ms) -> timers.add(command), ProtocolLog.NONE, true, 3, 200, 1);
+        tracker.setInitialized(true);
+        tracker.send(SpheroConstants.userIO, SpheroConstants.allLEDs, new byte[] { 1 }, 1, CommandClass.CONFIGURATION);
+        tracker.send(SpheroConstants.userIO, SpheroConstants.allLEDs, new byte[] { 2 }, 1, CommandClass.CONFIGURATION);
+        tracker.send(SpheroConstants.powerInfo, SpheroConstants.batteryVoltage, new byte[0], 0, CommandClass.TELEMETRY_QUERY);
+
+        tracker.send(SpheroConstants.driving, SpheroConstants.driveWithHeading, new byte[] { 0, 0, 0, 0 }, 4, CommandClass.EMERGENCY_STOP);
+        assertEquals(1, urgent.size());
+        assertEquals(1, written.size());
+        assertEquals(2, tracker.getInFlightCount());
+
+        // Resends of the stop are urgent too
+        tracker.onTimeout(timers.get(1));
+        assertEquals(2, urgent.size());
+        assertEquals(1, tracker.getSentCount(CommandClass.EMERGENCY_STOP));
+        assertEquals(1, tracker.getResentCount(CommandClass.EMERGENCY_STOP));
+    }
+
+    @Test
+    public void emergencyStop_isUrgentWhenNotWaitingForResponses() {
+        List<byte[]> urgent = new ArrayList<>();
+        tracker = new CommandTracker(new PacketEncoder(), new FrameWriter() {
+            @Override
+            public boolean writeFrame(byte[] frame) {
+                return written.add(frame.clone());
+            }
+            @Override
+            public boolean writeUrgentFrame(byte[] frame) {
+                return urgent.add(frame.clone());
+            }
+        }, (command, timeout_ms) -> timers.add(command), ProtocolLog.NONE, false, 3, 200, 1);
+        tracker.setInitialized(true);
+        tracker.send(SpheroConstants.userIO, SpheroConstants.allLEDs, new byte[] { 1 }, 1, CommandClass.CONFIGURATION);
+        tracker.send(SpheroConstants.driving, SpheroConstants.driveWithHeading, new byte[] { 0, 0, 0, 0 }, 4, CommandClass.EMERGENCY_STOP);
+        assertEquals(1, written.size());
+        assertEquals(1, urgent.size());
+        assertEquals(SpheroConstants.driveWithHeading, urgent.get(0)[3]);
+        assertTrue(timers.isEmpty());
+    }
+
+    @Test
+    public void removeCommandsOfType_onlyStopsResendingThatType() {
+        tracker = windowedTracker(4);
+        tracker.send(SpheroConstants.userIO, SpheroConstants.allLEDs, new byte[] { 1 }, 1, CommandClass.CONFIGURATION);
+        // What rollStop() does
+        tracker.removeCommandsOfType(SpheroConstants.driving, SpheroConstants.driveWithHeading);
+        tracker.send(SpheroConstants.driving, SpheroConstants.driveWithHeading, new byte[] { 0, 0, 0, 0 }, 4, CommandClass.EMERGENCY_STOP);
+        assertEquals(2, tracker.getInFlightCount());
+
+        // The LED command in flight is still resent
+        tracker.onTimeout(timers.get(0));
+        assertEquals(3, written.size());
+        assertEquals(SpheroConstants.allLEDs, written.get(2)[3]);
+        assertEquals(1, tracker.getResentCount(CommandClass.CONFIGURATION));
+    }
+
+    @Test
+    public void overflow_appliesEachClassPolicy() {
+        // Keep the window busy so everything else waits
+        tracker.send(SpheroConstants.powerInfo, SpheroConstants.wake, new byte[0], 0, CommandClass.CONFIGURATION);
+
+        // Coalesced into one query
+        tracker.send(SpheroConstants.powerInfo, SpheroConstants.batteryVoltage, new byte[0], 0, CommandClass.TELEMETRY_QUERY);
+        tracker.send(SpheroConstants.powerInfo, SpheroConstants.batteryVoltage, new byte[0], 0, CommandClass.TELEMETRY_QUERY);
+        assertEquals(1, tracker.getPendingCount(CommandClass.TELEMETRY_QUERY));
+        assertEquals(1, tracker.getCoalescedCount(CommandClass.TELEMETRY_QUERY));
+
+        // Full query queue with nothing to coalesce with: the oldest is dropped
+        tracker.send(SpheroConstants.systemInfo, SpheroConstants.mainApplicationVersion, new byte[0], 0, CommandClass.TELEMETRY_QUERY);
+        tracker.send(SpheroConstants.systemInfo, SpheroConstants.bootloaderVersion, new byte[0], 0, CommandClass.TELEMETRY_QUERY);
+        assertEquals(2, tracker.getPendingCount(CommandClass.TELEMETRY_QUERY));
+        assertEquals(1, tracker.getDroppedCount(CommandClass.TELEMETRY_QUERY));
+
+        // Configuration commands are never shed
+        for(int i = 0; i < 9; i++)
+            tracker.send(SpheroConstants.userIO, SpheroConstants.allLEDs, new byte[] { (byte)i }, 1, CommandClass.CONFIGURATION);
+        assertEquals(9, tracker.getPendingCount(CommandClass.CONFIGURATION));
+        assertEquals(1, tracker.getOverCapacityCount(CommandClass.CONFIGURATION));
+        assertFalse(tracker.canAccept(CommandClass.CONFIGURATION));
+
+        // Configuration commands go first once the window opens
+        tracker.acknowledge((byte)0);
+        assertEquals(SpheroConstants.allLEDs, written.get(1)[3]);
+        assertEquals(0, written.get(1)[5]);
+    }
+
+    @Test
+    public void window_doesNotResendStopsThatWereReplaced() {
+        tracker = windowedTracker(4);
+        tracker.send(SpheroConstants.driving, SpheroConstants.driveWithHeading, new byte[] { 0, 1, 0, 0 }, 4, CommandClass.EMERGENCY_STOP);
+        tracker.send(SpheroConstants.driving, SpheroConstants.driveWithHeading, new byte[] { 0, 2, 0, 0 }, 4, CommandClass.EMERGENCY_STOP);
+        tracker.onTimeout(timers.get(0));
+        assertEquals(2, written.size());
+        assertEquals(1, tracker.getInFlightCount());
+
+        // The newest stop is still resent
+        tracker.onTimeout(timers.get(1));
+        assertEquals(3, written.size());
+        assertEquals(2, written.get(2)[6]);
+    }
+
+    @Test
+    public void sendUnacknowledged_writesWithoutResponseAndOnlyAsksForErrors() {
+        List<byte[]> writtenWithoutResponse = new ArrayList<>();
+        tracker = new CommandTracker(new PacketEncoder(), new FrameWriter() {
+            @Override
+            public boolean writeFrame(byte[] frame) {
+                return written.add(frame.clone());
+            }
+            @Override
+            public boolean writeFrameWithoutResponse(byte[] frame) {
+                return writtenWithoutResponse.add(frame.clone());
+            }
+        }, (command, timeout_ms) -> timers.add(command), ProtocolLog.NONE, true, 3, 200, 1);
+        tracker.setInitialized(true);
+
+        tracker.send(SpheroConstants.driving, SpheroConstants.driveWithHeading, new byte[] { 0, 0, 0, 0 }, 4, CommandClass.EMERGENCY_STOP);
+        tracker.sendUnacknowledged(SpheroConstants.driving, SpheroConstants.driveWithHeading, new byte[] { 1, 0, 0, 0 }, 4);
+        tracker.sendUnacknowledged(SpheroConstants.driving, SpheroConstants.driveWithHeading, new byte[] { 2, 0, 0, 0 }, 4);
+        assertEquals(1, written.size());
+        assertEquals(2, writtenWithoutResponse.size());
+        // Sent right away, even though the stop is waiting for an acknowledgement
+        assertEquals(SpheroConstants.requestsOnlyErrorResponse | SpheroConstants.resetsInactivityTimeout, writtenWithoutResponse.get(0)[1]);
+        assertEquals(1, sequenceOf(writtenWithoutResponse.get(0)));
+        assertEquals(2, sequenceOf(writtenWithoutResponse.get(1)));
+        assertEquals(0, tracker.getPendingCount());
+
+        // The stop is out of date, so it isn't resent
+        tracker.onTimeout(timers.get(0));
+        assertEquals(1, written.size());
+        assertEquals(0, tracker.getQueueSize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void window_mustBePositive() {
+        windowedTracker(0);
+    }
+
+    @Test
+    public void send_dropsCommandsUntilInitialized() {
+        tracker.setInitialized(false);
+        tracker.send(SpheroConstants.powerInfo, SpheroConstants.wake, new byte[0], 0, CommandClass.CONFIGURATION);
+        assertEquals(0, written.size());
+        assertEquals(0, tracker.getQueueSize());
+    }
+
+    @Test
+    public void records_areReusedAcrossResendsAndCommands() {
+        // Timers that are dropped when their command is retired
+        List<ResponseCommand> armed = new ArrayList<>();
+        tracker = new CommandTracker(new PacketEncoder(), frame -> written.add(frame.clone()), new ResendTimer() {
+            @Override
+            public void startResendTimer(ResponseCommand command, int timeout_ms) {
+                armed.add(command);
+            }
+            @Override
+            public boolean cancelResendTimer(ResponseCommand command) {
+                armed.remove(command);
+                return true;
+            }
+        }, ProtocolLog.NONE, true, 3, 200, 4);
+        tracker.setInitialized(true);
+        int allocated = tracker.getAllocatedCommandCount();
+
+        tracker.send(SpheroConstants.userIO, SpheroConstants.allLEDs, new byte[] { 7 }, 1, CommandClass.CONFIGURATION);
+        ResponseCommand command = armed.get(0);
+        tracker.onTimeout(command);
+        // Resent in the same record, with a new sequence number
+        assertSame(command, armed.get(0));
+        assertEquals(1, armed.size());
+        assertEquals(1, command.getSequence());
+        assertEquals(1, command.getSendAttemptsCount());
+        assertEquals(7, written.get(1)[5]);
+
+        assertSame(command, tracker.acknowledge((byte)1));
+        assertEquals(ResponseCommand.State.FREE, command.getState());
+        assertTrue(armed.isEmpty());
+        for(int i = 0; i < 1000; i++) {
+            tracker.send(SpheroConstants.userIO, SpheroConstants.allLEDs, new byte[] { (byte)i }, 1, CommandClass.CONFIGURATION);
+            tracker.send(SpheroConstants.driving, SpheroConstants.driveWithHeading, new byte[] { 0, (byte)i, 0, 0 }, 4, CommandClass.EMERGENCY_STOP);
+            tracker.onTimeout(armed.get(0));
+            while(!armed.isEmpty())
+                tracker.acknowledge(armed.get(0).getSequence());
+        }
+        assertEquals(0, tracker.getQueueSize());
+        assertEquals(allocated, tracker.getAllocatedCommandCount());
+        assertEquals(allocated, tracker.getFreeCommandCount());
+    }
+
+    @Test
+    public void records_withTimersThatCantBeDropped_areNotReused() {
+        tracker.send(SpheroConstants.powerInfo, SpheroConstants.wake, new byte[0], 0, CommandClass.CONFIGURATION);
+        int free = tracker.getFreeCommandCount();
+        ResponseCommand acknowledged = tracker.acknowledge((byte)0);
+        assertEquals(ResponseCommand.State.ACKNOWLEDGED, acknowledged.getState());
+        assertEquals(free, tracker.getFreeCommandCount());
+    }
+
+    private CommandTracker windowedTracker(int windowSize) {
+        CommandTracker windowed = new CommandTracker(new PacketEncoder(), frame -> written.add(frame.clone()),
+                (command, timeout_ms) -> timers.add(command), ProtocolLog.NONE, true, 3, 200, windowSize);
+        windowed.setInitialized(true);
+        return windowed;
+    }
+
+    private static int sequenceOf(byte[] frame) {
+        return frame[4] & 0xff;
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.spheroandroid.protocol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DriveSchedulerTest {
+
+    private final List<byte[]> written = new ArrayList<>();
+    private DriveScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        SpheroProtocol protocol = new SpheroProtocol(frame -> written.add(frame.clone()), (command, timeout_ms) -> { },
+                volts -> { }, ProtocolLog.NONE, true, 3, 200, 1);
+        protocol.setInitialized(true);
+        scheduler = new DriveScheduler(protocol, 50, 4, 2, 250);
+    }
+
+    @Test
+    public void tick_sendsOnlyWhenQuantizedInputChanges() {
+        assertTrue(scheduler.tick(100, 90, true, 1000));
+        // Rounds to the same speed and heading
+        assertFalse(scheduler.tick(101, 89, true, 1050));
+        assertTrue(scheduler.tick(110, 90, true, 1100));
+        assertEquals(2, written.size());
+        assertEquals(2, scheduler.getSentCount());
+        assertEquals(1, scheduler.getSkippedUnchangedCount());
+
+        // speed 112 (rounded from 110), heading 90
+        byte[] frame = written.get(1);
+        assertEquals(112, frame[5] & 0xff);
+        assertEquals(90, frame[7] & 0xff);
+    }
+
+    @Test
+    public void tick_resendsUnchangedRollAfterKeepalive() {
+        scheduler.tick(100, 90, true, 1000);
+        assertFalse(scheduler.tick(100, 90, true, 1200));
+        assertTrue(scheduler.tick(100, 90, true, 1250));
+        assertEquals(1, scheduler.getKeepaliveCount());
+    }
+
+    @Test
+    public void tick_waitsForIdleLink() {
+        assertFalse(scheduler.tick(100, 90, false, 1000));
+        assertEquals(0, written.size());
+        assertEquals(1, scheduler.getSkippedBusyCount());
+        assertTrue(scheduler.tick(100, 90, true, 1050));
+    }
+
+    @Test
+    public void tick_onlyCountsRollsTheLinkTook() {
+        boolean[] refuse = {true};
+        SpheroProtocol protocol = new SpheroProtocol(frame -> !refuse[0] && written.add(frame.clone()), (command, timeout_ms) -> { },
+                volts -> { }, ProtocolLog.NONE, true, 3, 200, 1);
+        protocol.setInitialized(true);
+        scheduler = new DriveScheduler(protocol, 50, 4, 2, 250);
+        PositionTracker positionTracker = protocol.getPositionTracker();
+
+        assertFalse(scheduler.tick(100, 90, true, 1000));
+        assertEquals(0, scheduler.getSentCount());
+        assertEquals(1, scheduler.getSkippedBusyCount());
+        assertEquals(0, positionTracker.getUpdateCount());
+
+        // Sent again on the next tick, even though the input didn't change
+        refuse[0] = false;
+        assertTrue(scheduler.tick(100, 90, true, 1050));
+        assertEquals(1, written.size());
+        assertEquals(1, positionTracker.getUpdateCount());
+    }
+
+    @Test
+    public void tick_wrapsHeadingAndTracksTickTiming() {
+        scheduler.tick(100, 359, true, 1000);
+        assertEquals(0, written.get(0)[7]);
+        scheduler.tick(100, 0, true, 1050);
+        scheduler.tick(100, 0, true, 1200);
+        assertEquals(1, scheduler.getSentCount());
+        assertEquals(150, scheduler.getMaxTickInterval_ms());
+        assertEquals(1, scheduler.getLateTickCount());
+        assertEquals(100.0, scheduler.getAverageTickInterval_ms(), 0.001);
+    }
+
+    @Test
+    public void tickTiming_startsAtClockZero_andEachDriveIsTimedOnItsOwn() {
+        // A virtual clock starts at 0
+        scheduler.tick(100, 90, true, 0);
+        scheduler.tick(100, 90, true, 150);
+        assertEquals(150, scheduler.getMaxTickInterval_ms());
+        assertEquals(1, scheduler.getLateTickCount());
+
+        scheduler.reset();
+        assertEquals(0, scheduler.getMaxTickInterval_ms());
+        // The time stopped isn't a tick interval
+        assertTrue(scheduler.tick(100, 90, true, 5000));
+        scheduler.tick(100, 90, true, 5050);
+        scheduler.tick(100, 90, true, 5110);
+        assertEquals(55.0, scheduler.getAverageTickInterval_ms(), 0.001);
+        assertEquals(60, scheduler.getMaxTickInterval_ms());
+        assertEquals(0, scheduler.getLateTickCount());
+        assertEquals(5, scheduler.getTickCount());
+    }
+
+    @Test
+    public void configure_keepsTheStatisticsAndTheLastRoll() {
+        scheduler.tick(100, 90, true, 1000);
+        scheduler.tick(100, 90, true, 1050);
+        scheduler.configure(20, 0);
+        assertEquals(20, scheduler.getTickInterval_ms());
+        // Unchanged, and no keepalive anymore
+        assertFalse(scheduler.tick(100, 90, true, 2000));
+        assertEquals(3, scheduler.getTickCount());
+        assertEquals(1, scheduler.getSentCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void configure_rejectsAZeroTickInterval() {
+        scheduler.configure(0, 250);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void checkSchedule_rejectsANegativeKeepalive() {
+        DriveScheduler.checkSchedule(50, -1);
+    }
+}
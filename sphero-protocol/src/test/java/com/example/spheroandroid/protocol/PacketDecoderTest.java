@@ -0,0 +1,149 @@
+package com.example.spheroandroid.protocol;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+public class PacketDecoderTest {
+
+    private static final byte RESPONSE_FLAGS = SpheroConstants.isResponse | SpheroConstants.resetsInactivityTimeout;
+
+    // Records the last packet received, without allocating.
+    private static class RecordingHandler implements PacketDecoder.PacketHandler {
+        int count;
+        byte deviceID, commandID, sequence;
+        final byte[] payload = new byte[PacketDecoder.MAX_PACKET_SIZE];
+        int payloadLength;
+
+        @Override
+        public void onPacket(byte flags, byte deviceID, byte commandID, byte sequence, byte[] packet, int payloadOffset, int payloadLength) {
+            count++;
+            this.deviceID = deviceID;
+            this.commandID = commandID;
+            this.sequence = sequence;
+            this.payloadLength = payloadLength;
+            System.arraycopy(packet, payloadOffset, payload, 0, payloadLength);
+        }
+    }
+
+    private final PacketEncoder encoder = new PacketEncoder();
+    private final RecordingHandler handler = new RecordingHandler();
+    private final PacketDecoder decoder = new PacketDecoder(handler);
+
+    @Test
+    public void decode_oneByteAtATime() {
+        byte[] frame = encoder.encode(RESPONSE_FLAGS, SpheroConstants.powerInfo, SpheroConstants.batteryVoltage, (byte)0x2a,
+                bytes(0x00, 0x01, 0x9f), 0, 3);
+        byte[] single = new byte[1];
+        for(byte b : frame) {
+            single[0] = b;
+            decoder.decode(single);
+        }
+        assertEquals(1, handler.count);
+        assertEquals(SpheroConstants.powerInfo, handler.deviceID);
+        assertEquals(SpheroConstants.batteryVoltage, handler.commandID);
+        assertEquals(0x2a, handler.sequence);
+        assertPayload(bytes(0x00, 0x01, 0x9f));
+    }
+
+    @Test
+    public void decode_restoresEscapedBytes() {
+        byte[] frame = encoder.encode(RESPONSE_FLAGS, SpheroConstants.sensor, SpheroConstants.sensorResponse, SpheroConstants.start,
+                bytes(0xd8, 0x8d, 0xab, 0x00), 0, 4);
+        decoder.decode(frame);
+        assertEquals(1, handler.count);
+        assertEquals(SpheroConstants.start, handler.sequence);
+        assertPayload(bytes(0xd8, 0x8d, 0xab, 0x00));
+    }
+
+    @Test
+    public void decode_dropsBadChecksumAndKeepsGoing() {
+        byte[] frame = encoder.encode(RESPONSE_FLAGS, SpheroConstants.driving, SpheroConstants.driveWithHeading, (byte)0x01).clone();
+        frame[3] ^= 0x01; // corrupt the command ID
+        decoder.decode(frame);
+        decoder.decode(encoder.encode(RESPONSE_FLAGS, SpheroConstants.driving, SpheroConstants.driveWithHeading, (byte)0x02));
+        assertEquals(1, decoder.getChecksumErrorCount());
+        assertEquals(1, handler.count);
+        assertEquals(0x02, handler.sequence);
+    }
+
+    @Test
+    public void decode_resynchronisesAfterTruncatedPacketAndNoise() {
+        byte[] truncated = encoder.encode(RESPONSE_FLAGS, SpheroConstants.userIO, SpheroConstants.allLEDs, (byte)0x03,
+                bytes(1, 2, 3, 4, 5), 0, 5).clone();
+        decoder.decode(bytes(0x00, 0x11, 0xd8, 0x22)); // noise outside of any packet
+        decoder.decode(truncated, 0, truncated.length - 4);
+        decoder.decode(encoder.encode(RESPONSE_FLAGS, SpheroConstants.powerInfo, SpheroConstants.wake, (byte)0x04));
+        assertEquals(1, handler.count);
+        assertEquals(0x04, handler.sequence);
+        assertEquals(1, decoder.getFramingErrorCount());
+        assertEquals(4, decoder.getDiscardedByteCount());
+    }
+
+    @Test
+    public void decode_dropsInvalidEscapeAndOverlongPackets() {
+        decoder.decode(bytes(0x8d, 0x09, 0xab, 0x42, 0x13, 0x0d, 0x00, 0xd8));
+        byte[] overlong = new byte[PacketDecoder.MAX_PACKET_SIZE + 3];
+        overlong[0] = SpheroConstants.start;
+        overlong[overlong.length - 1] = SpheroConstants.end;
+        decoder.decode(overlong);
+        decoder.decode(encoder.encode(RESPONSE_FLAGS, SpheroConstants.powerInfo, SpheroConstants.sleep, (byte)0x05));
+        assertEquals(1, handler.count);
+        assertEquals(0x05, handler.sequence);
+        assertEquals(2, decoder.getFramingErrorCount());
+    }
+
+    @Test
+    public void decodeStream_allocatesNothing() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        byte[] stream = new byte[4096];
+        int streamLength = 0;
+        for(int i = 0; streamLength < stream.length - PacketEncoder.MAX_FRAME_SIZE; i++) {
+            byte[] frame = encoder.encodeRoll(RESPONSE_FLAGS, (byte)i, (i * 37) % 256, (i * 53) % 360);
+            System.arraycopy(frame, 0, stream, streamLength, frame.length);
+            streamLength += frame.length;
+        }
+
+        decodeStream(stream, streamLength, 500);
+        threads.getThreadAllocatedBytes(threadId);
+        int countBefore = handler.count;
+
+        long before = threads.getThreadAllocatedBytes(threadId);
+        decodeStream(stream, streamLength, 500);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue(handler.count > countBefore);
+        assertEquals(0, decoder.getChecksumErrorCount() + decoder.getFramingErrorCount());
+        assertEquals("bytes allocated while decoding", 0, allocated);
+    }
+
+    // Feeds the stream in chunks of 1 to 20 bytes, like notifications of varying size.
+    private void decodeStream(byte[] stream, int streamLength, int repeats) {
+        for(int r = 0; r < repeats; r++) {
+            int offset = 0;
+            int chunk = 1;
+            while(offset < streamLength) {
+                int count = Math.min(chunk, streamLength - offset);
+                decoder.decode(stream, offset, count);
+                offset += count;
+                chunk = chunk % 20 + 1;
+            }
+        }
+    }
+
+    private void assertPayload(byte[] expected) {
+        assertEquals(expected.length, handler.payloadLength);
+        for(int i = 0; i < expected.length; i++)
+            assertEquals(expected[i], handler.payload[i]);
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] result = new byte[values.length];
+        for(int i = 0; i < values.length; i++)
+            result[i] = (byte)values[i];
+        return result;
+    }
+}
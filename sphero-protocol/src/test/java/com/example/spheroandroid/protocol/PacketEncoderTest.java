@@ -0,0 +1,85 @@
+package com.example.spheroandroid.protocol;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+public class PacketEncoderTest {
+
+    private static final byte FLAGS = SpheroConstants.requestsResponse | SpheroConstants.resetsInactivityTimeout;
+
+    @Test
+    public void encode_wakeCommand() {
+        PacketEncoder encoder = new PacketEncoder();
+        byte[] frame = encoder.encode(FLAGS, SpheroConstants.powerInfo, SpheroConstants.wake, (byte)0x00);
+        assertArrayEquals(bytes(0x8d, 0x0a, 0x13, 0x0d, 0x00, 0xd5, 0xd8), frame);
+    }
+
+    @Test
+    public void encodeRoll_matchesPayloadArray() {
+        PacketEncoder encoder = new PacketEncoder();
+        byte[] expected = encoder.encode(FLAGS, SpheroConstants.driving, SpheroConstants.driveWithHeading, (byte)0x05,
+                bytes(100, 0x01, 0x0e, 0x00), 0, 4).clone();
+        assertArrayEquals(expected, encoder.encodeRoll(FLAGS, (byte)0x05, 100, 270));
+
+        expected = encoder.encode(FLAGS, SpheroConstants.driving, SpheroConstants.driveWithHeading, (byte)0x06,
+                bytes(100, 0x00, 0x5a, 0x01), 0, 4).clone();
+        assertArrayEquals("negative speed drives in reverse", expected, encoder.encodeRoll(FLAGS, (byte)0x06, -100, 90));
+    }
+
+    @Test
+    public void encode_escapesReservedBytes() {
+        PacketEncoder encoder = new PacketEncoder();
+        byte[] frame = encoder.encode(FLAGS, SpheroConstants.userIO, SpheroConstants.allLEDs, (byte)0x00,
+                bytes(0x8d, 0xd8, 0xab), 0, 3);
+        // 0x0a + 0x1a + 0x0e + 0x00 + 0x8d + 0xd8 + 0xab = 0x242, so the checksum is 0xff - 0x42 = 0xbd
+        assertArrayEquals(bytes(0x8d, 0x0a, 0x1a, 0x0e, 0x00, 0xab, 0x05, 0xab, 0x50, 0xab, 0x23, 0xbd, 0xd8), frame);
+    }
+
+    @Test
+    public void encode_escapesChecksum() {
+        PacketEncoder encoder = new PacketEncoder();
+        // 0x0a + 0x13 + 0x0d + 0xfd = 0x127, so the checksum is 0xff - 0x27 = 0xd8 (the end byte)
+        byte[] frame = encoder.encode(FLAGS, SpheroConstants.powerInfo, SpheroConstants.wake, (byte)0xfd);
+        assertArrayEquals(bytes(0x8d, 0x0a, 0x13, 0x0d, 0xfd, 0xab, 0x50, 0xd8), frame);
+    }
+
+    @Test
+    public void driveLoop_allocatesNothing() {
+        PacketEncoder encoder = new PacketEncoder();
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        // Warm up: let every frame length be allocated once and let the JIT settle.
+        // The allocation counter is also read once, since its first call allocates.
+        long checksum = driveLoop(encoder, 200_000);
+        threads.getThreadAllocatedBytes(threadId);
+
+        long before = threads.getThreadAllocatedBytes(threadId);
+        checksum += driveLoop(encoder, 200_000);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue(checksum != 0);
+        assertEquals("bytes allocated by 200000 roll commands", 0, allocated);
+    }
+
+    // Simulates a joystick stream: speed and heading sweep every value, with a wrapping sequence number.
+    private static long driveLoop(PacketEncoder encoder, int commands) {
+        long checksum = 0;
+        byte sequence = 0;
+        for(int i = 0; i < commands; i++) {
+            byte[] frame = encoder.encodeRoll(FLAGS, sequence++, (i % 511) - 255, i % 360);
+            checksum += frame[frame.length - 2];
+        }
+        return checksum;
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] result = new byte[values.length];
+        for(int i = 0; i < values.length; i++)
+            result[i] = (byte)values[i];
+        return result;
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.spheroandroid.protocol;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PositionTrackerTest {
+
+    private static final long MS = 1_000_000L;
+
+    private final PositionTracker tracker = new PositionTracker(255, 100, 500);
+    private final float[] position = new float[4];
+
+    @Test
+    public void getPosition_isUnknownUntilTheFirstFix() {
+        tracker.onRoll(100, 0, 0);
+        assertFalse(tracker.getPosition(10 * MS, position));
+        tracker.reset(20 * MS);
+        assertTrue(tracker.getPosition(20 * MS, position));
+        assertArrayEquals(new float[] {0, 0, 0, 0}, position, 0);
+    }
+
+    @Test
+    public void samples_setThePositionAndVelocity() {
+        tracker.onSample(sample(0, 10, 20, 0, 0));
+        tracker.onSample(sample(100 * MS, 12, 25, 4, 0));
+        tracker.getPosition(100 * MS, position);
+        assertArrayEquals(new float[] {12, 25, 4, 0}, position, 1e-4f);
+    }
+
+    @Test
+    public void betweenSamples_extrapolatesTowardTheCommandedVelocity() {
+        tracker.reset(0);
+        // Speed 50 at heading 90: 50 cm/s along +X
+        tracker.onRoll(50, 90, 0);
+
+        tracker.getPosition(100 * MS, position);
+        // Integral of 50 (1 - e^(-t/0.1)) over 0.1 s
+        float expectedX = (float)(50 * (0.1 - 0.1 * (1 - Math.exp(-1))));
+        assertEquals(expectedX, position[0], 1e-3f);
+        assertEquals(0, position[1], 1e-3f);
+        assertEquals(50 * (1 - Math.exp(-1)), position[2], 1e-3f);
+
+        // Long after the command, the velocity is the commanded one
+        tracker.getPosition(450 * MS, position);
+        assertEquals(50, position[2], 1f);
+    }
+
+    @Test
+    public void rolls_takeEffectFromWhenTheyAreSent() {
+        tracker.onRoll(30, 0, 0);
+        tracker.onSample(sample(0, 0, 0, 0, 30));
+        // Stopped at 200 ms, after 0.2 s at 30 cm/s heading +Y
+        tracker.onRoll(0, 0, 200 * MS);
+        float[] atStop = new float[4];
+        tracker.getPosition(200 * MS, atStop);
+        assertEquals(6, atStop[1], 1e-3f);
+
+        tracker.getPosition(400 * MS, position);
+        assertTrue(position[1] > atStop[1]);
+        assertTrue(position[3] < atStop[3]);
+    }
+
+    @Test
+    public void extrapolation_stopsAfterTheLimit() {
+        tracker.onSample(sample(0, 0, 0, 10, 0));
+        tracker.getPosition(500 * MS, position);
+        float atLimit = position[0];
+        tracker.getPosition(5000 * MS, position);
+        assertEquals(atLimit, position[0], 0);
+    }
+
+    @Test
+    public void locatorOnly_derivesTheVelocityFromPositions() {
+        tracker.onSample(locatorSample(0, 0, 0));
+        tracker.onSample(locatorSample(200 * MS, 4, -2));
+        tracker.getPosition(200 * MS, position);
+        assertEquals(20, position[2], 1e-3f);
+        assertEquals(-10, position[3], 1e-3f);
+    }
+
+    @Test
+    public void protocol_resetsTheLocatorAndTracksSamples() {
+        List<byte[]> written = new ArrayList<>();
+        SpheroProtocol protocol = new SpheroProtocol(frame -> written.add(frame.clone()), (command, timeout_ms) -> { },
+                volts -> { }, ProtocolLog.NONE, true, 3, 200, 1);
+        protocol.setInitialized(true);
+        protocol.resetLocator();
+        assertEquals(SpheroConstants.sensor, written.get(0)[2]);
+        assertEquals(SpheroConstants.resetLocator, written.get(0)[3]);
+        assertTrue(protocol.getPositionTracker().getPosition(position));
+
+        protocol.getTracker().acknowledge((byte)0);
+        protocol.startPositionTracking(100);
+        assertEquals(SensorStream.LOCATOR | SensorStream.VELOCITY, protocol.getSensorStream().getSensors());
+    }
+
+    private static SensorSample sample(long timestamp_ns, float x, float y, float velocityX, float velocityY) {
+        SensorSample sample = locatorSample(timestamp_ns, x, y);
+        sample.sensors |= SensorStream.VELOCITY;
+        sample.velocity[0] = velocityX;
+        sample.velocity[1] = velocityY;
+        return sample;
+    }
+    private static SensorSample locatorSample(long timestamp_ns, float x, float y) {
+        SensorSample sample = new SensorSample();
+        sample.timestamp_ns = timestamp_ns;
+        sample.sensors = SensorStream.LOCATOR;
+        sample.locator[0] = x;
+        sample.locator[1] = y;
+        return sample;
+    }
+}
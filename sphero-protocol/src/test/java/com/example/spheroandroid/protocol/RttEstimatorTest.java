@@ -0,0 +1,45 @@
+package com.example.spheroandroid.protocol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RttEstimatorTest {
+
+    @Test
+    public void timeout_startsAtInitialValueAndFollowsSamples() {
+        RttEstimator estimator = new RttEstimator(200, 30, 2000);
+        assertEquals(200, estimator.getTimeout_ms());
+
+        // First sample: variance is half the sample, so timeout = 40 + 4 * 20
+        estimator.addSample(40);
+        assertEquals(120, estimator.getTimeout_ms());
+
+        // A steady link converges towards its RTT, down to the floor
+        for(int i = 0; i < 100; i++)
+            estimator.addSample(20);
+        assertEquals(20.0, estimator.getSmoothedRtt_ms(), 0.1);
+        assertEquals(30, estimator.getTimeout_ms());
+    }
+
+    @Test
+    public void timeout_growsWithVariance() {
+        RttEstimator estimator = new RttEstimator(200, 30, 2000);
+        for(int i = 0; i < 50; i++)
+            estimator.addSample(i % 2 == 0 ? 20 : 100);
+        assertTrue(estimator.getTimeout_ms() > 150);
+    }
+
+    @Test
+    public void backoff_doublesUntilCeilingAndResetsOnSample() {
+        RttEstimator estimator = new RttEstimator(200, 30, 1000);
+        estimator.backoff();
+        assertEquals(400, estimator.getTimeout_ms());
+        estimator.backoff();
+        estimator.backoff();
+        assertEquals(1000, estimator.getTimeout_ms());
+
+        estimator.addSample(40);
+        assertEquals(120, estimator.getTimeout_ms());
+    }
+}
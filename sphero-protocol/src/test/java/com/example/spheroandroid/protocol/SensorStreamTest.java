@@ -0,0 +1,104 @@
+package com.example.spheroandroid.protocol;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SensorStreamTest {
+
+    private static final byte ASYNC_FLAGS = SpheroConstants.resetsInactivityTimeout;
+
+    private final List<byte[]> written = new ArrayList<>();
+    private final List<SensorSample> samples = new ArrayList<>();
+    private final SpheroProtocol protocol = new SpheroProtocol(frame -> written.add(frame.clone()), (command, timeout_ms) -> { },
+            new SpheroProtocol.Listener() {
+                @Override
+                public void onBatteryVoltage(double volts) { }
+                @Override
+                public void onSensorSample(SensorSample sample) {
+                    SensorSample copy = new SensorSample();
+                    copy.copyFrom(sample);
+                    samples.add(copy);
+                }
+            }, ProtocolLog.NONE, true, 3, 200, 1);
+
+    @Test
+    public void configure_sendsMaskThenStreamConfiguration() {
+        protocol.setInitialized(true);
+        protocol.configureSensorStream(SensorStream.ATTITUDE | SensorStream.LOCATOR, 50);
+        assertEquals(1, written.size());
+        // Divisor 20 (400 Hz / 20 = every 50 ms), stream until told otherwise, pitch/roll/yaw
+        assertFrame(written.get(0), SpheroConstants.sensorMask, 0x00, 0x14, 0x00, 0x00, 0x07, 0x00, 0x00);
+
+        protocol.getTracker().acknowledge((byte)0);
+        assertEquals(2, written.size());
+        // Locator X, Y
+        assertFrame(written.get(1), SpheroConstants.configureSensorStream, 0x0C, 0x00, 0x00, 0x00);
+    }
+
+    @Test
+    public void divisor_isLimitedToTheFastestRate() {
+        assertEquals(SensorStream.MIN_INTERVAL_ms * SensorStream.BASE_SAMPLE_RATE_Hz / 1000, SensorStream.divisor(1));
+        assertEquals(400, SensorStream.divisor(1000));
+    }
+
+    @Test
+    public void receive_decodesEverySensorInMaskOrder() {
+        protocol.configureSensorStream(SensorStream.ALL, SensorStream.MIN_INTERVAL_ms);
+        float[] values = {10.5f, -3f, 179f, 0.01f, 0.02f, 1f, -45f, 90f, 0f, 123.25f, -7.5f, 30f, -12f};
+        receiveSample(values);
+
+        assertEquals(1, samples.size());
+        SensorSample sample = samples.get(0);
+        assertEquals(SensorStream.ALL, sample.sensors);
+        assertArrayEquals(new float[] {10.5f, -3f, 179f}, sample.attitude, 0);
+        assertArrayEquals(new float[] {0.01f, 0.02f, 1f}, sample.accelerometer, 0);
+        assertArrayEquals(new float[] {-45f, 90f, 0f}, sample.gyroscope, 0);
+        assertArrayEquals(new float[] {123.25f, -7.5f}, sample.locator, 0);
+        assertArrayEquals(new float[] {30f, -12f}, sample.velocity, 0);
+        assertTrue(sample.timestamp_ns != 0);
+        // Sensor packets aren't acknowledgements
+        assertEquals(0, protocol.getTracker().getAcknowledgedCount(CommandClass.CONFIGURATION));
+    }
+
+    @Test
+    public void receive_skipsGroupsThatArentStreamed() {
+        protocol.configureSensorStream(SensorStream.GYROSCOPE | SensorStream.VELOCITY, 100);
+        receiveSample(new float[] {1f, 2f, 3f, 4f, 5f});
+
+        SensorSample sample = samples.get(0);
+        assertTrue(sample.has(SensorStream.GYROSCOPE));
+        assertFalse(sample.has(SensorStream.ATTITUDE));
+        assertArrayEquals(new float[] {1f, 2f, 3f}, sample.gyroscope, 0);
+        assertArrayEquals(new float[] {4f, 5f}, sample.velocity, 0);
+    }
+
+    @Test
+    public void receive_dropsSamplesOfTheWrongLength() {
+        protocol.configureSensorStream(SensorStream.ATTITUDE, 100);
+        receiveSample(new float[] {1f, 2f});
+        assertTrue(samples.isEmpty());
+        assertEquals(1, protocol.getSensorStream().getMalformedCount());
+    }
+
+    // Sends a sensorResponse packet, as big-endian floats
+    private void receiveSample(float[] values) {
+        ByteBuffer payload = ByteBuffer.allocate(values.length * 4);
+        for(float value : values)
+            payload.putFloat(value);
+        byte[] frame = new PacketEncoder().encode(ASYNC_FLAGS, SpheroConstants.sensor, SpheroConstants.sensorResponse, (byte)0,
+                payload.array(), 0, payload.capacity());
+        protocol.receive(frame, 0, frame.length);
+    }
+
+    private static void assertFrame(byte[] frame, byte commandID, int... payload) {
+        assertEquals(SpheroConstants.sensor, frame[2]);
+        assertEquals(commandID, frame[3]);
+        for(int i = 0; i < payload.length; i++)
+            assertEquals("payload byte " + i, (byte)payload[i], frame[5 + i]);
+    }
+}
@@ -0,0 +1,202 @@
+package com.example.spheroandroid.protocol;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+// The session's timing, in virtual time. The transport's callbacks are called by the tests.
+public class SpheroSessionTest {
+
+    private static final long ms = 1_000_000L;
+
+    private final VirtualScheduler scheduler = new VirtualScheduler();
+    private final FakeTransport transport = new FakeTransport();
+    private final List<String> events = new ArrayList<>();
+    private final List<Long> rtts = new ArrayList<>();
+    private final SpheroSession session = new SpheroSession(transport, scheduler, new SpheroSession.Listener() {
+        @Override
+        public void onBatteryVoltage(double volts) { }
+        @Override
+        public void onAcknowledged(byte deviceID, byte commandID, CommandClass commandClass, long rtt_ms) {
+            rtts.add(rtt_ms);
+        }
+        @Override
+        public void onReady() {
+            events.add("ready");
+        }
+        @Override
+        public void onDisconnected() {
+            events.add("disconnected");
+        }
+    }, ProtocolLog.NONE, true, 3, 200, 1);
+
+    // A transport that records what it is asked to do, at what time
+    private class FakeTransport implements SpheroTransport {
+        final List<String> calls = new ArrayList<>();
+        final List<byte[]> frames = new ArrayList<>();
+        final List<Long> frameTimes_ms = new ArrayList<>();
+        byte[] antiDos;
+
+        @Override
+        public void setCallback(Callback callback) { }
+        @Override
+        public boolean connect(String address) {
+            calls.add("connect " + address + " at " + scheduler.now_ms());
+            return true;
+        }
+        @Override
+        public void disconnect() {
+            calls.add("disconnect at " + scheduler.now_ms());
+        }
+        @Override
+        public void close() {
+            calls.add("close at " + scheduler.now_ms());
+        }
+        @Override
+        public boolean discoverServices() {
+            calls.add("discover at " + scheduler.now_ms());
+            return true;
+        }
+        @Override
+        public boolean subscribe(Channel channel) {
+            return true;
+        }
+        @Override
+        public boolean write(Channel channel, byte[] value, WriteType writeType, boolean urgent) {
+            if (channel == Channel.ANTI_DOS) {
+                antiDos = value.clone();
+                calls.add("handshake at " + scheduler.now_ms());
+            } else {
+                frames.add(value.clone());
+                frameTimes_ms.add(scheduler.now_ms());
+            }
+            return true;
+        }
+        @Override
+        public boolean isIdle() {
+            return true;
+        }
+    }
+
+    @Test
+    public void connect_waitsForTheStackAndForTheSpheroBeforeTheHandshake() {
+        session.connect("AA:BB");
+        scheduler.runFor(499 * ms);
+        assertTrue(transport.calls.isEmpty());
+        scheduler.runFor(ms);
+        assertEquals("connect AA:BB at 500", transport.calls.get(0));
+
+        session.onConnected();
+        assertEquals("discover at 500", transport.calls.get(1));
+        scheduler.runFor(100 * ms);
+        session.onServicesDiscovered();
+        scheduler.runFor(199 * ms);
+        assertEquals(2, transport.calls.size());
+        scheduler.runFor(ms);
+        assertEquals("handshake at 800", transport.calls.get(2));
+        assertArrayEquals(SpheroSession.KEEP_AWAKE_KEY.getBytes(StandardCharsets.UTF_8), transport.antiDos);
+
+        assertFalse(session.isReady());
+        session.onWriteComplete(SpheroTransport.Channel.ANTI_DOS);
+        assertTrue(session.isReady());
+        assertEquals("[ready]", events.toString());
+    }
+
+    @Test
+    public void disconnect_putsTheSpheroToSleepFirst() {
+        ready();
+        session.disconnect();
+        assertEquals(SpheroConstants.sleep, transport.frames.get(0)[3]);
+        scheduler.runFor(199 * ms);
+        assertEquals(3, transport.calls.size());
+        scheduler.runFor(ms);
+        assertEquals("disconnect at " + scheduler.now_ms(), transport.calls.get(3));
+        assertFalse(session.isReady());
+
+        session.onDisconnected();
+        assertEquals("[ready, disconnected]", events.toString());
+    }
+
+    @Test
+    public void disconnectingDuringTheHandshakeDelay_cancelsTheHandshake() {
+        session.connect("AA:BB");
+        scheduler.runFor(500 * ms);
+        session.onConnected();
+        session.onServicesDiscovered();
+        session.disconnect();
+        scheduler.runFor(1000 * ms);
+        assertEquals(3, transport.calls.size());
+        assertTrue(transport.calls.get(2).startsWith("disconnect"));
+        assertTrue(scheduler.isIdle());
+    }
+
+    @Test
+    public void roundTripsAndResends_followTheScheduler() {
+        ready();
+        session.getProtocol().wake();
+        assertEquals(1, transport.frames.size());
+        // Not acknowledged: resent once the 200 ms timeout passes
+        scheduler.runFor(200 * ms);
+        assertEquals(2, transport.frames.size());
+        assertEquals(Long.valueOf(transport.frameTimes_ms.get(0) + 200), transport.frameTimes_ms.get(1));
+
+        // Acknowledged 35 ms after it was resent
+        scheduler.runFor(35 * ms);
+        acknowledge(transport.frames.get(1));
+        assertEquals("[35]", rtts.toString());
+        assertEquals(0, session.getProtocol().getTracker().getInFlightCount());
+        // Its timer went with it, and nothing is left to run
+        assertEquals(0, session.getResendTimers().getArmedCount());
+        scheduler.runFor(10 * ms);
+        assertTrue(scheduler.isIdle());
+    }
+
+    @Test
+    public void driving_samplesTheLatestRollAtTheTickRate() {
+        ready();
+        assertTrue(session.offerRoll(100, 90));
+        assertFalse(session.offerRoll(120, 90));
+        session.startDriving();
+        assertEquals(1, transport.frames.size());
+        assertEquals(120, transport.frames.get(0)[5] & 0xff);
+
+        scheduler.runFor(10 * ms);
+        acknowledge(transport.frames.get(0));
+        scheduler.runFor(10 * ms);
+        session.offerRoll(200, 90);
+        scheduler.runFor(30 * ms);
+        assertEquals(2, transport.frames.size());
+        assertEquals(200, transport.frames.get(1)[5] & 0xff);
+        assertEquals(Long.valueOf(transport.frameTimes_ms.get(0) + 50), transport.frameTimes_ms.get(1));
+        acknowledge(transport.frames.get(1));
+
+        session.stopDriving(90);
+        assertFalse(session.isDriving());
+        int sent = transport.frames.size();
+        scheduler.runFor(1000 * ms);
+        // Only the stop itself (and resends of it, if it wasn't acknowledged)
+        for (int i = sent; i < transport.frames.size(); i++)
+            assertEquals(0, transport.frames.get(i)[5]);
+        assertTrue(session.offerRoll(50, 0));
+    }
+
+    // Connects and completes the handshake
+    private void ready() {
+        session.connect("AA:BB");
+        scheduler.runFor(500 * ms);
+        session.onConnected();
+        session.onServicesDiscovered();
+        scheduler.runFor(200 * ms);
+        session.onWriteComplete(SpheroTransport.Channel.ANTI_DOS);
+        assertTrue(session.isReady());
+    }
+
+    private void acknowledge(byte[] frame) {
+        byte[] response = new PacketEncoder().encode(SpheroConstants.isResponse, frame[2], frame[3], frame[4], (byte)0);
+        session.onDataReceived(response, 0, response.length);
+    }
+}
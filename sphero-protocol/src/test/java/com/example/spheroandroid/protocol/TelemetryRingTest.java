@@ -0,0 +1,138 @@
+package com.example.spheroandroid.protocol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TelemetryRingTest {
+
+    private final long[] timestamps = new long[16];
+    private final float[] values = new float[16 * 2];
+
+    @Test
+    public void cursor_readsEverySampleInOrder() {
+        TelemetryRing ring = new TelemetryRing(8, 2);
+        TelemetryRing.Cursor cursor = ring.newCursor();
+        publish(ring, 0, 3);
+
+        assertEquals(3, cursor.available());
+        assertEquals(2, cursor.poll(2, timestamps, values));
+        assertSample(0, 0);
+        assertSample(1, 1);
+        assertEquals(1, cursor.poll(16, timestamps, values));
+        assertSample(0, 2);
+        assertEquals(0, cursor.poll(16, timestamps, values));
+        assertEquals(0, cursor.getOverrunCount());
+    }
+
+    @Test
+    public void cursors_readIndependently() {
+        TelemetryRing ring = new TelemetryRing(8, 2);
+        TelemetryRing.Cursor first = ring.newCursor();
+        publish(ring, 0, 2);
+        TelemetryRing.Cursor second = ring.newCursor();
+        publish(ring, 2, 2);
+
+        assertEquals(4, first.poll(16, timestamps, values));
+        assertEquals(2, second.poll(16, timestamps, values));
+        assertSample(0, 2);
+    }
+
+    @Test
+    public void cursor_skipsAheadAndCountsOverruns() {
+        TelemetryRing ring = new TelemetryRing(4, 2);
+        TelemetryRing.Cursor cursor = ring.newCursor();
+        publish(ring, 0, 10);
+
+        assertEquals(4, cursor.poll(16, timestamps, values));
+        assertEquals(6, cursor.getOverrunCount());
+        // The 4 most recent samples are left
+        assertSample(0, 6);
+        assertSample(3, 9);
+    }
+
+    @Test
+    public void snapshot_copiesTheLatestSamples() {
+        TelemetryRing ring = new TelemetryRing(8, 2);
+        assertEquals(0, ring.snapshot(4, timestamps, values));
+        publish(ring, 0, 20);
+
+        assertEquals(4, ring.snapshot(4, timestamps, values));
+        assertSample(0, 16);
+        assertSample(3, 19);
+        // At most capacity - 1, so the writer can keep writing during a snapshot
+        assertEquals(7, ring.snapshot(16, timestamps, values));
+        assertSample(0, 13);
+    }
+
+    @Test
+    public void cursorFromOldest_startsAtTheOldestSampleKept() {
+        TelemetryRing ring = new TelemetryRing(4, 2);
+        publish(ring, 0, 6);
+        TelemetryRing.Cursor cursor = ring.newCursorFromOldest();
+        assertEquals(4, cursor.poll(16, timestamps, values));
+        assertSample(0, 2);
+        assertEquals(0, cursor.getOverrunCount());
+    }
+
+    @Test
+    public void readersOnOtherThreads_neverSeeTornSamples() throws InterruptedException {
+        final int total = 200_000;
+        TelemetryRing ring = new TelemetryRing(16, 2);
+        boolean[] consistent = {true};
+        long[] received = new long[1];
+        // Created before the writer starts, so every sample is either read or counted as overrun
+        TelemetryRing.Cursor cursor = ring.newCursor();
+        Thread reader = new Thread(() -> {
+            long[] readerTimestamps = new long[8];
+            float[] readerValues = new float[8 * 2];
+            long last = -1;
+            while(last < total - 1) {
+                int count = cursor.poll(8, readerTimestamps, readerValues);
+                for(int i = 0; i < count; i++) {
+                    long t = readerTimestamps[i];
+                    if(t <= last || readerValues[i * 2] != t || readerValues[i * 2 + 1] != -t)
+                        consistent[0] = false;
+                    last = t;
+                }
+                received[0] += count;
+                if(count == 0)
+                    Thread.yield();
+                // Snapshots are consistent too
+                int n = ring.snapshot(8, readerTimestamps, readerValues);
+                for(int i = 0; i < n; i++) {
+                    if(readerValues[i * 2] != readerTimestamps[i] || (i > 0 && readerTimestamps[i] != readerTimestamps[i - 1] + 1))
+                        consistent[0] = false;
+                }
+            }
+        });
+        reader.start();
+        float[] sample = new float[2];
+        for(int t = 0; t < total; t++) {
+            sample[0] = t;
+            sample[1] = -t;
+            ring.publish(t, sample);
+            if(t % 64 == 0)
+                Thread.yield();
+        }
+        reader.join();
+        assertTrue(consistent[0]);
+        assertEquals(total, received[0] + cursor.getOverrunCount());
+    }
+
+    // Publishes samples first, first + 1, ... with timestamp t and values (t, -t)
+    private static void publish(TelemetryRing ring, int first, int count) {
+        float[] sample = new float[2];
+        for(int t = first; t < first + count; t++) {
+            sample[0] = t;
+            sample[1] = -t;
+            ring.publish(t, sample);
+        }
+    }
+
+    private void assertSample(int index, long t) {
+        assertEquals(t, timestamps[index]);
+        assertEquals(t, values[index * 2], 0);
+        assertEquals(-t, values[index * 2 + 1], 0);
+    }
+}
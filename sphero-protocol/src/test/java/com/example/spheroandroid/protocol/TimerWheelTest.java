@@ -0,0 +1,117 @@
+package com.example.spheroandroid.protocol;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TimerWheelTest {
+
+    private final TimerWheel wheel = new TimerWheel(16, 10, 8);
+    private final List<String> fired = new ArrayList<>();
+    private long now_ms;
+    private final TimerWheel.Expiry record = key -> fired.add(key + "@" + now_ms);
+
+    @Test
+    public void timers_fireAtTheFirstTickAtOrAfterTheirTime() {
+        wheel.arm(1, 0, 30);
+        wheel.arm(2, 0, 25);
+        wheel.arm(3, 0, 0);
+        assertEquals(3, wheel.getArmedCount());
+        advanceTo(29);
+        assertEquals("[3@10]", fired.toString());
+        advanceTo(30);
+        // In the order of their ticks
+        assertEquals("[3@10, 2@30, 1@30]", fired.toString());
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void cancelledTimers_neverFire() {
+        wheel.arm(1, 0, 20);
+        wheel.arm(2, 0, 20);
+        wheel.cancel(1);
+        wheel.cancel(5);
+        assertFalse(wheel.isArmed(1));
+        assertEquals(1, wheel.getArmedCount());
+        advanceTo(100);
+        assertEquals("[2@20]", fired.toString());
+        assertEquals(1, wheel.getCancelCount());
+    }
+
+    @Test
+    public void arming_replacesTheKeysTimer() {
+        wheel.arm(1, 0, 20);
+        wheel.arm(1, 0, 50);
+        assertEquals(1, wheel.getArmedCount());
+        advanceTo(100);
+        assertEquals("[1@50]", fired.toString());
+    }
+
+    @Test
+    public void timersBeyondATurn_waitForTheirTurn() {
+        // 8 buckets of 10 ms: 80 ms per turn
+        wheel.arm(1, 0, 250);
+        wheel.arm(2, 0, 90);
+        advanceTo(240);
+        assertEquals("[2@90]", fired.toString());
+        advanceTo(250);
+        assertEquals("[2@90, 1@250]", fired.toString());
+    }
+
+    @Test
+    public void aLateAdvance_catchesUpOnEverythingDue() {
+        wheel.arm(1, 0, 30);
+        wheel.arm(2, 0, 70);
+        wheel.arm(3, 0, 500);
+        now_ms = 1000;
+        assertEquals(3, wheel.advance(now_ms, record));
+        // More than a turn late, they fire bucket by bucket
+        fired.sort(null);
+        assertEquals("[1@1000, 2@1000, 3@1000]", fired.toString());
+    }
+
+    @Test
+    public void expiries_canCancelAndArmTimers() {
+        wheel.arm(1, 0, 20);
+        wheel.arm(2, 0, 20);
+        wheel.arm(3, 0, 20);
+        // The first to fire cancels one that is due at the same time, and arms itself again
+        int[] first = {-1};
+        now_ms = 20;
+        wheel.advance(now_ms, key -> {
+            if(first[0] < 0) {
+                first[0] = key;
+                wheel.cancel(key == 1 ? 2 : 1);
+                wheel.arm(key, now_ms, 20);
+            }
+            fired.add(key + "@" + now_ms);
+        });
+        assertEquals(2, fired.size());
+        assertEquals(1, wheel.getArmedCount());
+        assertTrue(wheel.isArmed(first[0]));
+        advanceTo(40);
+        assertEquals(first[0] + "@40", fired.get(fired.size() - 1));
+    }
+
+    @Test
+    public void afterBeingIdle_timersCountFromNow() {
+        wheel.arm(1, 0, 10);
+        advanceTo(10);
+        // A long time later, nothing to catch up on
+        wheel.arm(2, 100_000, 30);
+        now_ms = 100_020;
+        assertEquals(0, wheel.advance(now_ms, record));
+        now_ms = 100_030;
+        assertEquals(1, wheel.advance(now_ms, record));
+    }
+
+    private void advanceTo(long end_ms) {
+        while(now_ms < end_ms) {
+            now_ms = Math.min(end_ms, wheel.getNextTick_ms(now_ms));
+            wheel.advance(now_ms, record);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.example.spheroandroid.protocol;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TransportOperationQueueTest {
+
+    private static final int WRITE = 0;
+    private static final int READ = 1;
+    private static final long TIMEOUT_ns = 1_000_000_000L;
+
+    private long now_ns;
+    private final List<String> started = new ArrayList<>();
+    private byte[] lastValue;
+    private boolean refuse;
+    private final TransportOperationQueue queue = new TransportOperationQueue(this::start, ProtocolLog.NONE, () -> now_ns, 8, 2, TIMEOUT_ns);
+
+    private boolean start(int type, Object target, byte[] value, int length, int writeType) {
+        lastValue = value;
+        started.add(target + (length == 0 ? "" : Arrays.toString(Arrays.copyOf(value, length))));
+        return !refuse;
+    }
+
+    @Test
+    public void submitWhileIdle_startsRightAwayWithTheCallersValue() {
+        byte[] value = {1, 2};
+        queue.submit(WRITE, "a", value, value.length, 0, false);
+        assertEquals("[a[1, 2]]", started.toString());
+        assertSame(value, lastValue);
+        assertFalse(queue.isIdle());
+        assertEquals(0, queue.getQueueLength());
+    }
+
+    @Test
+    public void queuedOperations_startOneAtATimeInOrder_urgentOnesFirst() {
+        queue.submit(WRITE, "a", new byte[] {1}, 1, 0, false);
+        queue.submit(WRITE, "b", new byte[] {2}, 1, 0, false);
+        queue.submit(READ, "c", null, 0, 0, false);
+        queue.submit(WRITE, "stop", new byte[] {3}, 1, 0, true);
+        assertEquals("[a[1]]", started.toString());
+        assertEquals(3, queue.getMaxQueueLength());
+        for(int i = 0; i < 3; i++)
+            assertTrue(queue.complete());
+        assertEquals("[a[1], stop[3], b[2], c]", started.toString());
+        assertTrue(queue.complete());
+        assertFalse(queue.complete());
+        assertTrue(queue.isIdle());
+        assertEquals(4, queue.getOperationCount());
+    }
+
+    @Test
+    public void queuedValues_areCopied() {
+        byte[] value = {1, 2, 3};
+        queue.submit(WRITE, "a", value, value.length, 0, false);
+        queue.submit(WRITE, "b", value, 2, 0, false);
+        value[0] = 9;
+        queue.complete();
+        assertEquals("[a[1, 2, 3], b[1, 2]]", started.toString());
+        assertNotSame(value, lastValue);
+    }
+
+    @Test
+    public void operationsThatCantStart_areDropped() {
+        queue.submit(WRITE, "a", new byte[] {1}, 1, 0, false);
+        queue.submit(WRITE, "b", new byte[] {2}, 1, 0, false);
+        queue.submit(WRITE, "c", new byte[] {3}, 1, 0, false);
+        refuse = true;
+        queue.complete();
+        // b and c both failed to start, so the queue is idle again
+        assertEquals("[a[1], b[2], c[3]]", started.toString());
+        assertTrue(queue.isIdle());
+    }
+
+    @Test
+    public void lostOperations_areGivenUpOnAfterTheTimeout() {
+        queue.submit(WRITE, "a", new byte[] {1}, 1, 0, false);
+        queue.submit(WRITE, "b", new byte[] {2}, 1, 0, false);
+        now_ns += TIMEOUT_ns;
+        assertFalse(queue.isIdle());
+        now_ns++;
+        // a is given up on and b starts
+        assertFalse(queue.isIdle());
+        assertEquals("[a[1], b[2]]", started.toString());
+        assertEquals(1, queue.getLostOperationCount());
+    }
+
+    @Test
+    public void lateCallbackOfALostOperation_doesntCompleteTheNextOne() {
+        queue.submit(WRITE, "a", new byte[] {1}, 1, 0, false);
+        queue.submit(WRITE, "b", new byte[] {2}, 1, 0, false);
+        queue.submit(WRITE, "c", new byte[] {3}, 1, 0, false);
+        now_ns += TIMEOUT_ns + 1;
+        assertFalse(queue.isIdle());
+        // a's callback arrives late: b is still outstanding
+        assertFalse(queue.complete());
+        assertEquals("[a[1], b[2]]", started.toString());
+        // b's callback
+        assertTrue(queue.complete());
+        assertEquals("[a[1], b[2], c[3]]", started.toString());
+        assertTrue(queue.complete());
+        assertTrue(queue.isIdle());
+        assertEquals(2, queue.getOperationCount());
+    }
+
+    @Test
+    public void callbackThatNeverArrives_onlyDelaysTheNextOperation() {
+        queue.submit(WRITE, "a", new byte[] {1}, 1, 0, false);
+        queue.submit(WRITE, "b", new byte[] {2}, 1, 0, false);
+        queue.submit(WRITE, "c", new byte[] {3}, 1, 0, false);
+        now_ns += TIMEOUT_ns + 1;
+        assertFalse(queue.isIdle());
+        // b's callback, taken for a's
+        assertFalse(queue.complete());
+        now_ns += TIMEOUT_ns + 1;
+        // b times out, so the callback was its own and none is expected anymore
+        assertFalse(queue.isIdle());
+        assertEquals("[a[1], b[2], c[3]]", started.toString());
+        assertTrue(queue.complete());
+        assertTrue(queue.isIdle());
+        assertEquals(2, queue.getLostOperationCount());
+    }
+
+    @Test
+    public void clear_forgetsEveryOperation() {
+        queue.submit(WRITE, "a", new byte[] {1}, 1, 0, false);
+        queue.submit(WRITE, "b", new byte[] {2}, 1, 0, false);
+        queue.clear();
+        assertTrue(queue.isIdle());
+        assertFalse(queue.complete());
+        queue.submit(WRITE, "c", new byte[] {3}, 1, 0, false);
+        assertEquals("[a[1], c[3]]", started.toString());
+    }
+
+    @Test
+    public void writeLoop_allocatesNothing() {
+        TransportOperationQueue queue = new TransportOperationQueue((type, target, value, length, writeType) -> value[0] != 0,
+                ProtocolLog.NONE, Clock.SYSTEM, PacketEncoder.MAX_FRAME_SIZE, 4, TIMEOUT_ns);
+        PacketEncoder encoder = new PacketEncoder();
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        // Warm up until the JIT settles (recompiling the loop allocates a little), and read the
+        // allocation counter once, since its first call allocates.
+        for(int i = 0; i < 5; i++)
+            writeLoop(queue, encoder, 200_000);
+        threads.getThreadAllocatedBytes(threadId);
+
+        long before = threads.getThreadAllocatedBytes(threadId);
+        writeLoop(queue, encoder, 200_000);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals("bytes allocated by 200000 writes", 0, allocated);
+        // Only one write is ever queued
+        assertEquals(4, queue.getAllocatedOperationCount());
+        assertEquals(6 * 200_000, queue.getOperationCount());
+    }
+
+    // Writes roll commands, as GattTransport.write does: every other write finds the transport
+    // busy and is queued behind the previous one.
+    private static void writeLoop(TransportOperationQueue queue, PacketEncoder encoder, int writes) {
+        byte sequence = 0;
+        for(int i = 0; i < writes; i += 2) {
+            byte[] frame = encoder.encodeRoll(SpheroConstants.requestsResponse, sequence++, (i % 511) - 255, i % 360);
+            queue.submit(WRITE, "API_V2", frame, frame.length, 0, false);
+            frame = encoder.encodeRoll(SpheroConstants.requestsResponse, sequence++, (i % 511) - 255, i % 360);
+            queue.submit(WRITE, "API_V2", frame, frame.length, 0, false);
+            queue.complete();
+            queue.complete();
+        }
+    }
+}
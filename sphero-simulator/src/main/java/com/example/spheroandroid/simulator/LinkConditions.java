@@ -0,0 +1,56 @@
+package com.example.spheroandroid.simulator;
+
+// How a simulated Bluetooth LE link behaves (see SimulatedLink).
+// The defaults are what a phone typically gets from a Sphero Mini: a 30 ms connection interval,
+// the default ATT MTU (20 byte notifications and writes) and a handful of packets per connection
+// event, with nothing lost. The faults are applied to each fragment, so they also exercise
+// packets that arrive half complete.
+public class LinkConditions {
+
+    // Time between connection events. Data is only exchanged during connection events.
+    public long connectionInterval_ns = 30_000_000L;
+    // Largest fragment that fits in one notification or write (ATT MTU - 3)
+    public int maxFragmentSize = 20;
+    // Fragments exchanged per connection event, in each direction
+    public int fragmentsPerEvent = 4;
+    // Probability of each fragment being lost, duplicated, or delivered one connection event late
+    // (after the fragments that were sent after it)
+    public double lossRate;
+    public double duplicationRate;
+    public double reorderRate;
+    // Seed of the faults' random numbers, so a run can be reproduced
+    public long seed = 1;
+
+    public static LinkConditions ideal() {
+        return new LinkConditions();
+    }
+
+    public LinkConditions connectionInterval_ms(int interval_ms) {
+        connectionInterval_ns = interval_ms * 1_000_000L;
+        return this;
+    }
+    public LinkConditions maxFragmentSize(int size) {
+        maxFragmentSize = size;
+        return this;
+    }
+    public LinkConditions fragmentsPerEvent(int count) {
+        fragmentsPerEvent = count;
+        return this;
+    }
+    public LinkConditions loss(double rate) {
+        lossRate = rate;
+        return this;
+    }
+    public LinkConditions duplication(double rate) {
+        duplicationRate = rate;
+        return this;
+    }
+    public LinkConditions reordering(double rate) {
+        reorderRate = rate;
+        return this;
+    }
+    public LinkConditions seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+}
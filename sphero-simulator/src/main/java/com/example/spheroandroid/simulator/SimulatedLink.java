@@ -0,0 +1,148 @@
+package com.example.spheroandroid.simulator;
+
+import com.example.spheroandroid.protocol.VirtualScheduler;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+// One direction of a simulated Bluetooth LE link, on a VirtualScheduler.
+// Data sent is cut into fragments of at most LinkConditions.maxFragmentSize bytes, which wait
+// for the next connection event. Each connection event carries up to fragmentsPerEvent
+// fragments; the rest wait for the following events, so a burst of data builds up latency the
+// way it does over the air. Faults (loss, duplication, reordering) are drawn for each fragment.
+public class SimulatedLink {
+
+    // Receives the fragments that made it across
+    public interface Receiver {
+        void onFragment(byte[] data, int offset, int length);
+    }
+
+    private static class Fragment {
+        final byte[] data;
+        // Called once the fragment has been transmitted (delivered or lost)
+        final Runnable transmitted;
+
+        Fragment(byte[] data, Runnable transmitted) {
+            this.data = data;
+            this.transmitted = transmitted;
+        }
+    }
+
+    private final VirtualScheduler loop;
+    private final LinkConditions conditions;
+    private final Random random;
+    private final Receiver receiver;
+    private final ArrayDeque<Fragment> queue = new ArrayDeque<>();
+    // Fragments being delivered one connection event late
+    private final ArrayDeque<Fragment> deferred = new ArrayDeque<>();
+    private boolean eventScheduled;
+
+    // Statistics
+    private long sentFragmentCount;
+    private long deliveredFragmentCount;
+    private long lostFragmentCount;
+    private long duplicatedFragmentCount;
+    private long reorderedFragmentCount;
+    private int maxQueueLength;
+
+    // seedOffset: makes the faults of this direction differ from the other direction's
+    public SimulatedLink(VirtualScheduler loop, LinkConditions conditions, long seedOffset, Receiver receiver) {
+        this.loop = loop;
+        this.conditions = conditions;
+        this.random = new Random(conditions.seed * 31 + seedOffset);
+        this.receiver = receiver;
+    }
+
+    public void send(byte[] data, int offset, int length) {
+        send(data, offset, length, null);
+    }
+    // transmitted: called when the last fragment has been transmitted, whether it was delivered or lost
+    public void send(byte[] data, int offset, int length, Runnable transmitted) {
+        int fragmentSize = Math.max(1, conditions.maxFragmentSize);
+        for(int start = 0; start < length; start += fragmentSize) {
+            int size = Math.min(fragmentSize, length - start);
+            byte[] fragment = new byte[size];
+            System.arraycopy(data, offset + start, fragment, 0, size);
+            queue.add(new Fragment(fragment, start + size >= length ? transmitted : null));
+            sentFragmentCount++;
+        }
+        maxQueueLength = Math.max(maxQueueLength, queue.size());
+        scheduleConnectionEvent();
+    }
+
+    // Forgets everything not transmitted yet (the connection dropped)
+    public void clear() {
+        queue.clear();
+        deferred.clear();
+    }
+
+    public int getQueuedFragmentCount() {
+        return queue.size() + deferred.size();
+    }
+    public long getSentFragmentCount() {
+        return sentFragmentCount;
+    }
+    public long getDeliveredFragmentCount() {
+        return deliveredFragmentCount;
+    }
+    public long getLostFragmentCount() {
+        return lostFragmentCount;
+    }
+    public long getDuplicatedFragmentCount() {
+        return duplicatedFragmentCount;
+    }
+    public long getReorderedFragmentCount() {
+        return reorderedFragmentCount;
+    }
+    public int getMaxQueueLength() {
+        return maxQueueLength;
+    }
+
+    private void scheduleConnectionEvent() {
+        if(eventScheduled)
+            return;
+        eventScheduled = true;
+        // Data queued now goes out at the next connection event
+        long interval = conditions.connectionInterval_ns;
+        long next = (loop.now_ns() / interval + 1) * interval;
+        loop.scheduleAt(next, this::connectionEvent);
+    }
+
+    private void connectionEvent() {
+        eventScheduled = false;
+        // Whatever was deferred at the previous event comes first, then the queue in order
+        ArrayDeque<Fragment> late = new ArrayDeque<>(deferred);
+        deferred.clear();
+        int budget = conditions.fragmentsPerEvent;
+        while(budget > 0 && !late.isEmpty()) {
+            transmit(late.poll(), false);
+            budget--;
+        }
+        deferred.addAll(late);
+        while(budget > 0 && !queue.isEmpty()) {
+            transmit(queue.poll(), true);
+            budget--;
+        }
+        if(!queue.isEmpty() || !deferred.isEmpty())
+            scheduleConnectionEvent();
+    }
+
+    private void transmit(Fragment fragment, boolean canReorder) {
+        if(random.nextDouble() < conditions.lossRate) {
+            lostFragmentCount++;
+        } else if(canReorder && random.nextDouble() < conditions.reorderRate) {
+            reorderedFragmentCount++;
+            deferred.add(fragment);
+            return;
+        } else {
+            deliveredFragmentCount++;
+            receiver.onFragment(fragment.data, 0, fragment.data.length);
+            if(random.nextDouble() < conditions.duplicationRate) {
+                duplicatedFragmentCount++;
+                receiver.onFragment(fragment.data, 0, fragment.data.length);
+            }
+        }
+        if(fragment.transmitted != null)
+            fragment.transmitted.run();
+    }
+}
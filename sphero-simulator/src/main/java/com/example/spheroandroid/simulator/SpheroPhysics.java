@@ -0,0 +1,352 @@
+package com.example.spheroandroid.simulator;
+
+import com.example.spheroandroid.protocol.SensorSample;
+import com.example.spheroandroid.protocol.VirtualScheduler;
+
+// Motion model of a Sphero Mini rolling around a rectangular arena, for a VirtualSphero.
+// Integrated in fixed steps on the VirtualScheduler's clock, so it runs as fast as the steps can be
+// computed (an hour of driving takes well under a second).
+//
+// The model, in the arena's frame (cm, +Y along yaw 0, +X along yaw 90):
+// - driveWithHeading with stabilization on: the sphero turns toward the heading at turnRate and
+//   accelerates along the direction it faces toward the commanded speed (255 = maxSpeed), at most
+//   at maxAcceleration. Speed 0 brakes at the same rate. reverse drives backwards.
+// - With stabilization off, the motors are off: it coasts, slowed by friction, and keeps its yaw.
+// - rawMotor drives the two wheels directly: the sphero moves at their mean speed and turns at a
+//   rate proportional to their difference, until the next driveWithHeading.
+// - resetHeading makes the current yaw heading 0. resetLocator makes the current position the
+//   locator's origin. Like the firmware, the locator's axes follow heading 0.
+// - Hitting a wall stops the sphero's motion into it, bouncing back by restitution. Impacts
+//   faster than collisionThreshold are reported as collisions (VirtualSphero.collide()).
+// The streamed sensors are consistent with the motion: locator and velocity in the heading frame,
+// yaw relative to heading 0, pitch and roll from the body's acceleration (the sphero's inner
+// carriage tilts as it speeds up or turns), the accelerometer in g and the yaw rate on gyro Z.
+public class SpheroPhysics implements VirtualSphero.Motion {
+
+    private static final double G_cm_per_s2 = 981;
+    // Largest acceleration a collision packet can carry (int16 / 4096)
+    private static final double MAX_COLLISION_g = 7.99;
+
+    // Speed at driveWithHeading speed 255 (the same as PositionTracker's default)
+    public double maxSpeed_cm_per_s = 100;
+    // The motors' acceleration when driving and braking
+    public double maxAcceleration_cm_per_s2 = 400;
+    // Deceleration of a coasting sphero
+    public double friction_cm_per_s2 = 60;
+    // How fast a stabilized sphero turns toward its heading
+    public double turnRate_deg_per_s = 540;
+    // Turn rate of rawMotor with one wheel at 255 forward and the other at 255 reverse
+    public double rawTurnRate_deg_per_s = 720;
+    // Fraction of the speed into a wall that bounces back
+    public double restitution = 0.3;
+    // Slowest impact reported as a collision
+    public double collisionThreshold_cm_per_s = 15;
+    public double radius_cm = 2;
+
+    private final VirtualScheduler loop;
+    private final VirtualSphero sphero;
+    private final long step_ns;
+    // Arena bounds
+    private final double minX, minY, maxX, maxY;
+
+    // State, in the arena's frame
+    private long time_ns;
+    private double x, y;
+    private double velocityX, velocityY;
+    // Acceleration during the last step
+    private double accelerationX, accelerationY;
+    private double yaw;
+    private double yawRate_deg_per_s;
+    // Heading 0 and the locator's origin, in the arena's frame
+    private double headingOffset;
+    private double originX, originY;
+
+    // What the motors are told to do
+    private boolean stabilization = true;
+    private boolean rawMode;
+    private double commandedSpeed_cm_per_s;
+    private double commandedYaw;
+    private double rawForward_cm_per_s, rawTurn_deg_per_s;
+    private boolean stepping;
+
+    // Statistics
+    private long stepCount;
+    private long wallHitCount;
+    private long collisionCount;
+
+    // The arena is width_cm x height_cm and the sphero starts at its center, facing +Y.
+    // step_ms: integration step. Walls are checked once per step.
+    public SpheroPhysics(VirtualScheduler loop, VirtualSphero sphero, double width_cm, double height_cm, int step_ms) {
+        if(width_cm <= 0 || height_cm <= 0 || step_ms < 1)
+            throw new IllegalArgumentException("Invalid arena or step");
+        this.loop = loop;
+        this.sphero = sphero;
+        this.step_ns = step_ms * 1_000_000L;
+        minX = -width_cm / 2;
+        maxX = width_cm / 2;
+        minY = -height_cm / 2;
+        maxY = height_cm / 2;
+        time_ns = loop.now_ns();
+        sphero.setMotion(this);
+    }
+    public SpheroPhysics(VirtualScheduler loop, VirtualSphero sphero, double width_cm, double height_cm) {
+        this(loop, sphero, width_cm, height_cm, 5);
+    }
+
+    // Position and velocity in the arena's frame (cm, cm/s), as of the last step
+    public double getX_cm() {
+        return x;
+    }
+    public double getY_cm() {
+        return y;
+    }
+    public double getVelocityX_cm_per_s() {
+        return velocityX;
+    }
+    public double getVelocityY_cm_per_s() {
+        return velocityY;
+    }
+    public double getSpeed_cm_per_s() {
+        return Math.hypot(velocityX, velocityY);
+    }
+    // Yaw in the arena's frame (degrees, 0 - 360)
+    public double getYaw() {
+        return normalize360(yaw);
+    }
+    public long getStepCount() {
+        return stepCount;
+    }
+    public long getWallHitCount() {
+        return wallHitCount;
+    }
+    public long getCollisionCount() {
+        return collisionCount;
+    }
+
+    // Puts the sphero somewhere, at rest
+    public void place(double x_cm, double y_cm, double yaw) {
+        advance(loop.now_ns());
+        x = Math.max(minX + radius_cm, Math.min(maxX - radius_cm, x_cm));
+        y = Math.max(minY + radius_cm, Math.min(maxY - radius_cm, y_cm));
+        this.yaw = yaw;
+        velocityX = velocityY = 0;
+        commandedSpeed_cm_per_s = 0;
+        rawMode = false;
+    }
+
+    // VirtualSphero.Motion
+    @Override
+    public void drive(int speed, int heading, boolean reverse) {
+        advance(loop.now_ns());
+        rawMode = false;
+        commandedSpeed_cm_per_s = speed / 255.0 * maxSpeed_cm_per_s * (reverse ? -1 : 1);
+        commandedYaw = headingOffset + heading;
+        startStepping();
+    }
+    @Override
+    public void rawMotor(int leftMode, int leftSpeed, int rightMode, int rightSpeed) {
+        advance(loop.now_ns());
+        double left = wheel(leftMode, leftSpeed);
+        double right = wheel(rightMode, rightSpeed);
+        rawMode = true;
+        rawForward_cm_per_s = (left + right) / 2 * maxSpeed_cm_per_s;
+        // The left wheel faster turns right (clockwise, increasing yaw)
+        rawTurn_deg_per_s = (left - right) / 2 * rawTurnRate_deg_per_s;
+        startStepping();
+    }
+    @Override
+    public void resetHeading() {
+        advance(loop.now_ns());
+        // Holds the current yaw until the next drive
+        commandedYaw = yaw;
+        headingOffset = yaw;
+    }
+    @Override
+    public void resetLocator() {
+        advance(loop.now_ns());
+        originX = x;
+        originY = y;
+    }
+    @Override
+    public void setStabilization(boolean enabled) {
+        advance(loop.now_ns());
+        stabilization = enabled;
+        startStepping();
+    }
+    @Override
+    public void update(long now_ns, SensorSample sensors) {
+        advance(now_ns);
+        double heading = Math.toRadians(headingOffset);
+        double sin = Math.sin(heading), cos = Math.cos(heading);
+        // Arena frame to the heading frame (+Y along heading 0)
+        double dx = x - originX, dy = y - originY;
+        sensors.locator[0] = (float)(dx * cos - dy * sin);
+        sensors.locator[1] = (float)(dx * sin + dy * cos);
+        sensors.velocity[0] = (float)(velocityX * cos - velocityY * sin);
+        sensors.velocity[1] = (float)(velocityX * sin + velocityY * cos);
+
+        // Body frame: forward along the yaw, right 90 degrees clockwise from it
+        double yawRad = Math.toRadians(yaw);
+        double forward = accelerationX * Math.sin(yawRad) + accelerationY * Math.cos(yawRad);
+        double right = accelerationX * Math.cos(yawRad) - accelerationY * Math.sin(yawRad);
+        sensors.attitude[0] = (float)Math.toDegrees(Math.atan2(forward, G_cm_per_s2));
+        sensors.attitude[1] = (float)Math.toDegrees(Math.atan2(right, G_cm_per_s2));
+        sensors.attitude[2] = (float)normalize180(yaw - headingOffset);
+        sensors.accelerometer[0] = (float)(right / G_cm_per_s2);
+        sensors.accelerometer[1] = (float)(forward / G_cm_per_s2);
+        sensors.accelerometer[2] = 1;
+        sensors.gyroscope[0] = 0;
+        sensors.gyroscope[1] = 0;
+        sensors.gyroscope[2] = (float)yawRate_deg_per_s;
+    }
+
+    // Steps on the loop while anything could be moving, so walls are hit on time even when
+    // nobody reads the sensors.
+    private void startStepping() {
+        if(stepping)
+            return;
+        stepping = true;
+        loop.schedule(step_ns, this::stepEvent);
+    }
+    private void stepEvent() {
+        advance(loop.now_ns());
+        if(isAtRest()) {
+            stepping = false;
+            return;
+        }
+        loop.schedule(step_ns, this::stepEvent);
+    }
+    private boolean isAtRest() {
+        boolean motorsOff = rawMode ? rawForward_cm_per_s == 0 && rawTurn_deg_per_s == 0
+                : commandedSpeed_cm_per_s == 0 || !stabilization;
+        boolean turned = rawMode || !stabilization || commandedSpeed_cm_per_s == 0
+                || Math.abs(normalize180(commandedYaw - yaw)) < 1e-9;
+        return motorsOff && turned && velocityX == 0 && velocityY == 0;
+    }
+
+    // Integrates up to now_ns in steps of at most step_ns
+    private void advance(long now_ns) {
+        while(time_ns < now_ns) {
+            long dt_ns = Math.min(step_ns, now_ns - time_ns);
+            step(dt_ns / 1e9);
+            time_ns += dt_ns;
+        }
+    }
+
+    private void step(double dt) {
+        stepCount++;
+        double previousYaw = yaw;
+        double targetX = 0, targetY = 0;
+        boolean motors;
+        if(rawMode) {
+            yaw += rawTurn_deg_per_s * dt;
+            motors = true;
+            double yawRad = Math.toRadians(yaw);
+            targetX = rawForward_cm_per_s * Math.sin(yawRad);
+            targetY = rawForward_cm_per_s * Math.cos(yawRad);
+        } else if(stabilization) {
+            motors = true;
+            if(commandedSpeed_cm_per_s != 0) {
+                double turn = normalize180(commandedYaw - yaw);
+                double maxTurn = turnRate_deg_per_s * dt;
+                yaw += Math.max(-maxTurn, Math.min(maxTurn, turn));
+            }
+            double yawRad = Math.toRadians(yaw);
+            targetX = commandedSpeed_cm_per_s * Math.sin(yawRad);
+            targetY = commandedSpeed_cm_per_s * Math.cos(yawRad);
+        } else {
+            motors = false;
+        }
+        yawRate_deg_per_s = (yaw - previousYaw) / dt;
+
+        // Motors pull the velocity toward the target; friction slows a coasting sphero
+        double changeX, changeY, limit;
+        if(motors) {
+            changeX = targetX - velocityX;
+            changeY = targetY - velocityY;
+            limit = maxAcceleration_cm_per_s2 * dt;
+        } else {
+            changeX = -velocityX;
+            changeY = -velocityY;
+            limit = friction_cm_per_s2 * dt;
+        }
+        double change = Math.hypot(changeX, changeY);
+        if(change > limit) {
+            changeX *= limit / change;
+            changeY *= limit / change;
+        }
+        velocityX += changeX;
+        velocityY += changeY;
+        accelerationX = changeX / dt;
+        accelerationY = changeY / dt;
+        x += velocityX * dt;
+        y += velocityY * dt;
+        hitWalls(dt);
+    }
+
+    private void hitWalls(double dt) {
+        double impactX = 0, impactY = 0;
+        if(x < minX + radius_cm) {
+            x = minX + radius_cm;
+            impactX = velocityX;
+        } else if(x > maxX - radius_cm) {
+            x = maxX - radius_cm;
+            impactX = velocityX;
+        }
+        if(y < minY + radius_cm) {
+            y = minY + radius_cm;
+            impactY = velocityY;
+        } else if(y > maxY - radius_cm) {
+            y = maxY - radius_cm;
+            impactY = velocityY;
+        }
+        if(impactX == 0 && impactY == 0)
+            return;
+        wallHitCount++;
+        // Change of velocity in the bounce
+        double bounceX = -impactX * (1 + restitution);
+        double bounceY = -impactY * (1 + restitution);
+        velocityX += bounceX;
+        velocityY += bounceY;
+        double impact = Math.hypot(impactX, impactY);
+        if(impact < collisionThreshold_cm_per_s)
+            return;
+
+        // Report it in the body frame, like the firmware
+        double yawRad = Math.toRadians(yaw);
+        double forward = bounceX * Math.sin(yawRad) + bounceY * Math.cos(yawRad);
+        double right = bounceX * Math.cos(yawRad) - bounceY * Math.sin(yawRad);
+        double scale = 1 / (dt * G_cm_per_s2);
+        float accelerationRight = (float)clamp(right * scale, MAX_COLLISION_g);
+        float accelerationForward = (float)clamp(forward * scale, MAX_COLLISION_g);
+        int axes = (Math.abs(right) >= impact / 2 ? 0x01 : 0) | (Math.abs(forward) >= impact / 2 ? 0x02 : 0);
+        int speed = (int)Math.min(255, Math.round(impact / maxSpeed_cm_per_s * 255));
+        if(sphero.collide(accelerationRight, accelerationForward, 1f, axes,
+                (int)Math.round(Math.abs(right)), (int)Math.round(Math.abs(forward)), 0, speed))
+            collisionCount++;
+    }
+
+    // Signed speed of a wheel, as a fraction of full speed
+    private static double wheel(int mode, int speed) {
+        switch(mode) {
+            case 1: return speed / 255.0;
+            case 2: return -speed / 255.0;
+            default: return 0;
+        }
+    }
+    private static double clamp(double value, double limit) {
+        return Math.max(-limit, Math.min(limit, value));
+    }
+    private static double normalize180(double degrees) {
+        degrees %= 360;
+        if(degrees > 180)
+            degrees -= 360;
+        else if(degrees <= -180)
+            degrees += 360;
+        return degrees;
+    }
+    private static double normalize360(double degrees) {
+        degrees %= 360;
+        return degrees < 0 ? degrees + 360 : degrees;
+    }
+}
@@ -0,0 +1,453 @@
+package com.example.spheroandroid.simulator;
+
+import com.example.spheroandroid.protocol.CollisionDetector;
+import com.example.spheroandroid.protocol.PacketDecoder;
+import com.example.spheroandroid.protocol.PacketEncoder;
+import com.example.spheroandroid.protocol.Scheduler;
+import com.example.spheroandroid.protocol.SensorSample;
+import com.example.spheroandroid.protocol.SpheroConstants;
+import com.example.spheroandroid.protocol.VirtualScheduler;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// A Sphero Mini's firmware, as far as the app can tell, running on a VirtualScheduler.
+// Parses the API_V2 packets written to it with the same framing rules as the real one (escapes,
+// checksum, resynchronising on the next start byte), and answers them:
+// - Commands with the requestsResponse flag get a response echoing their device ID, command ID
+//   and sequence number, whose payload starts with an error code (0 when it worked).
+//   Commands with requestsOnlyErrorResponse only get one if they failed.
+// - batteryVoltage and the version queries answer with their data.
+// - The sensor stream (sensorMask and configureSensorStream) is streamed in sensorResponse
+//   packets at the configured rate, one float per selected channel in mask bit order.
+// - Collisions (collide()) are reported in collisionDetectedAsync packets once collision
+//   detection is configured and its notifications are enabled, honoring the dead time.
+// Until the keep-awake handshake has been written to the AntiDOS channel, API_V2 packets are
+// ignored, and the connection is dropped if it doesn't come within ANTI_DOS_TIMEOUT_ns.
+//
+// Where the sphero is and what its sensors read comes from a Motion, which also receives the
+// driving commands: SpheroPhysics, or by default one that stays wherever its values are set.
+public class VirtualSphero {
+
+    // Error codes of responses
+    public static final int ERROR_NONE = 0x00;
+    public static final int ERROR_BAD_DEVICE_ID = 0x01;
+    public static final int ERROR_BAD_COMMAND_ID = 0x02;
+    public static final int ERROR_BAD_DATA_LENGTH = 0x05;
+    public static final int ERROR_BAD_PARAMETER_VALUE = 0x07;
+
+    public static final String KEEP_AWAKE_KEY = "usetheforce...band";
+    public static final long ANTI_DOS_TIMEOUT_ns = 10_000_000_000L;
+    // The firmware samples its sensors at this rate, and streams every divisor'th sample
+    public static final int BASE_SAMPLE_RATE_Hz = 400;
+
+    // Sensor stream channels, by mask bit (see SensorStream)
+    private static final int[] MASK_BITS = {18, 17, 16, 15, 14, 13, 12, 11, 10};
+    private static final int[] MASK2_BITS = {27, 26, 24, 23};
+    // Length of collisionDetectedAsync packets (see CollisionDetector)
+    private static final int COLLISION_PAYLOAD_LENGTH = 18;
+    // Flags of the packets the sphero sends on its own (sensor samples, collisions)
+    private static final byte ASYNC_FLAGS = SpheroConstants.resetsInactivityTimeout;
+
+    // Moves the sphero, and supplies its sensor readings
+    public interface Motion {
+        // driveWithHeading. speed: 0 - 255, heading: 0 - 359 degrees
+        default void drive(int speed, int heading, boolean reverse) {}
+        // rawMotor. Modes: 0 off, 1 forward, 2 reverse. Speeds: 0 - 255
+        default void rawMotor(int leftMode, int leftSpeed, int rightMode, int rightSpeed) {}
+        default void resetHeading() {}
+        default void resetLocator() {}
+        default void setStabilization(boolean enabled) {}
+        // Brings the sensor values up to time_ns
+        default void update(long time_ns, SensorSample sensors) {}
+    }
+
+    // Sends bytes to the host (through the downlink)
+    public interface Output {
+        void send(byte[] data, int offset, int length);
+    }
+
+    private final VirtualScheduler loop;
+    private final PacketDecoder decoder = new PacketDecoder(this::process_packet);
+    private final PacketEncoder encoder = new PacketEncoder();
+    private final byte[] responseData = new byte[PacketEncoder.MAX_PAYLOAD_SIZE];
+    private final byte[] asyncPayload = new byte[PacketEncoder.MAX_PAYLOAD_SIZE];
+    private int responseLength;
+    private Output output;
+    private Motion motion = new Motion() { };
+
+    // What the sensors read. Set the values directly, or let the Motion update them.
+    public final SensorSample sensors = new SensorSample();
+    public double batteryVoltage = 4.1;
+    public int[] mainApplicationVersion = {8, 0, 2};
+    public int[] bootloaderVersion = {2, 0, 0};
+
+    // Device state
+    private boolean connected;
+    private boolean unlocked;
+    private boolean awake = true;
+    private boolean stabilization = true;
+    private int lastSpeed, lastHeading;
+    private final int[] ledColor = new int[3];
+    private int backLEDIntensity;
+    private Scheduler.Cancellable antiDosTimeout;
+    private Runnable dropConnection;
+
+    // Sensor stream
+    private int streamDivisor;
+    private int streamMask;
+    private int streamMask2;
+    private Scheduler.Cancellable streamTask;
+
+    // Collision detection
+    private int collisionMethod;
+    private int collisionDeadTime_ms;
+    private boolean collisionNotifications;
+    private long lastCollision_ns = Long.MIN_VALUE;
+
+    // Statistics
+    private long packetCount;
+    private long responseCount;
+    private long errorResponseCount;
+    private long ignoredPacketCount;
+    private long sampleCount;
+    private long collisionCount;
+
+    public VirtualSphero(VirtualScheduler loop) {
+        this.loop = loop;
+    }
+
+    public void setMotion(Motion motion) {
+        this.motion = motion;
+    }
+
+    // The host connected. dropConnection is run if the sphero drops the connection itself.
+    public void connect(Output output, Runnable dropConnection) {
+        this.output = output;
+        this.dropConnection = dropConnection;
+        connected = true;
+        unlocked = false;
+        decoder.reset();
+        antiDosTimeout = loop.schedule(ANTI_DOS_TIMEOUT_ns, () -> {
+            if(connected && !unlocked)
+                this.dropConnection.run();
+        });
+    }
+    public void disconnect() {
+        connected = false;
+        unlocked = false;
+        output = null;
+        if(antiDosTimeout != null)
+            antiDosTimeout.cancel();
+        stopStreaming();
+        collisionNotifications = false;
+    }
+
+    // Written to the AntiDOS channel
+    public void receiveAntiDos(byte[] data, int offset, int length) {
+        String key = new String(data, offset, length, StandardCharsets.UTF_8);
+        if(KEEP_AWAKE_KEY.equals(key)) {
+            unlocked = true;
+            if(antiDosTimeout != null)
+                antiDosTimeout.cancel();
+        }
+    }
+    // Written to the API_V2 channel, in whatever fragments the link delivers
+    public void receive(byte[] data, int offset, int length) {
+        decoder.decode(data, offset, length);
+    }
+
+    // The sphero bumped into something. Reported if collision detection is on and the last
+    // collision was longer than the dead time ago. Returns true if it was reported.
+    public boolean collide(float accelerationX_g, float accelerationY_g, float accelerationZ_g, int axes,
+                           int powerX, int powerY, int powerZ, int speed) {
+        long now_ns = loop.now_ns();
+        if(collisionMethod == CollisionDetector.METHOD_OFF || !collisionNotifications || !unlocked)
+            return false;
+        if(lastCollision_ns != Long.MIN_VALUE && now_ns - lastCollision_ns < collisionDeadTime_ms * 1_000_000L)
+            return false;
+        lastCollision_ns = now_ns;
+        byte[] payload = asyncPayload;
+        putShort(payload, 0, Math.round(accelerationX_g * 4096));
+        putShort(payload, 2, Math.round(accelerationY_g * 4096));
+        putShort(payload, 4, Math.round(accelerationZ_g * 4096));
+        payload[6] = (byte)axes;
+        putShort(payload, 7, powerX);
+        putShort(payload, 9, powerY);
+        putShort(payload, 11, powerZ);
+        payload[13] = (byte)speed;
+        putInt(payload, 14, (int)(now_ns / 1_000_000));
+        send_async(SpheroConstants.collisionDetectedAsync, payload, COLLISION_PAYLOAD_LENGTH);
+        collisionCount++;
+        return true;
+    }
+
+    public boolean isUnlocked() {
+        return unlocked;
+    }
+    public boolean isAwake() {
+        return awake;
+    }
+    public boolean isStabilized() {
+        return stabilization;
+    }
+    public int getLastSpeed() {
+        return lastSpeed;
+    }
+    public int getLastHeading() {
+        return lastHeading;
+    }
+    public int[] getLEDColor() {
+        return Arrays.copyOf(ledColor, ledColor.length);
+    }
+    public int getBackLEDIntensity() {
+        return backLEDIntensity;
+    }
+    public long getPacketCount() {
+        return packetCount;
+    }
+    public long getResponseCount() {
+        return responseCount;
+    }
+    public long getErrorResponseCount() {
+        return errorResponseCount;
+    }
+    // API_V2 packets received before the keep-awake handshake
+    public long getIgnoredPacketCount() {
+        return ignoredPacketCount;
+    }
+    public long getSampleCount() {
+        return sampleCount;
+    }
+    public long getCollisionCount() {
+        return collisionCount;
+    }
+    public PacketDecoder getDecoder() {
+        return decoder;
+    }
+
+    private void process_packet(byte flags, byte devid, byte comid, byte sequence, byte[] packet, int payloadOffset, int payloadLength) {
+        if(!unlocked) {
+            ignoredPacketCount++;
+            return;
+        }
+        packetCount++;
+        responseLength = 0;
+        int error = execute(devid, comid, packet, payloadOffset, payloadLength);
+        boolean respond = (flags & SpheroConstants.requestsResponse) != 0
+                || ((flags & SpheroConstants.requestsOnlyErrorResponse) != 0 && error != ERROR_NONE);
+        if(!respond)
+            return;
+        encoder.begin(SpheroConstants.isResponse, devid, comid, sequence);
+        encoder.put((byte)error);
+        for(int i = 0; i < responseLength; i++)
+            encoder.put(responseData[i]);
+        byte[] frame = encoder.end();
+        send(frame);
+        responseCount++;
+        if(error != ERROR_NONE)
+            errorResponseCount++;
+    }
+
+    // Runs a command. Returns its error code; data for the response goes in responseData.
+    private int execute(byte devid, byte comid, byte[] packet, int offset, int length) {
+        switch(devid) {
+            case SpheroConstants.powerInfo:
+                switch(comid) {
+                    case SpheroConstants.wake:
+                        awake = true;
+                        return ERROR_NONE;
+                    case SpheroConstants.sleep:
+                    case SpheroConstants.deepSleep:
+                        awake = false;
+                        motion.drive(0, lastHeading, false);
+                        return ERROR_NONE;
+                    case SpheroConstants.batteryVoltage:
+                        putResponseShort((int)Math.round(batteryVoltage * 100));
+                        return ERROR_NONE;
+                }
+                return ERROR_BAD_COMMAND_ID;
+            case SpheroConstants.systemInfo:
+                switch(comid) {
+                    case SpheroConstants.mainApplicationVersion:
+                        putResponseVersion(mainApplicationVersion);
+                        return ERROR_NONE;
+                    case SpheroConstants.bootloaderVersion:
+                        putResponseVersion(bootloaderVersion);
+                        return ERROR_NONE;
+                }
+                return ERROR_BAD_COMMAND_ID;
+            case SpheroConstants.driving:
+                switch(comid) {
+                    case SpheroConstants.driveWithHeading: {
+                        if(length != 4)
+                            return ERROR_BAD_DATA_LENGTH;
+                        int speed = packet[offset] & 0xFF;
+                        int heading = ((packet[offset + 1] & 0xFF) << 8) | (packet[offset + 2] & 0xFF);
+                        boolean reverse = (packet[offset + 3] & 0x01) != 0;
+                        if(heading > 359)
+                            return ERROR_BAD_PARAMETER_VALUE;
+                        lastSpeed = speed;
+                        lastHeading = heading;
+                        motion.drive(speed, heading, reverse);
+                        return ERROR_NONE;
+                    }
+                    case SpheroConstants.rawMotor:
+                        if(length != 4)
+                            return ERROR_BAD_DATA_LENGTH;
+                        motion.rawMotor(packet[offset] & 0xFF, packet[offset + 1] & 0xFF, packet[offset + 2] & 0xFF, packet[offset + 3] & 0xFF);
+                        return ERROR_NONE;
+                    case SpheroConstants.resetHeading:
+                        motion.resetHeading();
+                        return ERROR_NONE;
+                    case SpheroConstants.stabilization:
+                        if(length != 1)
+                            return ERROR_BAD_DATA_LENGTH;
+                        stabilization = packet[offset] != 0;
+                        motion.setStabilization(stabilization);
+                        return ERROR_NONE;
+                }
+                return ERROR_BAD_COMMAND_ID;
+            case SpheroConstants.userIO:
+                if(comid != SpheroConstants.allLEDs)
+                    return ERROR_BAD_COMMAND_ID;
+                return setLEDs(packet, offset, length);
+            case SpheroConstants.sensor:
+                switch(comid) {
+                    case SpheroConstants.sensorMask:
+                        if(length != 7)
+                            return ERROR_BAD_DATA_LENGTH;
+                        streamDivisor = ((packet[offset] & 0xFF) << 8) | (packet[offset + 1] & 0xFF);
+                        streamMask = getInt(packet, offset + 3);
+                        restartStreaming();
+                        return ERROR_NONE;
+                    case SpheroConstants.configureSensorStream:
+                        if(length != 4)
+                            return ERROR_BAD_DATA_LENGTH;
+                        streamMask2 = getInt(packet, offset);
+                        restartStreaming();
+                        return ERROR_NONE;
+                    case SpheroConstants.configureCollision:
+                        if(length != 6)
+                            return ERROR_BAD_DATA_LENGTH;
+                        collisionMethod = packet[offset] & 0xFF;
+                        collisionDeadTime_ms = (packet[offset + 5] & 0xFF) * 10;
+                        return ERROR_NONE;
+                    case SpheroConstants.enableCollisionAsync:
+                        if(length != 1)
+                            return ERROR_BAD_DATA_LENGTH;
+                        collisionNotifications = packet[offset] != 0;
+                        return ERROR_NONE;
+                    case SpheroConstants.resetLocator:
+                        sensors.locator[0] = 0;
+                        sensors.locator[1] = 0;
+                        motion.resetLocator();
+                        return ERROR_NONE;
+                }
+                return ERROR_BAD_COMMAND_ID;
+        }
+        return ERROR_BAD_DEVICE_ID;
+    }
+
+    // allLEDs: a 16 bit mask of LEDs, then one value per LED in the mask
+    private int setLEDs(byte[] packet, int offset, int length) {
+        if(length < 2)
+            return ERROR_BAD_DATA_LENGTH;
+        int mask = ((packet[offset] & 0xFF) << 8) | (packet[offset + 1] & 0xFF);
+        if(length != 2 + Integer.bitCount(mask))
+            return ERROR_BAD_DATA_LENGTH;
+        int value = offset + 2;
+        if((mask & 0x01) != 0)
+            backLEDIntensity = packet[value++] & 0xFF;
+        for(int i = 0; i < 3; i++) {
+            if((mask & (0x02 << i)) != 0)
+                ledColor[i] = packet[value++] & 0xFF;
+        }
+        return ERROR_NONE;
+    }
+
+    private void restartStreaming() {
+        stopStreaming();
+        if(streamDivisor == 0 || (streamMask == 0 && streamMask2 == 0))
+            return;
+        long period_ns = streamDivisor * 1_000_000_000L / BASE_SAMPLE_RATE_Hz;
+        streamTask = loop.schedule(period_ns, () -> streamSample(period_ns));
+    }
+    private void stopStreaming() {
+        if(streamTask != null)
+            streamTask.cancel();
+        streamTask = null;
+    }
+
+    private void streamSample(long period_ns) {
+        streamTask = loop.schedule(period_ns, () -> streamSample(period_ns));
+        if(!connected || !awake)
+            return;
+        motion.update(loop.now_ns(), sensors);
+        byte[] payload = asyncPayload;
+        int length = 0;
+        for(int bit : MASK_BITS) {
+            if((streamMask & (1 << bit)) != 0 && length + 4 <= payload.length) {
+                putInt(payload, length, Float.floatToIntBits(channel(bit, false)));
+                length += 4;
+            }
+        }
+        for(int bit : MASK2_BITS) {
+            if((streamMask2 & (1 << bit)) != 0 && length + 4 <= payload.length) {
+                putInt(payload, length, Float.floatToIntBits(channel(bit, true)));
+                length += 4;
+            }
+        }
+        send_async(SpheroConstants.sensorResponse, payload, length);
+        sampleCount++;
+    }
+
+    // Value of a sensor stream channel
+    private float channel(int bit, boolean mask2) {
+        if(mask2) {
+            switch(bit) {
+                case 27: return sensors.locator[0];
+                case 26: return sensors.locator[1];
+                case 24: return sensors.velocity[0];
+                default: return sensors.velocity[1];
+            }
+        }
+        if(bit >= 16)
+            return sensors.attitude[18 - bit];
+        if(bit >= 13)
+            return sensors.accelerometer[15 - bit];
+        return sensors.gyroscope[12 - bit];
+    }
+
+    private void send_async(byte comid, byte[] payload, int length) {
+        byte[] frame = encoder.encode(ASYNC_FLAGS, SpheroConstants.sensor, comid, (byte)0, payload, 0, length);
+        send(frame);
+    }
+    private void send(byte[] frame) {
+        if(output != null)
+            output.send(frame, 0, frame.length);
+    }
+
+    private void putResponseShort(int value) {
+        responseData[responseLength++] = (byte)(value >> 8);
+        responseData[responseLength++] = (byte)value;
+    }
+    private void putResponseVersion(int[] version) {
+        for(int part : version)
+            putResponseShort(part);
+    }
+    private static int getInt(byte[] src, int offset) {
+        return ((src[offset] & 0xFF) << 24) | ((src[offset + 1] & 0xFF) << 16)
+                | ((src[offset + 2] & 0xFF) << 8) | (src[offset + 3] & 0xFF);
+    }
+    private static void putInt(byte[] dst, int offset, int value) {
+        dst[offset] = (byte)(value >> 24);
+        dst[offset + 1] = (byte)(value >> 16);
+        dst[offset + 2] = (byte)(value >> 8);
+        dst[offset + 3] = (byte)value;
+    }
+    private static void putShort(byte[] dst, int offset, int value) {
+        dst[offset] = (byte)(value >> 8);
+        dst[offset + 1] = (byte)value;
+    }
+}
@@ -0,0 +1,218 @@
+package com.example.spheroandroid.simulator;
+
+import com.example.spheroandroid.protocol.SpheroTransport;
+import com.example.spheroandroid.protocol.VirtualScheduler;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+// A SpheroTransport to a VirtualSphero over simulated links, on a VirtualScheduler.
+// Behaves like the app's GattTransport: one write is outstanding at a time and the rest wait in a
+// queue (urgent writes at its front). A write with response completes one connection interval
+// after its last fragment went out, when the sphero's link layer acknowledgement would arrive. A
+// write without response completes as soon as it is handed to the link if it fits in what one
+// connection event carries (the Bluetooth controller's buffer), and otherwise once it went out, so
+// writing faster than the link carries backs up the queue the way it does on a phone.
+// Faults of the LinkConditions apply to every fragment in both directions, including writes with
+// response, so lost packets can be simulated above the link layer.
+// Callbacks are delivered as events on the loop, never from inside the call that caused them.
+public class VirtualTransport implements SpheroTransport {
+
+    // Connection events it takes to connect and to discover services
+    private static final int CONNECT_EVENTS = 3;
+    private static final int DISCOVERY_EVENTS = 2;
+
+    private static class Write {
+        final Channel channel;
+        final byte[] value;
+        final WriteType writeType;
+
+        Write(Channel channel, byte[] value, WriteType writeType) {
+            this.channel = channel;
+            this.value = value;
+            this.writeType = writeType;
+        }
+    }
+
+    private static final Channel[] CHANNELS = Channel.values();
+
+    private final VirtualScheduler loop;
+    private final VirtualSphero sphero;
+    private final LinkConditions conditions;
+    // Host to sphero, one per channel. Sphero to host.
+    private final SimulatedLink[] uplinks = new SimulatedLink[CHANNELS.length];
+    private final SimulatedLink downlink;
+    private final boolean[] subscribed = new boolean[CHANNELS.length];
+    private final ArrayDeque<Write> writeQueue = new ArrayDeque<>();
+    private Write currentWrite;
+    private Callback callback;
+    private boolean connecting;
+    private boolean connected;
+    // Incremented on every disconnection, so events of an earlier connection are ignored
+    private int session;
+
+    // Statistics
+    private long writeCount;
+    private long refusedWriteCount;
+    private int maxQueueLength;
+
+    public VirtualTransport(VirtualScheduler loop, VirtualSphero sphero, LinkConditions conditions) {
+        this.loop = loop;
+        this.sphero = sphero;
+        this.conditions = conditions;
+        uplinks[Channel.API_V2.ordinal()] = new SimulatedLink(loop, conditions, 1, sphero::receive);
+        uplinks[Channel.ANTI_DOS.ordinal()] = new SimulatedLink(loop, conditions, 2, sphero::receiveAntiDos);
+        uplinks[Channel.DFU.ordinal()] = new SimulatedLink(loop, conditions, 3, (data, offset, length) -> { });
+        downlink = new SimulatedLink(loop, conditions, 4, this::deliver);
+    }
+
+    public VirtualSphero getSphero() {
+        return sphero;
+    }
+    public SimulatedLink getUplink(Channel channel) {
+        return uplinks[channel.ordinal()];
+    }
+    public SimulatedLink getDownlink() {
+        return downlink;
+    }
+    public boolean isConnected() {
+        return connected;
+    }
+    public long getWriteCount() {
+        return writeCount;
+    }
+    public long getRefusedWriteCount() {
+        return refusedWriteCount;
+    }
+    public int getMaxQueueLength() {
+        return maxQueueLength;
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        this.callback = callback;
+    }
+
+    @Override
+    public boolean connect(String address) {
+        if(connected || connecting)
+            return true;
+        connecting = true;
+        int connectingSession = session;
+        loop.schedule(CONNECT_EVENTS * conditions.connectionInterval_ns, () -> {
+            if(session != connectingSession)
+                return;
+            connecting = false;
+            connected = true;
+            sphero.connect(downlink::send, this::disconnect);
+            callback.onConnected();
+        });
+        return true;
+    }
+
+    @Override
+    public void disconnect() {
+        if(!connected && !connecting)
+            return;
+        connected = false;
+        connecting = false;
+        session++;
+        sphero.disconnect();
+        for(SimulatedLink uplink : uplinks)
+            uplink.clear();
+        downlink.clear();
+        writeQueue.clear();
+        currentWrite = null;
+        Arrays.fill(subscribed, false);
+        loop.schedule(0, () -> callback.onDisconnected());
+    }
+
+    @Override
+    public void close() {
+        disconnect();
+    }
+
+    @Override
+    public boolean discoverServices() {
+        if(!connected)
+            return false;
+        int discoveringSession = session;
+        loop.schedule(DISCOVERY_EVENTS * conditions.connectionInterval_ns, () -> {
+            if(session == discoveringSession)
+                callback.onServicesDiscovered();
+        });
+        return true;
+    }
+
+    @Override
+    public boolean subscribe(Channel channel) {
+        if(!connected)
+            return false;
+        subscribed[channel.ordinal()] = true;
+        return true;
+    }
+
+    @Override
+    public boolean write(Channel channel, byte[] value, WriteType writeType, boolean urgent) {
+        if(!connected) {
+            refusedWriteCount++;
+            return false;
+        }
+        Write write = new Write(channel, Arrays.copyOf(value, value.length), writeType);
+        if(urgent)
+            writeQueue.addFirst(write);
+        else
+            writeQueue.add(write);
+        maxQueueLength = Math.max(maxQueueLength, writeQueue.size());
+        if(currentWrite == null)
+            startNextWrite();
+        return true;
+    }
+
+    @Override
+    public boolean isIdle() {
+        return currentWrite == null && writeQueue.isEmpty();
+    }
+
+    private void startNextWrite() {
+        Write write = writeQueue.poll();
+        currentWrite = write;
+        if(write == null)
+            return;
+        writeCount++;
+        int writeSession = session;
+        Runnable complete = () -> {
+            if(session == writeSession && currentWrite == write)
+                completeWrite(write);
+        };
+        SimulatedLink uplink = uplinks[write.channel.ordinal()];
+        if(write.writeType == WriteType.WITH_RESPONSE) {
+            uplink.send(write.value, 0, write.value.length, () -> loop.schedule(conditions.connectionInterval_ns, complete));
+        } else if(uplink.getQueuedFragmentCount() + fragmentCount(write.value.length) <= conditions.fragmentsPerEvent) {
+            // Fits in the controller's buffer
+            uplink.send(write.value, 0, write.value.length);
+            loop.schedule(0, complete);
+        } else {
+            uplink.send(write.value, 0, write.value.length, () -> loop.schedule(0, complete));
+        }
+    }
+
+    private int fragmentCount(int length) {
+        int fragmentSize = Math.max(1, conditions.maxFragmentSize);
+        return (length + fragmentSize - 1) / fragmentSize;
+    }
+
+    private void completeWrite(Write write) {
+        currentWrite = null;
+        callback.onWriteComplete(write.channel);
+        // The callback may have written something, which then started already
+        if(currentWrite == null)
+            startNextWrite();
+    }
+
+    // A fragment from the sphero
+    private void deliver(byte[] data, int offset, int length) {
+        if(connected && subscribed[Channel.API_V2.ordinal()])
+            callback.onDataReceived(data, offset, length);
+    }
+}
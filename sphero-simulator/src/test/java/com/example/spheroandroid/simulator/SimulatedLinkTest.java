@@ -0,0 +1,82 @@
+package com.example.spheroandroid.simulator;
+
+import com.example.spheroandroid.protocol.VirtualScheduler;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SimulatedLinkTest {
+
+    private final VirtualScheduler loop = new VirtualScheduler();
+    private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+    private final List<Long> arrivals = new ArrayList<>();
+
+    private SimulatedLink link(LinkConditions conditions) {
+        return new SimulatedLink(loop, conditions, 0, (data, offset, length) -> {
+            received.write(data, offset, length);
+            arrivals.add(loop.now_ns());
+        });
+    }
+
+    @Test
+    public void send_fragmentsAndWaitsForConnectionEvents() {
+        SimulatedLink link = link(LinkConditions.ideal().connectionInterval_ms(30).maxFragmentSize(20).fragmentsPerEvent(2));
+        byte[] data = bytes(70);
+        loop.runFor(5_000_000L);
+        link.send(data, 0, data.length);
+
+        loop.runUntilIdle(100);
+        assertArrayEquals(data, received.toByteArray());
+        assertEquals(4, link.getSentFragmentCount());
+        // Two fragments at each of the events at 30 and 60 ms
+        assertEquals(Long.valueOf(30_000_000L), arrivals.get(0));
+        assertEquals(Long.valueOf(30_000_000L), arrivals.get(1));
+        assertEquals(Long.valueOf(60_000_000L), arrivals.get(3));
+        assertEquals(0, link.getQueuedFragmentCount());
+    }
+
+    @Test
+    public void transmitted_isCalledAfterTheLastFragment() {
+        SimulatedLink link = link(LinkConditions.ideal().fragmentsPerEvent(1));
+        long[] transmitted = {-1};
+        byte[] data = bytes(30);
+        link.send(data, 0, data.length, () -> transmitted[0] = loop.now_ns());
+
+        loop.runUntilIdle(100);
+        assertEquals(60_000_000L, transmitted[0]);
+    }
+
+    @Test
+    public void faults_happenAtTheirRatesAndAreReproducible() {
+        LinkConditions conditions = LinkConditions.ideal().maxFragmentSize(1).fragmentsPerEvent(100)
+                .loss(0.1).duplication(0.05).reordering(0.05).seed(42);
+        SimulatedLink link = link(conditions);
+        byte[] data = bytes(10000);
+        link.send(data, 0, data.length);
+        loop.runUntilIdle(100000);
+        byte[] first = received.toByteArray();
+
+        assertEquals(1000, link.getLostFragmentCount(), 100);
+        assertEquals(450, link.getDuplicatedFragmentCount(), 70);
+        assertEquals(450, link.getReorderedFragmentCount(), 70);
+        assertEquals(10000 - link.getLostFragmentCount() + link.getDuplicatedFragmentCount(), first.length);
+
+        received.reset();
+        SimulatedLink again = link(conditions);
+        again.send(data, 0, data.length);
+        loop.runUntilIdle(100000);
+        assertArrayEquals(first, received.toByteArray());
+    }
+
+    private static byte[] bytes(int count) {
+        byte[] data = new byte[count];
+        for(int i = 0; i < count; i++)
+            data[i] = (byte)i;
+        return data;
+    }
+}
@@ -0,0 +1,247 @@
+package com.example.spheroandroid.simulator;
+
+import com.example.spheroandroid.protocol.CommandClass;
+import com.example.spheroandroid.protocol.CommandTracker;
+import com.example.spheroandroid.protocol.PacketDecoder;
+import com.example.spheroandroid.protocol.ProtocolLog;
+import com.example.spheroandroid.protocol.SensorSample;
+import com.example.spheroandroid.protocol.SensorStream;
+import com.example.spheroandroid.protocol.SpheroProtocol;
+import com.example.spheroandroid.protocol.SpheroSession;
+import com.example.spheroandroid.protocol.SpheroTransport;
+import com.example.spheroandroid.protocol.VirtualScheduler;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+// The app's SpheroSession against the virtual sphero, end to end
+public class SimulatedSessionTest {
+
+    private final VirtualScheduler loop = new VirtualScheduler();
+    private final VirtualSphero sphero = new VirtualSphero(loop);
+    private double batteryVoltage;
+    private int sampleCount;
+    private long acknowledgedCount;
+    private long gaveUpCount;
+    private long disconnectionCount;
+
+    private final SpheroSession.Listener listener = new SpheroSession.Listener() {
+        @Override
+        public void onBatteryVoltage(double volts) {
+            batteryVoltage = volts;
+        }
+        @Override
+        public void onSensorSample(SensorSample sample) {
+            sampleCount++;
+        }
+        @Override
+        public void onAcknowledged(byte deviceID, byte commandID, CommandClass commandClass, long rtt_ms) {
+            acknowledgedCount++;
+        }
+        @Override
+        public void onGaveUp(byte deviceID, byte commandID, CommandClass commandClass) {
+            gaveUpCount++;
+        }
+        @Override
+        public void onDisconnected() {
+            disconnectionCount++;
+        }
+    };
+
+    private SpheroSession connect(LinkConditions conditions, int windowSize) {
+        VirtualTransport transport = new VirtualTransport(loop, sphero, conditions);
+        SpheroSession session = new SpheroSession(transport, loop, listener, ProtocolLog.NONE, true, 3, 200, windowSize);
+        transport.setCallback(session);
+        session.connect("virtual");
+        loop.runFor(2_000_000_000L);
+        assertTrue(session.isReady());
+        assertTrue(sphero.isUnlocked());
+        return session;
+    }
+
+    @Test
+    public void commands_areAcknowledgedOverAnIdealLink() {
+        SpheroSession session = connect(LinkConditions.ideal(), 1);
+        sphero.batteryVoltage = 3.85;
+        SpheroProtocol protocol = session.getProtocol();
+        protocol.wake();
+        protocol.setLEDColor(0, 128, 255);
+        protocol.checkBattery();
+        protocol.configureSensorStream(SensorStream.ATTITUDE | SensorStream.LOCATOR, 100);
+        loop.runFor(3_000_000_000L);
+
+        // Round trips are timed on the loop's clock, so nothing times out over an ideal link
+        assertEquals(5, acknowledgedCount);
+        assertEquals(0, gaveUpCount);
+        assertEquals(0, protocol.getTracker().getResentCount(CommandClass.CONFIGURATION));
+        assertEquals(4, protocol.getTracker().getAcknowledgedCount(CommandClass.CONFIGURATION));
+        assertEquals(3.85, batteryVoltage, 1e-9);
+        assertArrayEquals(new int[] {0, 128, 255}, sphero.getLEDColor());
+        // 10 Hz for the time left after the commands went through
+        assertTrue(sampleCount >= 25);
+        assertEquals(0, protocol.getSensorStream().getMalformedCount());
+    }
+
+    @Test
+    public void disconnect_putsTheSpheroToSleepFirst() {
+        SpheroSession session = connect(LinkConditions.ideal(), 1);
+        session.getProtocol().wake();
+        loop.runFor(1_000_000_000L);
+        assertTrue(sphero.isAwake());
+
+        session.disconnect();
+        loop.runFor(1_000_000_000L);
+        assertFalse(sphero.isAwake());
+        assertFalse(((VirtualTransport)session.getTransport()).isConnected());
+        assertEquals(1, disconnectionCount);
+    }
+
+    @Test
+    public void disconnection_isReportedWhenTheHandshakeNeverArrives() {
+        VirtualTransport transport = new VirtualTransport(loop, sphero, LinkConditions.ideal());
+        SpheroSession session = new SpheroSession(transport, loop, listener, ProtocolLog.NONE, true, 3, 200, 1);
+        // Connects, but never gets to the handshake
+        transport.setCallback(new SpheroTransport.Callback() {
+            @Override
+            public void onConnected() { }
+            @Override
+            public void onDisconnected() {
+                session.onDisconnected();
+            }
+            @Override
+            public void onServicesDiscovered() { }
+            @Override
+            public void onWriteComplete(SpheroTransport.Channel channel) { }
+            @Override
+            public void onDataReceived(byte[] data, int offset, int length) { }
+        });
+        session.connect("virtual");
+        loop.runFor(1_000_000_000L);
+        assertTrue(transport.isConnected());
+
+        loop.runFor(VirtualSphero.ANTI_DOS_TIMEOUT_ns);
+        assertFalse(transport.isConnected());
+        assertEquals(1, disconnectionCount);
+    }
+
+    // Ten times the app's command rate (drive ticks every 5 ms instead of every 50 ms, with the
+    // input changing on every tick, plus an LED command every 50 ms) over a link that loses,
+    // duplicates and reorders fragments. Every command must end up acknowledged or given up on,
+    // nothing may be left waiting, and the decoders on both ends must keep resynchronising.
+    @Test
+    public void load_tenTimesTheCommandRateOverALossyLink() {
+        LinkConditions conditions = LinkConditions.ideal().loss(0.01).duplication(0.01).reordering(0.01).seed(7);
+        SpheroSession session = connect(conditions, 4);
+        SpheroProtocol protocol = session.getProtocol();
+        CommandTracker tracker = protocol.getTracker();
+        session.setDriveSchedule(5, 250);
+        protocol.configureSensorStream(SensorStream.ALL, 50);
+
+        long end_ns = loop.now_ns() + 60_000_000_000L;
+        int[] tick = {0};
+        Runnable[] input = new Runnable[1];
+        input[0] = () -> {
+            int i = tick[0]++;
+            if (session.offerRoll(100 + i % 100, (i * 7) % 360))
+                session.startDriving();
+            if (i % 10 == 0 && tracker.canAccept(CommandClass.CONFIGURATION))
+                protocol.setLEDColor(i % 256, 0, 255 - i % 256);
+            if (loop.now_ns() < end_ns)
+                loop.schedule(5_000_000L, input[0]);
+            else
+                session.stopDriving(0);
+        };
+        loop.schedule(0, input[0]);
+        loop.runUntil(end_ns);
+        // Let the last commands finish
+        loop.runFor(10_000_000_000L);
+
+        assertTrue(session.isReady());
+        assertFalse(session.isDriving());
+        long sent = tracker.getSentCount(CommandClass.CONFIGURATION);
+        assertTrue(sent > 100);
+        assertEquals(0, tracker.getPendingCount());
+        assertEquals(0, tracker.getInFlightCount());
+        assertEquals(sent, tracker.getAcknowledgedCount(CommandClass.CONFIGURATION) + tracker.getGaveUpCount(CommandClass.CONFIGURATION));
+        assertTrue(tracker.getResentCount(CommandClass.CONFIGURATION) > 0);
+        assertTrue(session.getDriveScheduler().getSentCount() > 0);
+        assertEquals(0, sphero.getLastSpeed());
+        assertTrue(sampleCount > 500);
+
+        PacketDecoder decoder = protocol.getDecoder();
+        assertTrue(decoder.getChecksumErrorCount() + decoder.getFramingErrorCount() > 0);
+    }
+
+    // A million acknowledged commands over a fast, lossy link, with unacknowledged rolls in
+    // between, timeouts, resends and giving up: hours of session on the loop's clock, run in
+    // seconds. The same seed gives exactly the same session.
+    @Test
+    public void soak_aMillionCommandsReproduceFromTheSeed() {
+        long start_ms = System.currentTimeMillis();
+        String first = soak(11, 1_000_000);
+        long elapsed_ms = System.currentTimeMillis() - start_ms;
+        assertEquals(first, soak(11, 1_000_000));
+        assertNotEquals(soak(11, 100_000), soak(12, 100_000));
+        assertTrue("Took " + elapsed_ms + " ms", elapsed_ms < 30_000);
+    }
+
+    // Returns everything that could differ between two runs
+    private static String soak(long seed, long commandCount) {
+        VirtualScheduler loop = new VirtualScheduler();
+        VirtualSphero sphero = new VirtualSphero(loop);
+        LinkConditions conditions = LinkConditions.ideal().fragmentsPerEvent(6).loss(0.02).duplication(0.01).reordering(0.01).seed(seed);
+        // The shortest connection interval Bluetooth LE allows
+        conditions.connectionInterval_ns = 7_500_000L;
+        VirtualTransport transport = new VirtualTransport(loop, sphero, conditions);
+        long[] results = new long[2];
+        SpheroSession session = new SpheroSession(transport, loop, new SpheroSession.Listener() {
+            @Override
+            public void onBatteryVoltage(double volts) { }
+            @Override
+            public void onAcknowledged(byte deviceID, byte commandID, CommandClass commandClass, long rtt_ms) {
+                results[0]++;
+            }
+            @Override
+            public void onGaveUp(byte deviceID, byte commandID, CommandClass commandClass) {
+                results[1]++;
+            }
+        }, ProtocolLog.NONE, true, 3, 200, 8);
+        transport.setCallback(session);
+        session.connect("virtual");
+        loop.runFor(2_000_000_000L);
+        assertTrue(session.isReady());
+
+        SpheroProtocol protocol = session.getProtocol();
+        CommandTracker tracker = protocol.getTracker();
+        int allocated = tracker.getAllocatedCommandCount();
+        int[] tick = {0};
+        Runnable[] pump = new Runnable[1];
+        pump[0] = () -> {
+            int i = tick[0]++;
+            protocol.roll(i % 256, (i * 7) % 360);
+            if (tracker.canAccept(CommandClass.CONFIGURATION))
+                protocol.setLEDColor(i % 256, 0, 255 - i % 256);
+            if (tracker.getQueuedCount(CommandClass.CONFIGURATION) < commandCount)
+                loop.schedule(conditions.connectionInterval_ns, pump[0]);
+        };
+        loop.schedule(0, pump[0]);
+        // Until the last commands are acknowledged or given up on, and their resend timers have run
+        assertTrue(loop.runUntilIdle(Long.MAX_VALUE));
+
+        assertTrue(session.isReady());
+        long sent = tracker.getSentCount(CommandClass.CONFIGURATION);
+        assertEquals(commandCount, sent);
+        assertEquals(0, tracker.getPendingCount());
+        assertEquals(0, tracker.getInFlightCount());
+        assertEquals(sent, results[0] + results[1]);
+        assertTrue(tracker.getResentCount(CommandClass.CONFIGURATION) > 0);
+        assertTrue(results[1] > 0);
+        // Every command record went back to the pool, and the pool never had to grow
+        assertEquals(allocated, tracker.getAllocatedCommandCount());
+        assertEquals(allocated, tracker.getFreeCommandCount());
+        return tracker.getStatistics() + " | acknowledged " + results[0] + " | gave up " + results[1]
+                + " | virtual time " + loop.now_ns() + " ns | events " + loop.getExecutedCount()
+                + " | sphero packets " + sphero.getPacketCount() + " | lost fragments " + transport.getDownlink().getLostFragmentCount();
+    }
+}
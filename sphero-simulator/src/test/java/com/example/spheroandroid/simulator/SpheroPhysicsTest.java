@@ -0,0 +1,240 @@
+package com.example.spheroandroid.simulator;
+
+import com.example.spheroandroid.protocol.PacketEncoder;
+import com.example.spheroandroid.protocol.ProtocolLog;
+import com.example.spheroandroid.protocol.SensorSample;
+import com.example.spheroandroid.protocol.SensorStream;
+import com.example.spheroandroid.protocol.SpheroConstants;
+import com.example.spheroandroid.protocol.SpheroProtocol;
+import com.example.spheroandroid.protocol.SpheroSession;
+import com.example.spheroandroid.protocol.VirtualScheduler;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class SpheroPhysicsTest {
+
+    private static final long SECOND_ns = 1_000_000_000L;
+
+    private final VirtualScheduler loop = new VirtualScheduler();
+    private final VirtualSphero sphero = new VirtualSphero(loop);
+    private final SpheroPhysics physics = new SpheroPhysics(loop, sphero, 1000, 1000);
+    private final SensorSample sensors = new SensorSample();
+
+    @Test
+    public void drive_rampsUpToTheCommandedSpeedAlongTheHeading() {
+        physics.drive(255, 0, false);
+        loop.runFor(100_000_000L);
+        // Speeding up at 400 cm/s^2
+        assertEquals(40, physics.getVelocityY_cm_per_s(), 1e-6);
+
+        loop.runFor(2 * SECOND_ns);
+        assertEquals(100, physics.getVelocityY_cm_per_s(), 1e-6);
+        // Speeding up took 0.25 s, covering half the distance it would have at full speed
+        physics.update(loop.now_ns(), sensors);
+        assertEquals(0, sensors.locator[0], 1e-6);
+        assertEquals(2.1 * 100 - 12.5, sensors.locator[1], 0.5);
+        assertEquals(100, sensors.velocity[1], 1e-6);
+    }
+
+    @Test
+    public void drive_turnsTowardTheHeadingWhileSpeedingUp() {
+        physics.drive(255, 90, false);
+        loop.runFor(100_000_000L);
+        assertEquals(54, physics.getYaw(), 1e-6);
+
+        loop.runFor(SECOND_ns);
+        assertEquals(90, physics.getYaw(), 1e-9);
+        assertEquals(100, physics.getVelocityX_cm_per_s(), 1e-6);
+        assertEquals(0, physics.getVelocityY_cm_per_s(), 1e-6);
+        physics.update(loop.now_ns(), sensors);
+        assertEquals(90, sensors.attitude[2], 1e-3);
+        // It set off toward +Y before facing +X
+        assertTrue(sensors.locator[1] > 0);
+    }
+
+    @Test
+    public void speedZero_brakesAndStops() {
+        physics.drive(128, 0, false);
+        loop.runFor(SECOND_ns);
+        physics.drive(0, 0, false);
+        loop.runFor(SECOND_ns);
+        assertEquals(0, physics.getSpeed_cm_per_s(), 0);
+        double y = physics.getY_cm();
+        long steps = physics.getStepCount();
+
+        // At rest, it stops stepping
+        loop.runFor(10 * SECOND_ns);
+        assertEquals(y, physics.getY_cm(), 0);
+        assertTrue(loop.isIdle());
+        assertEquals(steps, physics.getStepCount());
+    }
+
+    @Test
+    public void withoutStabilization_itCoastsToAStopWithFriction() {
+        physics.drive(255, 0, false);
+        loop.runFor(SECOND_ns);
+        physics.setStabilization(false);
+        loop.runFor(SECOND_ns);
+        // 100 cm/s - 60 cm/s^2 * 1 s
+        assertEquals(40, physics.getSpeed_cm_per_s(), 0.5);
+        physics.drive(255, 90, false);
+        loop.runFor(SECOND_ns);
+        assertEquals(0, physics.getSpeed_cm_per_s(), 0);
+        assertEquals(0, physics.getYaw(), 0);
+    }
+
+    @Test
+    public void rawMotor_turnsOnTheSpotWithOpposedWheels() {
+        physics.rawMotor(1, 255, 2, 255);
+        loop.runFor(SECOND_ns / 4);
+        assertEquals(180, physics.getYaw(), 1e-6);
+        assertEquals(0, physics.getSpeed_cm_per_s(), 0);
+
+        physics.rawMotor(1, 128, 1, 128);
+        loop.runFor(SECOND_ns);
+        assertEquals(-50.2, physics.getVelocityY_cm_per_s(), 0.1);
+    }
+
+    @Test
+    public void resetHeadingAndLocator_moveTheSensorFrame() {
+        physics.drive(255, 90, false);
+        loop.runFor(SECOND_ns);
+        physics.drive(0, 90, false);
+        loop.runFor(SECOND_ns);
+        physics.resetHeading();
+        physics.resetLocator();
+
+        // Heading 0 is now the arena's +X
+        physics.drive(255, 0, false);
+        loop.runFor(SECOND_ns);
+        physics.update(loop.now_ns(), sensors);
+        assertEquals(0, sensors.attitude[2], 1e-3);
+        assertEquals(0, sensors.locator[0], 1e-3);
+        assertEquals(87.5, sensors.locator[1], 0.5);
+        assertEquals(100, sensors.velocity[1], 1e-3);
+        assertEquals(90, physics.getYaw(), 1e-9);
+    }
+
+    @Test
+    public void sensors_reflectAccelerationAndTurning() {
+        physics.drive(255, 0, false);
+        loop.runFor(100_000_000L);
+        physics.update(loop.now_ns(), sensors);
+        // Speeding up at 400 cm/s^2: about 0.41 g forward
+        assertEquals(400 / 981.0, sensors.accelerometer[1], 1e-3);
+        assertEquals(Math.toDegrees(Math.atan2(400, 981)), sensors.attitude[0], 1e-3);
+
+        physics.drive(255, 180, false);
+        loop.runFor(20_000_000L);
+        physics.update(loop.now_ns(), sensors);
+        assertEquals(540, sensors.gyroscope[2], 1e-3);
+    }
+
+    @Test
+    public void walls_stopTheSphereAndReportCollisions() {
+        connect();
+        // Collision detection on, with a 100 ms dead time
+        send(SpheroConstants.configureCollision, 0x01, 100, 100, 100, 100, 10);
+        send(SpheroConstants.enableCollisionAsync, 0x01);
+        physics.drive(255, 90, false);
+        loop.runFor(10 * SECOND_ns);
+        // Pressed against the wall at X = 500
+        assertEquals(498, physics.getX_cm(), 1e-9);
+        assertTrue(physics.getWallHitCount() > 1);
+        // The first impact, and maybe a bounce or two before it settles against the wall
+        long collisions = physics.getCollisionCount();
+        assertTrue(collisions >= 1 && collisions <= 3);
+        assertEquals(collisions, sphero.getCollisionCount());
+        loop.runFor(10 * SECOND_ns);
+        assertEquals(collisions, physics.getCollisionCount());
+    }
+
+    @Test
+    public void closedLoop_drivesToAPointFromTheStreamedLocator() {
+        SpheroSession session = connectSession();
+        SpheroProtocol protocol = session.getProtocol();
+        protocol.configureSensorStream(SensorStream.LOCATOR, 50);
+        physics.place(-200, -100, 0);
+        protocol.resetLocator();
+        loop.runFor(SECOND_ns);
+
+        // Proportional control toward (120, 80) in the locator's frame, at the app's 50 ms drive ticks
+        Runnable[] control = new Runnable[1];
+        control[0] = () -> {
+            double dx = 120 - sensors.locator[0], dy = 80 - sensors.locator[1];
+            int heading = (int)Math.round(Math.toDegrees(Math.atan2(dx, dy)) + 360) % 360;
+            int speed = (int)Math.min(160, Math.hypot(dx, dy) * 2);
+            protocol.roll(speed, heading);
+            loop.schedule(50_000_000L, control[0]);
+        };
+        loop.schedule(0, control[0]);
+        loop.runFor(10 * SECOND_ns);
+
+        assertEquals(-80, physics.getX_cm(), 5);
+        assertEquals(-20, physics.getY_cm(), 5);
+        assertEquals(0, physics.getWallHitCount());
+    }
+
+    @Test
+    public void hourLongSession_runsInSeconds() {
+        SpheroSession session = connectSession();
+        SpheroProtocol protocol = session.getProtocol();
+        protocol.configureSensorStream(SensorStream.LOCATOR | SensorStream.ATTITUDE, 100);
+
+        long start_ms = System.currentTimeMillis();
+        // Drive in a circle of changing headings for an hour, at the app's 50 ms drive ticks
+        long[] tick = {0};
+        Runnable[] drive = new Runnable[1];
+        drive[0] = () -> {
+            protocol.roll(80, (int)(tick[0]++ % 360));
+            loop.schedule(50_000_000L, drive[0]);
+        };
+        loop.schedule(0, drive[0]);
+        loop.runFor(3600 * SECOND_ns);
+        long elapsed_ms = System.currentTimeMillis() - start_ms;
+
+        assertTrue(session.isReady());
+        // Circling at about 31 cm/s, turning 20 degrees per second: a circle of about 90 cm
+        assertTrue(Math.hypot(physics.getX_cm(), physics.getY_cm()) < 200);
+        assertTrue(Math.hypot(sensors.locator[0], sensors.locator[1]) < 200);
+        assertEquals(0, physics.getWallHitCount());
+        // Hundreds of times faster than real time, with room for slow machines
+        assertTrue("Took " + elapsed_ms + " ms", elapsed_ms < 3600 * 1000 / 100);
+    }
+
+    // A session that keeps the latest sensor sample in sensors
+    private SpheroSession connectSession() {
+        VirtualTransport transport = new VirtualTransport(loop, sphero, LinkConditions.ideal());
+        SpheroSession session = new SpheroSession(transport, loop, new SpheroSession.Listener() {
+            @Override
+            public void onBatteryVoltage(double volts) { }
+            @Override
+            public void onSensorSample(SensorSample sample) {
+                sensors.copyFrom(sample);
+            }
+        }, ProtocolLog.NONE, true, 3, 1000, 1);
+        transport.setCallback(session);
+        session.connect("virtual");
+        loop.runFor(2 * SECOND_ns);
+        assertTrue(session.isReady());
+        return session;
+    }
+
+    private void send(byte comid, int... payload) {
+        byte[] bytes = new byte[payload.length];
+        for(int i = 0; i < payload.length; i++)
+            bytes[i] = (byte)payload[i];
+        byte[] frame = new PacketEncoder().encode(SpheroConstants.requestsResponse, SpheroConstants.sensor, comid, (byte)0, bytes, 0, bytes.length);
+        sphero.receive(frame, 0, frame.length);
+    }
+
+    private void connect() {
+        sphero.connect((data, offset, length) -> { }, () -> { });
+        byte[] key = VirtualSphero.KEEP_AWAKE_KEY.getBytes(StandardCharsets.UTF_8);
+        sphero.receiveAntiDos(key, 0, key.length);
+    }
+}
@@ -0,0 +1,199 @@
+package com.example.spheroandroid.simulator;
+
+import com.example.spheroandroid.protocol.PacketDecoder;
+import com.example.spheroandroid.protocol.PacketEncoder;
+import com.example.spheroandroid.protocol.SpheroConstants;
+import com.example.spheroandroid.protocol.VirtualScheduler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class VirtualSpheroTest {
+
+    private static final byte COMMAND_FLAGS = SpheroConstants.requestsResponse | SpheroConstants.resetsInactivityTimeout;
+    private static final byte UNACKNOWLEDGED_FLAGS = SpheroConstants.requestsOnlyErrorResponse | SpheroConstants.resetsInactivityTimeout;
+
+    // A packet the sphero sent
+    private static class Packet {
+        final byte flags, devid, comid, sequence;
+        final byte[] payload;
+
+        Packet(byte flags, byte devid, byte comid, byte sequence, byte[] payload) {
+            this.flags = flags;
+            this.devid = devid;
+            this.comid = comid;
+            this.sequence = sequence;
+            this.payload = payload;
+        }
+    }
+
+    private final VirtualScheduler loop = new VirtualScheduler();
+    private final VirtualSphero sphero = new VirtualSphero(loop);
+    private final PacketEncoder encoder = new PacketEncoder();
+    private final List<Packet> sent = new ArrayList<>();
+    private final PacketDecoder decoder = new PacketDecoder((flags, devid, comid, sequence, packet, offset, length) ->
+            sent.add(new Packet(flags, devid, comid, sequence, Arrays.copyOfRange(packet, offset, offset + length))));
+    private boolean dropped;
+
+    @Before
+    public void connect() {
+        sphero.connect(decoder::decode, () -> dropped = true);
+        byte[] key = VirtualSphero.KEEP_AWAKE_KEY.getBytes(StandardCharsets.UTF_8);
+        sphero.receiveAntiDos(key, 0, key.length);
+    }
+
+    @Test
+    public void batteryVoltage_isAnsweredIn10mVUnits() {
+        sphero.batteryVoltage = 3.92;
+        send(COMMAND_FLAGS, SpheroConstants.powerInfo, SpheroConstants.batteryVoltage, 17);
+
+        assertEquals(1, sent.size());
+        Packet response = sent.get(0);
+        assertEquals(SpheroConstants.isResponse, response.flags);
+        assertEquals(SpheroConstants.powerInfo, response.devid);
+        assertEquals(SpheroConstants.batteryVoltage, response.comid);
+        assertEquals(17, response.sequence);
+        assertArrayEquals(new byte[] {0, 0x01, (byte)0x88}, response.payload);
+    }
+
+    @Test
+    public void versions_areAnsweredAsMajorMinorRevision() {
+        sphero.mainApplicationVersion = new int[] {7, 1, 300};
+        send(COMMAND_FLAGS, SpheroConstants.systemInfo, SpheroConstants.mainApplicationVersion, 1);
+        send(COMMAND_FLAGS, SpheroConstants.systemInfo, SpheroConstants.bootloaderVersion, 2);
+
+        assertArrayEquals(new byte[] {0, 0, 7, 0, 1, 0x01, 0x2C}, sent.get(0).payload);
+        assertArrayEquals(new byte[] {0, 0, 2, 0, 0, 0, 0}, sent.get(1).payload);
+        assertEquals(2, sent.get(1).sequence);
+    }
+
+    @Test
+    public void commands_areExecutedAndAcknowledgedWithTheirSequenceNumbers() {
+        send(COMMAND_FLAGS, SpheroConstants.userIO, SpheroConstants.allLEDs, 200, 0x00, 0x0e, 10, 20, 30);
+        send(COMMAND_FLAGS, SpheroConstants.driving, SpheroConstants.driveWithHeading, 201, 120, 0x01, 0x0E, 0x00);
+
+        assertEquals(2, sent.size());
+        assertEquals((byte)200, sent.get(0).sequence);
+        assertEquals((byte)201, sent.get(1).sequence);
+        assertArrayEquals(new byte[] {0}, sent.get(1).payload);
+        assertArrayEquals(new int[] {10, 20, 30}, sphero.getLEDColor());
+        assertEquals(120, sphero.getLastSpeed());
+        assertEquals(270, sphero.getLastHeading());
+    }
+
+    @Test
+    public void unacknowledgedCommands_onlyGetErrorResponses() {
+        send(UNACKNOWLEDGED_FLAGS, SpheroConstants.driving, SpheroConstants.driveWithHeading, 5, 50, 0x00, 0x10, 0x00);
+        assertTrue(sent.isEmpty());
+
+        // Heading 400 is out of range
+        send(UNACKNOWLEDGED_FLAGS, SpheroConstants.driving, SpheroConstants.driveWithHeading, 6, 50, 0x01, (byte)0x90, 0x00);
+        assertEquals(1, sent.size());
+        assertArrayEquals(new byte[] {VirtualSphero.ERROR_BAD_PARAMETER_VALUE}, sent.get(0).payload);
+        assertEquals(50, sphero.getLastSpeed());
+        assertEquals(16, sphero.getLastHeading());
+    }
+
+    @Test
+    public void badCommands_getErrorCodes() {
+        send(COMMAND_FLAGS, SpheroConstants.animatronics, (byte)0x10, 1);
+        send(COMMAND_FLAGS, SpheroConstants.powerInfo, (byte)0x7F, 2);
+        send(COMMAND_FLAGS, SpheroConstants.driving, SpheroConstants.driveWithHeading, 3, 50);
+
+        assertEquals(VirtualSphero.ERROR_BAD_DEVICE_ID, sent.get(0).payload[0]);
+        assertEquals(VirtualSphero.ERROR_BAD_COMMAND_ID, sent.get(1).payload[0]);
+        assertEquals(VirtualSphero.ERROR_BAD_DATA_LENGTH, sent.get(2).payload[0]);
+        assertEquals(3, sphero.getErrorResponseCount());
+    }
+
+    @Test
+    public void commandsBeforeTheKeepAwakeHandshake_areIgnored() {
+        sphero.disconnect();
+        sphero.connect(decoder::decode, () -> dropped = true);
+        send(COMMAND_FLAGS, SpheroConstants.powerInfo, SpheroConstants.batteryVoltage, 1);
+        assertTrue(sent.isEmpty());
+        assertEquals(1, sphero.getIgnoredPacketCount());
+
+        loop.runFor(VirtualSphero.ANTI_DOS_TIMEOUT_ns);
+        assertTrue(dropped);
+    }
+
+    @Test
+    public void sensorStream_sendsTheSelectedChannelsAtTheConfiguredRate() {
+        sphero.sensors.attitude[0] = 1.5f;
+        sphero.sensors.attitude[2] = -90f;
+        sphero.sensors.locator[1] = 12.25f;
+        // Divisor 40 (10 Hz): attitude, then MASK2: locator
+        send(COMMAND_FLAGS, SpheroConstants.sensor, SpheroConstants.sensorMask, 1, 0, 40, 0, 0x00, 0x07, 0x00, 0x00);
+        send(COMMAND_FLAGS, SpheroConstants.sensor, SpheroConstants.configureSensorStream, 2, 0x0C, 0x00, 0x00, 0x00);
+        sent.clear();
+
+        loop.runFor(1_000_000_000L);
+        assertEquals(10, sent.size());
+        Packet sample = sent.get(0);
+        assertEquals(SpheroConstants.sensorResponse, sample.comid);
+        assertEquals(0, sample.flags & SpheroConstants.isResponse);
+        assertEquals(20, sample.payload.length);
+        assertEquals(1.5f, floatAt(sample.payload, 0), 0f);
+        assertEquals(-90f, floatAt(sample.payload, 8), 0f);
+        assertEquals(12.25f, floatAt(sample.payload, 16), 0f);
+
+        // Stopped by an empty mask
+        send(COMMAND_FLAGS, SpheroConstants.sensor, SpheroConstants.sensorMask, 3, 0, 40, 0, 0, 0, 0, 0);
+        send(COMMAND_FLAGS, SpheroConstants.sensor, SpheroConstants.configureSensorStream, 4, 0, 0, 0, 0);
+        sent.clear();
+        loop.runFor(1_000_000_000L);
+        assertTrue(sent.isEmpty());
+    }
+
+    @Test
+    public void collisions_areReportedOnceEnabledAndOutsideTheDeadTime() {
+        assertFalse(sphero.collide(1f, 0f, 0f, 0x01, 100, 0, 0, 50));
+
+        // Dead time 200 ms
+        send(COMMAND_FLAGS, SpheroConstants.sensor, SpheroConstants.configureCollision, 1, 0x01, 100, 100, 100, 100, 20);
+        send(COMMAND_FLAGS, SpheroConstants.sensor, SpheroConstants.enableCollisionAsync, 2, 0x01);
+        sent.clear();
+        loop.runFor(1_000_000_000L);
+
+        assertTrue(sphero.collide(1f, -0.5f, 0f, 0x03, 300, 100, 0, 200));
+        loop.runFor(100_000_000L);
+        assertFalse(sphero.collide(1f, 0f, 0f, 0x01, 100, 0, 0, 50));
+        loop.runFor(100_000_000L);
+        assertTrue(sphero.collide(1f, 0f, 0f, 0x01, 100, 0, 0, 50));
+
+        assertEquals(2, sent.size());
+        Packet collision = sent.get(0);
+        assertEquals(SpheroConstants.collisionDetectedAsync, collision.comid);
+        assertArrayEquals(new byte[] {
+                0x10, 0x00, (byte)0xF8, 0x00, 0x00, 0x00,
+                0x03,
+                0x01, 0x2C, 0x00, 0x64, 0x00, 0x00,
+                (byte)0xC8,
+                0x00, 0x00, 0x03, (byte)0xE8
+        }, collision.payload);
+    }
+
+    private void send(byte flags, byte devid, byte comid, int sequence, int... payload) {
+        byte[] bytes = new byte[payload.length];
+        for(int i = 0; i < payload.length; i++)
+            bytes[i] = (byte)payload[i];
+        byte[] frame = encoder.encode(flags, devid, comid, (byte)sequence, bytes, 0, bytes.length);
+        // Split in two, like a write that took two fragments
+        sphero.receive(frame, 0, frame.length / 2);
+        sphero.receive(frame, frame.length / 2, frame.length - frame.length / 2);
+    }
+
+    private static float floatAt(byte[] data, int offset) {
+        int bits = ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+        return Float.intBitsToFloat(bits);
+    }
+}